@@ -2,18 +2,28 @@ package org.pipservices3.messaging.build;
 
 import org.pipservices3.commons.refer.Descriptor;
 import org.pipservices3.components.build.Factory;
+import org.pipservices3.messaging.queues.FileMessageQueue;
+import org.pipservices3.messaging.queues.LockFreeMemoryMessageQueue;
 import org.pipservices3.messaging.queues.MemoryMessageQueue;
+import org.pipservices3.messaging.queues.ShardedMemoryMessageQueue;
 
 /**
- * Creates {@link MemoryMessageQueue} components by their descriptors.
+ * Creates {@link MemoryMessageQueue}, {@link LockFreeMemoryMessageQueue}, {@link ShardedMemoryMessageQueue}
+ * and {@link FileMessageQueue} components by their descriptors.
  * Name of created message queue is taken from its descriptor.
  *
  * @see <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/build/Factory.html">Factory</a>
  * @see MemoryMessageQueue
+ * @see LockFreeMemoryMessageQueue
+ * @see ShardedMemoryMessageQueue
+ * @see FileMessageQueue
  */
 public class DefaultMessagingFactory extends Factory {
 
     private static final Descriptor MemoryQueueDescriptor = new Descriptor("pip-services", "message-queue", "memory", "*", "1.0");
+    private static final Descriptor LockFreeMemoryQueueDescriptor = new Descriptor("pip-services", "message-queue", "memory-lockfree", "*", "1.0");
+    private static final Descriptor ShardedMemoryQueueDescriptor = new Descriptor("pip-services", "message-queue", "memory-sharded", "*", "1.0");
+    private static final Descriptor FileQueueDescriptor = new Descriptor("pip-services", "message-queue", "file", "*", "1.0");
     private static final Descriptor MemoryQueueFactoryDescriptor = new Descriptor("pip-services", "queue-factory", "memory", "*", "1.0");
 
     /**
@@ -25,5 +35,17 @@ public class DefaultMessagingFactory extends Factory {
             Descriptor descriptor = (Descriptor) locator;
             return new MemoryMessageQueue(descriptor.getName());
         });
+        register(LockFreeMemoryQueueDescriptor, (locator) -> {
+            Descriptor descriptor = (Descriptor) locator;
+            return new LockFreeMemoryMessageQueue(descriptor.getName());
+        });
+        register(ShardedMemoryQueueDescriptor, (locator) -> {
+            Descriptor descriptor = (Descriptor) locator;
+            return new ShardedMemoryMessageQueue(descriptor.getName());
+        });
+        register(FileQueueDescriptor, (locator) -> {
+            Descriptor descriptor = (Descriptor) locator;
+            return new FileMessageQueue(descriptor.getName());
+        });
     }
 }
@@ -4,17 +4,35 @@ package org.pipservices3.messaging.build;
 import org.pipservices3.commons.refer.Descriptor;
 import org.pipservices3.commons.refer.ReferenceException;
 import org.pipservices3.messaging.queues.IMessageQueue;
+import org.pipservices3.messaging.queues.LockFreeMemoryMessageQueue;
 import org.pipservices3.messaging.queues.MemoryMessageQueue;
+import org.pipservices3.messaging.queues.MessageQueue;
+import org.pipservices3.messaging.queues.ShardedMemoryMessageQueue;
 
 /**
  * Creates {@link MemoryMessageQueue} components by their descriptors.
  * Name of created message queue is taken from its descriptor.
+ * {@link LockFreeMemoryMessageQueue} components are created by descriptors with <code>memory-lockfree</code> kind
+ * and {@link ShardedMemoryMessageQueue} components by descriptors with <code>memory-sharded</code> kind.
+ * <p>
+ * ### Configuration parameters ###
+ * <ul>
+ * <li>options:
+ *   <ul>
+ *   <li>type:   type of queues created by {@link #createQueue(String)}: <code>memory</code> (default),
+ *               <code>memory-lockfree</code> or <code>memory-sharded</code>
+ *   </ul>
+ * </ul>
  *
  * @see <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/build/Factory.html">Factory</a>
  * @see MemoryMessageQueue
+ * @see LockFreeMemoryMessageQueue
+ * @see ShardedMemoryMessageQueue
  */
 public class MemoryMessageQueueFactory extends MessageQueueFactory {
     private static final Descriptor MemoryQueueDescriptor = new Descriptor("pip-services", "message-queue", "memory", "*", "1.0");
+    private static final Descriptor LockFreeMemoryQueueDescriptor = new Descriptor("pip-services", "message-queue", "memory-lockfree", "*", "1.0");
+    private static final Descriptor ShardedMemoryQueueDescriptor = new Descriptor("pip-services", "message-queue", "memory-sharded", "*", "1.0");
 
     /**
      * Create a new instance of the factory.
@@ -24,16 +42,30 @@ public class MemoryMessageQueueFactory extends MessageQueueFactory {
             Descriptor descriptor = (Descriptor) locator;
             return new MemoryMessageQueue(descriptor.getName());
         });
+        register(LockFreeMemoryQueueDescriptor, (locator) -> {
+            Descriptor descriptor = (Descriptor) locator;
+            return new LockFreeMemoryMessageQueue(descriptor.getName());
+        });
+        register(ShardedMemoryQueueDescriptor, (locator) -> {
+            Descriptor descriptor = (Descriptor) locator;
+            return new ShardedMemoryMessageQueue(descriptor.getName());
+        });
     }
 
     /**
      * Creates a message queue component and assigns its name.
+     * The queue implementation is selected by the <code>options.type</code> parameter.
      *
      * @param name a name of the created message queue.
      */
     @Override
     public IMessageQueue createQueue(String name) throws ReferenceException {
-        var queue = new MemoryMessageQueue(name);
+        String type = this._config != null ? this._config.getAsStringWithDefault("options.type", "memory") : "memory";
+        MessageQueue queue = switch (type) {
+            case "memory-lockfree" -> new LockFreeMemoryMessageQueue(name);
+            case "memory-sharded" -> new ShardedMemoryMessageQueue(name);
+            default -> new MemoryMessageQueue(name);
+        };
 
         if (this._config != null)
             queue.configure(this._config);
@@ -0,0 +1,21 @@
+package org.pipservices3.messaging.queues;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Message serializer that converts payloads into compact binary CBOR format.
+ * <p>
+ * CBOR keeps the JSON data model, so any class that can be converted into JSON
+ * can be sent in CBOR with smaller payloads and faster parsing.
+ *
+ * @see IMessageSerializer
+ */
+public class CborMessageSerializer extends JacksonMessageSerializer {
+    /**
+     * Creates a new instance of the serializer.
+     */
+    public CborMessageSerializer() {
+        super(new ObjectMapper(new CBORFactory()), "application/cbor");
+    }
+}
@@ -0,0 +1,216 @@
+package org.pipservices3.messaging.queues;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap that orders entries by their deadlines.
+ * <p>
+ * Every entry keeps its own position in the heap, so besides adding and polling
+ * the heap can remove an arbitrary entry or reschedule it after its deadline
+ * has changed in O(log n) time without searching. An entry can belong
+ * to only one heap at a time.
+ * <p>
+ * The heap is not thread-safe. Callers are responsible for synchronization.
+ *
+ * @param <E> the type of heap entries.
+ * @see MessageLock
+ */
+final class DeadlineHeap<E extends DeadlineHeap.Entry> {
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Base class for entries that can be scheduled in the heap.
+     */
+    abstract static class Entry {
+        /**
+         * Position of the entry in the heap or -1 when it is not scheduled.
+         */
+        int heapIndex = -1;
+
+        /**
+         * Gets the deadline used to order the entry.
+         *
+         * @return the deadline in milliseconds.
+         */
+        abstract long getDeadline();
+    }
+
+    private Entry[] _entries = new Entry[MIN_CAPACITY];
+    private int _size = 0;
+
+    /**
+     * Gets the number of scheduled entries.
+     *
+     * @return the number of entries.
+     */
+    int size() {
+        return _size;
+    }
+
+    /**
+     * Checks if the heap has no entries.
+     *
+     * @return true if the heap is empty and false otherwise.
+     */
+    boolean isEmpty() {
+        return _size == 0;
+    }
+
+    /**
+     * Schedules an entry in the heap.
+     *
+     * @param entry an entry to be added.
+     */
+    void add(E entry) {
+        if (entry.heapIndex >= 0)
+            throw new IllegalStateException("Entry is already scheduled");
+
+        if (_size == _entries.length)
+            _entries = Arrays.copyOf(_entries, _size << 1);
+
+        _entries[_size] = entry;
+        entry.heapIndex = _size;
+        _size++;
+        siftUp(entry.heapIndex);
+    }
+
+    /**
+     * Gets the entry with the earliest deadline without removing it.
+     *
+     * @return the earliest entry or <code>null</code> if the heap is empty.
+     */
+    @SuppressWarnings("unchecked")
+    E peek() {
+        return _size > 0 ? (E) _entries[0] : null;
+    }
+
+    /**
+     * Gets an entry by its position in the heap. Positions don't follow the order
+     * of deadlines, so the method is used only to visit all entries.
+     *
+     * @param index a position of the entry.
+     * @return the entry at the given position.
+     */
+    @SuppressWarnings("unchecked")
+    E get(int index) {
+        if (index < 0 || index >= _size)
+            throw new IndexOutOfBoundsException("Index " + index + " is out of range 0.." + _size);
+
+        return (E) _entries[index];
+    }
+
+    /**
+     * Removes the entry with the earliest deadline.
+     *
+     * @return the removed entry or <code>null</code> if the heap is empty.
+     */
+    E poll() {
+        E entry = peek();
+        if (entry != null)
+            removeAt(0);
+        return entry;
+    }
+
+    /**
+     * Removes the entry from the heap.
+     *
+     * @param entry an entry to be removed.
+     * @return true if the entry was scheduled in this heap and false otherwise.
+     */
+    boolean remove(E entry) {
+        int index = entry.heapIndex;
+        if (index < 0 || index >= _size || _entries[index] != entry)
+            return false;
+
+        removeAt(index);
+        return true;
+    }
+
+    /**
+     * Restores the heap order after the entry's deadline has changed.
+     *
+     * @param entry an entry which deadline was changed.
+     */
+    void update(E entry) {
+        int index = entry.heapIndex;
+        if (index < 0 || index >= _size || _entries[index] != entry)
+            return;
+
+        siftUp(index);
+        siftDown(entry.heapIndex);
+    }
+
+    /**
+     * Removes all entries from the heap.
+     */
+    void clear() {
+        for (int index = 0; index < _size; index++)
+            _entries[index].heapIndex = -1;
+
+        _entries = new Entry[MIN_CAPACITY];
+        _size = 0;
+    }
+
+    private void removeAt(int index) {
+        Entry removed = _entries[index];
+        removed.heapIndex = -1;
+
+        _size--;
+        if (index != _size) {
+            Entry last = _entries[_size];
+            _entries[index] = last;
+            last.heapIndex = index;
+            siftUp(index);
+            siftDown(last.heapIndex);
+        }
+        _entries[_size] = null;
+
+        if (_entries.length > MIN_CAPACITY && _size < (_entries.length >> 2))
+            _entries = Arrays.copyOf(_entries, _entries.length >> 1);
+    }
+
+    private void siftUp(int index) {
+        Entry entry = _entries[index];
+        long deadline = entry.getDeadline();
+
+        while (index > 0) {
+            int parentIndex = (index - 1) >>> 1;
+            Entry parent = _entries[parentIndex];
+            if (parent.getDeadline() <= deadline)
+                break;
+
+            _entries[index] = parent;
+            parent.heapIndex = index;
+            index = parentIndex;
+        }
+
+        _entries[index] = entry;
+        entry.heapIndex = index;
+    }
+
+    private void siftDown(int index) {
+        Entry entry = _entries[index];
+        long deadline = entry.getDeadline();
+        int half = _size >>> 1;
+
+        while (index < half) {
+            int childIndex = (index << 1) + 1;
+            Entry child = _entries[childIndex];
+            int rightIndex = childIndex + 1;
+            if (rightIndex < _size && _entries[rightIndex].getDeadline() < child.getDeadline()) {
+                childIndex = rightIndex;
+                child = _entries[childIndex];
+            }
+
+            if (deadline <= child.getDeadline())
+                break;
+
+            _entries[index] = child;
+            child.heapIndex = index;
+            index = childIndex;
+        }
+
+        _entries[index] = entry;
+        entry.heapIndex = index;
+    }
+}
@@ -0,0 +1,1295 @@
+package org.pipservices3.messaging.queues;
+
+import org.pipservices3.commons.config.ConfigParams;
+import org.pipservices3.commons.errors.ApplicationException;
+import org.pipservices3.commons.errors.ConfigException;
+import org.pipservices3.commons.errors.FileException;
+import org.pipservices3.components.auth.CredentialParams;
+import org.pipservices3.components.connect.ConnectionParams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable message queue that stores messages in files on a local disk.
+ * <p>
+ * Messages are appended to memory-mapped log segments, so sending and receiving use sequential I/O
+ * without copying data through system calls. A small index file keeps the position of the last
+ * acknowledged message and the position of the last consumed message. Messages are acknowledged
+ * by {@link #complete(MessageEnvelope)} or {@link #moveToDeadLetter(MessageEnvelope)}.
+ * Messages acknowledged out of order are tracked by a bitmap of their segment, so segments
+ * with only acknowledged messages are deleted even when an older message is still locked.
+ * The index is updated when the acknowledged position moves, not on every received message.
+ * <p>
+ * When the queue is opened it recovers all messages after the acknowledged position,
+ * including messages that were received but not acknowledged before the queue was closed or the
+ * process crashed. The queue guarantees at-least-once delivery: messages completed out of order
+ * after the acknowledged position can be delivered again after restart.
+ * <p>
+ * By default changes are written to disk by the operating system. Set <code>options.sync</code>
+ * to force every change to disk at the cost of throughput.
+ * <p>
+ * ### Configuration parameters ###
+ * <ul>
+ * <li>name:                        name of the message queue
+ * <li>path:                        path to the directory with queue files
+ * <li>options:
+ *   <ul>
+ *   <li>segment_size:              size of log segments in bytes (default: 64 MB)
+ *   <li>sync:                      true to force every change to disk (default: false)
+ *   <li>lock_timeout:              visibility timeout in milliseconds for received messages (default: 30000).
+ *                                  When the lock expires before the message is completed or abandoned,
+ *                                  the message is returned back to the queue.
+ *   <li>listen_interval:           timeout in milliseconds to wait for messages in listen loop (default: 1000)
+ *   </ul>
+ * </ul>
+ * <p>
+ * ### References ###
+ * <ul>
+ * <li>*:logger:*:*:1.0           (optional) <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/log/ILogger.html">ILogger</a> components to pass log messages
+ * <li>*:counters:*:*:1.0         (optional) <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/count/ICounters.html">ICounters</a> components to pass collected measurements
+ * </ul>
+ * <p>
+ * ### Example ###
+ * <pre>
+ * {@code
+ * FileMessageQueue queue = new FileMessageQueue("myqueue");
+ * queue.configure(ConfigParams.fromTuples("path", "./data/myqueue"));
+ * queue.open("123");
+ *
+ * queue.send("123", new MessageEnvelope(null, "mymessage", "ABC"));
+ *
+ * MessageEnvelope message = queue.receive("123", 0);
+ * queue.complete(message);
+ * }
+ * </pre>
+ *
+ * @see MessageQueue
+ * @see MessagingCapabilities
+ */
+public class FileMessageQueue extends MessageQueue {
+    private static final String SEGMENT_EXTENSION = ".log";
+    private static final String INDEX_FILE = "queue.index";
+    private static final int INDEX_MAGIC = 0x50495051;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_SIZE = 64;
+    private static final int INDEX_ACKED_POSITION = 8;
+    private static final int INDEX_CONSUMED_POSITION = 16;
+    /**
+     * Records start with a body length, a checksum and a sequence number.
+     */
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int END_OF_SEGMENT = -1;
+    private static final int MIN_SEGMENT_SIZE = 4096;
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private final ReentrantLock _queueLock = new ReentrantLock();
+    private final Condition _messageAvailable = _queueLock.newCondition();
+    private final List<Segment> _segments = new ArrayList<>();
+    private final ArrayDeque<FileLockedMessage> _returnedMessages = new ArrayDeque<>();
+    private final Map<Long, FileLockedMessage> _lockedMessages = new HashMap<>();
+    private final DeadlineHeap<FileLockedMessage> _lockDeadlines = new DeadlineHeap<>();
+    private final CRC32 _checksum = new CRC32();
+    private Path _directory;
+    private MappedByteBuffer _index;
+    private Cursor _readCursor;
+    private long _nextSequence = 1;
+    private long _ackedSequence = 0;
+    private long _lockTokenSequence = 0;
+    private int _waitingReceivers = 0;
+    private volatile boolean _opened = false;
+
+    /**
+     * Used to stop the listening process.
+     */
+    private volatile boolean _cancel = false;
+    private String _path;
+    private int _segmentSize = 64 * 1024 * 1024;
+    private boolean _sync = false;
+    private long _listenInterval = 1000;
+    private long _lockTimeout = 30000;
+
+    /**
+     * Creates a new instance of the message queue.
+     */
+    public FileMessageQueue() {
+        this(null);
+    }
+
+    /**
+     * Creates a new instance of the message queue.
+     *
+     * @param name (optional) a queue name.
+     * @see MessagingCapabilities
+     */
+    public FileMessageQueue(String name) {
+        super(name);
+
+        _capabilities = new MessagingCapabilities(true, true, true, true, true, true, true, false, true);
+    }
+
+    @Override
+    public void configure(ConfigParams config) {
+        super.configure(config);
+
+        _path = config.getAsStringWithDefault("path", _path);
+        _path = config.getAsStringWithDefault("options.path", _path);
+        long segmentSize = config.getAsLongWithDefault("options.segment_size", _segmentSize);
+        _segmentSize = (int) Math.min(Math.max(segmentSize, MIN_SEGMENT_SIZE), MAX_SEGMENT_SIZE);
+        _sync = config.getAsBooleanWithDefault("options.sync", _sync);
+        _listenInterval = config.getAsLongWithDefault("listen_interval", _listenInterval);
+        _listenInterval = config.getAsLongWithDefault("options.listen_interval", _listenInterval);
+        _lockTimeout = config.getAsLongWithDefault("lock_timeout", _lockTimeout);
+        _lockTimeout = config.getAsLongWithDefault("options.lock_timeout", _lockTimeout);
+    }
+
+    /**
+     * Checks if the component is opened.
+     *
+     * @return true if the component has been opened and false otherwise.
+     */
+    @Override
+    public boolean isOpen() {
+        return _opened;
+    }
+
+    /**
+     * Opens the component and recovers messages stored in queue files.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param connection    connection parameters
+     * @param credential    credential parameters
+     * @throws ApplicationException when queue files can't be opened.
+     */
+    @Override
+    public void openWithParams(String correlationId, ConnectionParams connection, CredentialParams credential)
+            throws ApplicationException {
+        if (_path == null)
+            throw new ConfigException(correlationId, "NO_PATH", "Path to queue files is not set");
+        if (_opened)
+            return;
+
+        long recovered;
+        long unacknowledged;
+
+        _queueLock.lock();
+        try {
+            _directory = Paths.get(_path);
+            Files.createDirectories(_directory);
+
+            long consumedSequence = openIndex();
+            loadSegments(correlationId);
+
+            recovered = countUnreadMessages();
+            unacknowledged = Math.max(Math.min(consumedSequence, _nextSequence - 1) - _ackedSequence, 0);
+            _opened = true;
+        } catch (IOException ex) {
+            closeFiles();
+            throw new FileException(correlationId, "OPEN_FAILED", "Failed to open files of queue " + getName())
+                    .withCause(ex);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        if (recovered > 0) {
+            _logger.info(correlationId, "Recovered %d messages in queue %s, %d of them were received but not acknowledged",
+                    recovered, this, unacknowledged);
+        }
+        _logger.trace(correlationId, "Opened queue %s", this);
+    }
+
+    /**
+     * Closes component and frees used resources. Messages which are locked at this moment
+     * are delivered again after the queue is reopened.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void close(String correlationId) {
+        _queueLock.lock();
+        try {
+            if (_opened)
+                flushFiles();
+
+            _cancel = false;
+            _opened = false;
+            closeFiles();
+            _messageAvailable.signalAll();
+        } finally {
+            _queueLock.unlock();
+        }
+
+        _queueCounters.close();
+        _logger.trace(correlationId, "Closed queue %s", this);
+    }
+
+    /**
+     * Clears component state and deletes all stored messages.
+     * When the queue is closed it deletes queue files in the configured path.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @throws ApplicationException when queue files can't be deleted.
+     */
+    @Override
+    public void clear(String correlationId) throws ApplicationException {
+        _queueLock.lock();
+        try {
+            _lockedMessages.clear();
+            _lockDeadlines.clear();
+            _returnedMessages.clear();
+
+            if (_opened) {
+                // Keep sequences growing, so old records are never taken for new ones
+                for (Segment segment : _segments)
+                    deleteSegment(correlationId, segment);
+                _segments.clear();
+
+                _ackedSequence = _nextSequence - 1;
+                Segment segment = createSegment(_nextSequence, 0);
+                _readCursor = new Cursor(segment, 0, _nextSequence);
+                writeIndex();
+            } else if (_path != null && Files.isDirectory(Paths.get(_path))) {
+                for (Path path : listSegmentFiles(Paths.get(_path)))
+                    Files.deleteIfExists(path);
+                Files.deleteIfExists(Paths.get(_path).resolve(INDEX_FILE));
+            }
+        } catch (IOException ex) {
+            throw new FileException(correlationId, "CLEAR_FAILED", "Failed to clear files of queue " + getName())
+                    .withCause(ex);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        _logger.trace(correlationId, "Cleared queue %s", this);
+    }
+
+    /**
+     * Opens the index file or creates it when it doesn't exist.
+     * The method shall be called while holding the queue lock.
+     *
+     * @return the sequence number of the last consumed message.
+     * @throws IOException when the index can't be opened.
+     */
+    private long openIndex() throws IOException {
+        Path path = _directory.resolve(INDEX_FILE);
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            _index = channel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_SIZE);
+        }
+
+        if (_index.getInt(0) != INDEX_MAGIC) {
+            _index.putInt(0, INDEX_MAGIC);
+            _index.putInt(4, INDEX_VERSION);
+            _index.putLong(INDEX_ACKED_POSITION, 0);
+            _index.putLong(INDEX_CONSUMED_POSITION, 0);
+        } else if (_index.getInt(4) != INDEX_VERSION) {
+            throw new IOException("Unsupported version of queue index " + _index.getInt(4));
+        }
+
+        _ackedSequence = _index.getLong(INDEX_ACKED_POSITION);
+        return _index.getLong(INDEX_CONSUMED_POSITION);
+    }
+
+    /**
+     * Saves acknowledged and consumed positions into the index file.
+     * The method shall be called while holding the queue lock.
+     */
+    private void writeIndex() {
+        _index.putLong(INDEX_ACKED_POSITION, _ackedSequence);
+        _index.putLong(INDEX_CONSUMED_POSITION, _readCursor.sequence - 1);
+        if (_sync)
+            _index.force();
+    }
+
+    /**
+     * Maps existing log segments, finds the end of written records and positions
+     * the read cursor after the last acknowledged message.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @throws IOException when segments can't be read.
+     */
+    private void loadSegments(String correlationId) throws IOException {
+        long nextSequence = -1;
+
+        for (Path path : listSegmentFiles(_directory)) {
+            String fileName = path.getFileName().toString();
+            long firstSequence = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_EXTENSION.length()));
+
+            // Segments after a corrupted record can't be ordered, so they are set aside.
+            // Complete segments may be followed by a gap of deleted acknowledged segments.
+            boolean continued = nextSequence < 0 || firstSequence == nextSequence
+                    || firstSequence > nextSequence && _segments.get(_segments.size() - 1).complete;
+            if (!continued) {
+                _logger.warn(correlationId, "Skipped segment %s of queue %s that doesn't continue previous segment",
+                        fileName, this);
+                Files.move(path, path.resolveSibling(fileName + ".corrupted"), StandardCopyOption.REPLACE_EXISTING);
+                continue;
+            }
+
+            Segment segment = mapSegment(path, firstSequence, 0);
+            addSegment(segment);
+            nextSequence = scanSegment(segment);
+        }
+
+        _nextSequence = Math.max(nextSequence, _ackedSequence + 1);
+
+        if (_segments.isEmpty() || _segments.get(_segments.size() - 1).lastSequence < _nextSequence - 1) {
+            // Records were lost, so continue after the acknowledged position
+            createSegment(_nextSequence, 0);
+        } else {
+            // Erase the rest of a partially written record, so it's never read
+            Segment segment = _segments.get(_segments.size() - 1);
+            if (segment.writePosition + 4 <= segment.buffer.capacity())
+                segment.buffer.putInt(segment.writePosition, 0);
+        }
+
+        Segment firstSegment = _segments.get(0);
+        _readCursor = new Cursor(firstSegment, 0, firstSegment.firstSequence);
+        skipRecords(_readCursor, _ackedSequence);
+        deleteAcknowledgedSegments(correlationId);
+    }
+
+    private static List<Path> listSegmentFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter((path) -> path.getFileName().toString().endsWith(SEGMENT_EXTENSION))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static Segment mapSegment(Path path, long firstSequence, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long mappedSize = size > 0 ? size : Math.min(channel.size(), Integer.MAX_VALUE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+            return new Segment(path, firstSequence, buffer);
+        }
+    }
+
+    /**
+     * Creates a new segment at the end of the log.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param firstSequence the sequence number of the first message in the segment.
+     * @param minSize       the minimum size of the segment to fit a large message.
+     * @return the created segment.
+     * @throws IOException when the segment can't be created.
+     */
+    private Segment createSegment(long firstSequence, int minSize) throws IOException {
+        Path path = _directory.resolve(String.format("%020d%s", firstSequence, SEGMENT_EXTENSION));
+        Files.deleteIfExists(path);
+
+        Segment segment = mapSegment(path, firstSequence, Math.max(_segmentSize, minSize));
+        addSegment(segment);
+        return segment;
+    }
+
+    private void addSegment(Segment segment) {
+        if (!_segments.isEmpty())
+            _segments.get(_segments.size() - 1).next = segment;
+        _segments.add(segment);
+    }
+
+    /**
+     * Finds the end of valid records in a segment.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param segment a segment to scan.
+     * @return the sequence number of the message after the last valid record.
+     */
+    private long scanSegment(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        long sequence = segment.firstSequence;
+
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_SIZE)
+                break;
+            if (buffer.getLong(position + 8) != sequence || buffer.getInt(position + 4) != computeChecksum(buffer, position, length))
+                break;
+
+            position += RECORD_HEADER_SIZE + length;
+            sequence++;
+        }
+
+        segment.complete = position + 4 <= buffer.capacity() && buffer.getInt(position) == END_OF_SEGMENT;
+        segment.writePosition = position;
+        segment.lastSequence = sequence - 1;
+        return sequence;
+    }
+
+    private int computeChecksum(ByteBuffer buffer, int position, int length) {
+        _checksum.reset();
+        _checksum.update(buffer.slice(position + 8, length + 8));
+        return (int) _checksum.getValue();
+    }
+
+    /**
+     * Moves a cursor over records up to the given sequence number without reading them.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param cursor   a cursor to move.
+     * @param sequence the sequence number of the last record to skip.
+     */
+    private void skipRecords(Cursor cursor, long sequence) {
+        while (cursor.sequence <= sequence && cursor.sequence < _nextSequence && moveToRecord(cursor)) {
+            cursor.position += RECORD_HEADER_SIZE + cursor.segment.buffer.getInt(cursor.position);
+            cursor.sequence++;
+        }
+    }
+
+    /**
+     * Moves a cursor to the next segment when it reached the end of the current one.
+     *
+     * @param cursor a cursor to move.
+     * @return true if the cursor points to a record and false otherwise.
+     */
+    private static boolean moveToRecord(Cursor cursor) {
+        while (cursor.position >= cursor.segment.writePosition) {
+            if (cursor.segment.next == null)
+                return false;
+
+            // The next segment may follow a gap of deleted segments
+            cursor.segment = cursor.segment.next;
+            cursor.position = 0;
+            cursor.sequence = cursor.segment.firstSequence;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a message at the cursor and moves the cursor to the next message.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param cursor a cursor to read from.
+     * @return the read message or <code>null</code> if there are no more messages.
+     * @throws IOException when the record can't be decoded.
+     */
+    private FileLockedMessage readRecord(Cursor cursor) throws IOException {
+        if (cursor.sequence >= _nextSequence || !moveToRecord(cursor))
+            return null;
+
+        ByteBuffer buffer = cursor.segment.buffer;
+        int length = buffer.getInt(cursor.position);
+
+        FileLockedMessage lockedMessage = new FileLockedMessage();
+        lockedMessage.sequence = buffer.getLong(cursor.position + 8);
+        lockedMessage.message = MessageEnvelopeCodec.decode(buffer.slice(cursor.position + RECORD_HEADER_SIZE, length));
+
+        cursor.position += RECORD_HEADER_SIZE + length;
+        cursor.sequence = lockedMessage.sequence + 1;
+        return lockedMessage;
+    }
+
+    /**
+     * Appends an encoded message to the end of the log.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param body the encoded message.
+     * @throws IOException when a new segment can't be created.
+     */
+    private void appendRecord(ByteBuffer body) throws IOException {
+        int length = body.remaining();
+        int recordSize = RECORD_HEADER_SIZE + length;
+
+        // Keep space for the end marker after every record
+        Segment segment = _segments.get(_segments.size() - 1);
+        if (recordSize + 4 > segment.buffer.capacity() - segment.writePosition) {
+            segment.buffer.putInt(segment.writePosition, END_OF_SEGMENT);
+            segment.complete = true;
+            segment = createSegment(_nextSequence, recordSize + 4);
+        }
+
+        ByteBuffer buffer = segment.buffer;
+        int position = segment.writePosition;
+        buffer.putLong(position + 8, _nextSequence);
+        buffer.put(position + RECORD_HEADER_SIZE, body, body.position(), length);
+        buffer.putInt(position + 4, computeChecksum(buffer, position, length));
+        buffer.putInt(position + recordSize, 0);
+        // The length is written last, so readers never see a partial record
+        buffer.putInt(position, length);
+
+        segment.writePosition += recordSize;
+        segment.lastSequence = _nextSequence;
+        _nextSequence++;
+    }
+
+    /**
+     * Forces changes of the current segment and the index to disk.
+     * The method shall be called while holding the queue lock.
+     */
+    private void flushFiles() {
+        if (!_segments.isEmpty())
+            _segments.get(_segments.size() - 1).buffer.force();
+        if (_index != null) {
+            writeIndex();
+            _index.force();
+        }
+    }
+
+    /**
+     * Releases references to mapped files. Mapped memory is freed by the garbage collector.
+     * The method shall be called while holding the queue lock.
+     */
+    private void closeFiles() {
+        _segments.clear();
+        _returnedMessages.clear();
+        _lockedMessages.clear();
+        _lockDeadlines.clear();
+        _index = null;
+        _readCursor = null;
+    }
+
+    /**
+     * Marks a message as acknowledged in the bitmap of its segment and moves the acknowledged
+     * position over all acknowledged messages that follow it.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param sequence the sequence number of the acknowledged message.
+     */
+    private void acknowledge(long sequence) {
+        if (sequence <= _ackedSequence)
+            return;
+
+        Segment segment = findSegment(sequence);
+        if (segment == null)
+            return;
+
+        int index = (int) (sequence - segment.firstSequence);
+        if (segment.acknowledged.get(index))
+            return;
+        segment.acknowledged.set(index);
+        segment.acknowledgedCount++;
+
+        if (sequence == _ackedSequence + 1) {
+            moveAckedSequence();
+            writeIndex();
+            deleteAcknowledgedSegments(null);
+        } else if (segment.isAcknowledged()) {
+            deleteAcknowledgedSegments(null);
+        }
+    }
+
+    /**
+     * Finds a segment that contains the message with the given sequence number.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param sequence the sequence number of the message.
+     * @return the found segment or <code>null</code> if the message is not in the log.
+     */
+    private Segment findSegment(long sequence) {
+        int low = 0;
+        int high = _segments.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Segment segment = _segments.get(middle);
+            if (sequence < segment.firstSequence)
+                high = middle - 1;
+            else if (sequence > segment.lastSequence)
+                low = middle + 1;
+            else
+                return segment;
+        }
+        return null;
+    }
+
+    /**
+     * Moves the acknowledged position over acknowledged messages and gaps of deleted segments.
+     * The method shall be called while holding the queue lock.
+     */
+    private void moveAckedSequence() {
+        long sequence = _ackedSequence + 1;
+
+        for (Segment segment : _segments) {
+            if (segment.lastSequence < sequence)
+                continue;
+
+            sequence = Math.max(sequence, segment.firstSequence);
+            int index = segment.acknowledged.nextClearBit((int) (sequence - segment.firstSequence));
+            sequence = segment.firstSequence + index;
+            if (sequence <= segment.lastSequence)
+                break;
+        }
+
+        // Messages that were not read yet are never acknowledged
+        _ackedSequence = Math.min(sequence, _readCursor.sequence) - 1;
+    }
+
+    /**
+     * Deletes segments that contain only acknowledged messages.
+     * Segments at the read position and after it are kept.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    private void deleteAcknowledgedSegments(String correlationId) {
+        for (int index = 0; index < _segments.size() - 1; index++) {
+            Segment segment = _segments.get(index);
+            if (segment == _readCursor.segment)
+                break;
+
+            if (segment.lastSequence > _ackedSequence && !segment.isAcknowledged())
+                continue;
+
+            _segments.remove(index);
+            if (index > 0)
+                _segments.get(index - 1).next = segment.next;
+            deleteSegment(correlationId, segment);
+            index--;
+        }
+    }
+
+    private void deleteSegment(String correlationId, Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException ex) {
+            // Mapped files can't be deleted on some platforms until they are unmapped
+            _logger.warn(correlationId, "Failed to delete segment %s of queue %s: %s",
+                    segment.path.getFileName(), this, ex.getMessage());
+        }
+        segment.buffer = null;
+        segment.next = null;
+    }
+
+    /**
+     * Gets the current number of messages in the queue to be delivered.
+     *
+     * @return number of messages.
+     */
+    @Override
+    public int readMessageCount() {
+        _queueLock.lock();
+        try {
+            if (!_opened)
+                return 0;
+
+            releaseExpiredLocks(System.currentTimeMillis());
+            return (int) Math.min(countUnreadMessages() + _returnedMessages.size(), Integer.MAX_VALUE);
+        } finally {
+            _queueLock.unlock();
+        }
+    }
+
+    /**
+     * Counts messages after the read position, skipping gaps of deleted segments.
+     * The method shall be called while holding the queue lock.
+     *
+     * @return the number of unread messages.
+     */
+    private long countUnreadMessages() {
+        long count = _nextSequence - _readCursor.sequence;
+        for (Segment segment = _readCursor.segment; segment.next != null; segment = segment.next)
+            count -= segment.next.firstSequence - segment.lastSequence - 1;
+        return count;
+    }
+
+    /**
+     * Sends a message into the queue.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param message       a message envelop to be sent.
+     * @throws ApplicationException when the queue is not opened or the message can't be written.
+     */
+    @Override
+    public void send(String correlationId, MessageEnvelope message) throws ApplicationException {
+        if (message == null)
+            return;
+
+        sendBatch(correlationId, List.of(message));
+    }
+
+    /**
+     * Sends a batch of messages into the queue.
+     * Messages are encoded before taking the queue lock and written at once.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param messages      a list of message envelops to be sent.
+     * @throws ApplicationException when the queue is not opened or messages can't be written.
+     */
+    @Override
+    public void sendBatch(String correlationId, List<MessageEnvelope> messages) throws ApplicationException {
+        if (messages == null || messages.isEmpty())
+            return;
+
+        checkOpen(correlationId);
+
+        // Encode messages outside of the lock
+        long sentTime = System.currentTimeMillis();
+        List<ByteBuffer> records = new ArrayList<>(messages.size());
+        try {
+            for (MessageEnvelope message : messages) {
+                if (message == null)
+                    continue;
+
+                compressMessage(message);
+                message.setSentTimeMillis(sentTime);
+                records.add(MessageEnvelopeCodec.encode(message, null));
+            }
+        } catch (IOException ex) {
+            throw new FileException(correlationId, "SERIALIZATION_FAILED",
+                    "Failed to serialize message for queue " + getName()).withCause(ex);
+        }
+
+        _queueLock.lock();
+        try {
+            checkOpen(correlationId);
+
+            int firstSegment = _segments.size() - 1;
+            for (ByteBuffer record : records)
+                appendRecord(record);
+
+            // Written records may span over a few new segments
+            if (_sync) {
+                for (int index = firstSegment; index < _segments.size(); index++)
+                    _segments.get(index).buffer.force();
+            }
+
+            signalReceivers(records.size());
+        } catch (IOException ex) {
+            throw new FileException(correlationId, "WRITE_FAILED", "Failed to write message to queue " + getName())
+                    .withCause(ex);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        _sentMessages.increment(records.size());
+        if (records.size() == 1)
+            _logger.debug(correlationId, "Sent message %s via %s", messages.get(0), this);
+        else
+            _logger.debug(correlationId, "Sent %d messages via %s", records.size(), this);
+    }
+
+    /**
+     * Wakes up threads waiting for messages, not more than one thread per added message.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param messageCount a number of added messages.
+     */
+    private void signalReceivers(int messageCount) {
+        for (int index = Math.min(messageCount, _waitingReceivers); index > 0; index--)
+            _messageAvailable.signal();
+    }
+
+    /**
+     * Returns messages with expired locks back to the queue.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private void releaseExpiredLocks(long now) {
+        int count = 0;
+
+        FileLockedMessage lockedMessage = _lockDeadlines.peek();
+        while (lockedMessage != null && lockedMessage.expirationTime <= now) {
+            _lockDeadlines.poll();
+            _lockedMessages.remove(lockedMessage.lockToken);
+
+            lockedMessage.message.setReference(null);
+            _returnedMessages.addLast(lockedMessage);
+            count++;
+
+            lockedMessage = _lockDeadlines.peek();
+        }
+
+        signalReceivers(count);
+    }
+
+    /**
+     * Removes a lock held by the message.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a locked message.
+     * @return the removed lock or <code>null</code> if the message is not locked.
+     */
+    private FileLockedMessage removeLock(MessageEnvelope message) {
+        if (!(message.getReference() instanceof Long lockToken))
+            return null;
+
+        FileLockedMessage lockedMessage = _lockedMessages.remove(lockToken);
+        if (lockedMessage != null) {
+            _lockDeadlines.remove(lockedMessage);
+            message.setReference(null);
+            _lockHoldTime.recordNanos(lockedMessage.lockTime, System.nanoTime());
+        }
+
+        return lockedMessage;
+    }
+
+    /**
+     * Peeks a single incoming message from the queue without removing it. If there
+     * are no messages available in the queue it returns null.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @return a message envelop object.
+     * @throws ApplicationException when the message can't be read.
+     */
+    @Override
+    public MessageEnvelope peek(String correlationId) throws ApplicationException {
+        List<MessageEnvelope> messages = peekMessages(correlationId, 1);
+        MessageEnvelope message = messages.isEmpty() ? null : messages.get(0);
+
+        if (message != null)
+            _logger.trace(correlationId, "Peeked message %s on %s", message, this);
+
+        return message;
+    }
+
+    /**
+     * Peeks multiple incoming messages from the queue without removing them. If
+     * there are no messages available in the queue it returns an empty list.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param messageCount  a maximum number of messages to peek.
+     * @return a list with messages.
+     * @throws ApplicationException when messages can't be read.
+     */
+    @Override
+    public List<MessageEnvelope> peekBatch(String correlationId, int messageCount) throws ApplicationException {
+        List<MessageEnvelope> messages = peekMessages(correlationId, messageCount);
+
+        _logger.trace(correlationId, "Peeked %d messages on %s", messages.size(), this);
+
+        return messages;
+    }
+
+    private List<MessageEnvelope> peekMessages(String correlationId, int messageCount) throws ApplicationException {
+        List<MessageEnvelope> messages = new ArrayList<>();
+
+        _queueLock.lock();
+        try {
+            if (!_opened)
+                return messages;
+
+            releaseExpiredLocks(System.currentTimeMillis());
+
+            for (FileLockedMessage lockedMessage : _returnedMessages) {
+                if (messages.size() >= messageCount)
+                    break;
+                messages.add(lockedMessage.message);
+            }
+
+            Cursor cursor = _readCursor.copy();
+            while (messages.size() < messageCount) {
+                FileLockedMessage lockedMessage = readRecord(cursor);
+                if (lockedMessage == null)
+                    break;
+                messages.add(lockedMessage.message);
+            }
+        } catch (IOException ex) {
+            throw new FileException(correlationId, "READ_FAILED", "Failed to read message from queue " + getName())
+                    .withCause(ex);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        return messages;
+    }
+
+    /**
+     * Receives an incoming message and removes it from the queue.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param waitTimeout   a timeout in milliseconds to wait for a message to come.
+     * @return a message envelop object.
+     * @throws ApplicationException when the message can't be read.
+     */
+    @Override
+    public MessageEnvelope receive(String correlationId, long waitTimeout) throws ApplicationException {
+        return receive(correlationId, waitTimeout, false);
+    }
+
+    /**
+     * Receives an incoming message and removes it from the queue.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param waitTimeout   a timeout in milliseconds to wait for a message to come.
+     * @param listening     true to stop waiting when listening is cancelled.
+     * @return a message envelop object.
+     * @throws ApplicationException when the message can't be read.
+     */
+    private MessageEnvelope receive(String correlationId, long waitTimeout, boolean listening)
+            throws ApplicationException {
+        MessageEnvelope message;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(waitTimeout, 0));
+
+        _queueLock.lock();
+        try {
+            // Get message the the queue
+            message = pollMessage();
+
+            // Wait until a message comes or timeout expires
+            while (message == null && _opened && (!listening || _cancel) && awaitMessage(deadline)) {
+                // Try to get a message again
+                message = pollMessage();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (IOException ex) {
+            throw new FileException(correlationId, "READ_FAILED", "Failed to read message from queue " + getName())
+                    .withCause(ex);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        // Exit if message was not found
+        if (message == null)
+            return null;
+
+        _receivedMessages.increment();
+        recordDwellTime(message, System.currentTimeMillis());
+        _logger.debug(message.getCorrelationId(), "Received message %s via %s", message, this);
+
+        return message;
+    }
+
+    /**
+     * Waits for a signal about incoming messages. The wait is limited by the given deadline
+     * and by the time when the next message lock expires.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param deadline the time in nanoseconds when waiting shall stop.
+     * @return true if the method waited and false if the deadline has passed.
+     * @throws InterruptedException when the thread was interrupted.
+     */
+    private boolean awaitMessage(long deadline) throws InterruptedException {
+        long remainingTime = deadline - System.nanoTime();
+        if (remainingTime <= 0)
+            return false;
+
+        // Wake up not later than the next lock expires to pick up the returned message
+        FileLockedMessage nextLock = _lockDeadlines.peek();
+        if (nextLock != null) {
+            long lockTime = TimeUnit.MILLISECONDS.toNanos(
+                    Math.max(nextLock.expirationTime - System.currentTimeMillis(), 0) + 1);
+            remainingTime = Math.min(remainingTime, lockTime);
+        }
+
+        _waitingReceivers++;
+        try {
+            _messageAvailable.awaitNanos(remainingTime);
+        } finally {
+            _waitingReceivers--;
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next message from returned messages or from the log and locks it
+     * for the visibility timeout.
+     * The method shall be called while holding the queue lock.
+     *
+     * @return a locked message or <code>null</code> if the queue is empty.
+     * @throws IOException when the message can't be read.
+     */
+    private MessageEnvelope pollMessage() throws IOException {
+        if (!_opened)
+            return null;
+
+        long now = System.currentTimeMillis();
+        releaseExpiredLocks(now);
+
+        // The consumed position is saved together with the acknowledged position
+        FileLockedMessage lockedMessage = _returnedMessages.pollFirst();
+        if (lockedMessage == null) {
+            lockedMessage = readRecord(_readCursor);
+            if (lockedMessage == null)
+                return null;
+        }
+
+        // Generate and set locked token
+        long lockToken = ++_lockTokenSequence;
+        lockedMessage.message.setReference(lockToken);
+        lockedMessage.lockToken = lockToken;
+        lockedMessage.timeout = _lockTimeout;
+        lockedMessage.expirationTime = now + _lockTimeout;
+        lockedMessage.lockTime = System.nanoTime();
+
+        _lockedMessages.put(lockToken, lockedMessage);
+        _lockDeadlines.add(lockedMessage);
+
+        return lockedMessage.message;
+    }
+
+    /**
+     * Renews a lock on a message that makes it invisible from other receivers in
+     * the queue. This method is usually used to extend the message processing time.
+     *
+     * @param message     a message to extend its lock.
+     * @param lockTimeout a locking timeout in milliseconds.
+     */
+    @Override
+    public void renewLock(MessageEnvelope message, long lockTimeout) {
+        if (message == null || message.getReference() == null)
+            return;
+
+        _queueLock.lock();
+        try {
+            // Get message from locked queue
+            FileLockedMessage lockedMessage = message.getReference() instanceof Long lockToken
+                    ? _lockedMessages.get(lockToken) : null;
+
+            // If lock is found, extend the lock
+            if (lockedMessage != null) {
+                lockedMessage.timeout = lockTimeout;
+                lockedMessage.expirationTime = System.currentTimeMillis() + lockTimeout;
+                _lockDeadlines.update(lockedMessage);
+            }
+        } finally {
+            _queueLock.unlock();
+        }
+
+        _logger.trace(message.getCorrelationId(), "Renewed lock for message %s at %s", message, this);
+    }
+
+    /**
+     * Returnes message into the queue and makes it available for all subscribers to
+     * receive it again. This method is usually used to return a message which could
+     * not be processed at the moment to repeat the attempt. Messages that cause
+     * unrecoverable errors shall be removed permanently or/and send to dead letter
+     * queue.
+     *
+     * @param message a message to return.
+     */
+    @Override
+    public void abandon(MessageEnvelope message) {
+        if (message == null || message.getReference() == null)
+            return;
+
+        _queueLock.lock();
+        try {
+            // Remove from locked messages and skip if it absent
+            FileLockedMessage lockedMessage = removeLock(message);
+            if (lockedMessage == null)
+                return;
+
+            // Returned messages are delivered before new ones
+            _returnedMessages.addLast(lockedMessage);
+
+            // Release a thread waiting for messages
+            signalReceivers(1);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        _logger.trace(message.getCorrelationId(), "Abandoned message %s at %s", message, this);
+    }
+
+    /**
+     * Permanently removes a message from the queue. This method is usually used to
+     * remove the message after successful processing.
+     *
+     * @param message a message to remove.
+     */
+    @Override
+    public void complete(MessageEnvelope message) {
+        if (message == null || message.getReference() == null)
+            return;
+
+        _queueLock.lock();
+        try {
+            FileLockedMessage lockedMessage = removeLock(message);
+            if (lockedMessage != null)
+                acknowledge(lockedMessage.sequence);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        _logger.trace(message.getCorrelationId(), "Completed message %s at %s", message, this);
+    }
+
+    /**
+     * Permanently removes a message from the queue and sends it to dead letter
+     * queue.
+     *
+     * @param message a message to be removed.
+     */
+    @Override
+    public void moveToDeadLetter(MessageEnvelope message) {
+        if (message == null || message.getReference() == null)
+            return;
+
+        boolean removed;
+        _queueLock.lock();
+        try {
+            FileLockedMessage lockedMessage = removeLock(message);
+            removed = lockedMessage != null;
+            if (removed)
+                acknowledge(lockedMessage.sequence);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        if (removed)
+            _deadMessages.increment();
+        _logger.trace(message.getCorrelationId(), "Moved to dead message %s at %s", message, this);
+    }
+
+    /**
+     * Listens for incoming messages and blocks the current thread until queue is
+     * closed.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param receiver      a receiver to receive incoming messages.
+     * @see IMessageReceiver
+     * @see #receive(String, long)
+     */
+    @Override
+    public void listen(String correlationId, IMessageReceiver receiver) {
+        if (_cancel) {
+            _logger.error(correlationId, "Already listening queue %s", this);
+            return;
+        }
+
+        _logger.trace(correlationId, "Started listening messages at %s", this);
+
+        _cancel = true;
+
+        MessageListenerPool pool = createListenerPool(receiver);
+        try {
+            while (_cancel) {
+                // Wait for a free worker before taking a message from the queue
+                if (!pool.acquire(_listenInterval))
+                    continue;
+
+                MessageEnvelope message = null;
+                try {
+                    message = receive(correlationId, _listenInterval, true);
+                } catch (ApplicationException ex) {
+                    _logger.error(correlationId, ex, "Failed to receive message from %s", this);
+                }
+
+                if (_cancel && message != null)
+                    pool.dispatch(correlationId, message);
+                else
+                    pool.release();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.close(_listenShutdownTimeout);
+        }
+
+        _logger.trace(correlationId, "Stopped listening messages at %s", this);
+    }
+
+    /**
+     * Ends listening for incoming messages. When this method is call listen()
+     * unblocks the thread and execution continues.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void endListen(String correlationId) {
+        _queueLock.lock();
+        try {
+            _cancel = false;
+
+            // Wake up the listener to let it stop without waiting for the listen interval
+            _messageAvailable.signalAll();
+        } finally {
+            _queueLock.unlock();
+        }
+    }
+
+    /**
+     * Override toString() method, string representation of queue.
+     *
+     * @return queue name
+     */
+    @Override
+    public String toString() {
+        return "[" + getName() + "]";
+    }
+
+    /**
+     * Memory-mapped log segment.
+     */
+    private static final class Segment {
+        final Path path;
+        final long firstSequence;
+        MappedByteBuffer buffer;
+        Segment next;
+        int writePosition;
+        long lastSequence;
+        /**
+         * True when the segment ends with the end marker and the log continues in the next segment.
+         */
+        boolean complete;
+        /**
+         * Messages acknowledged out of order, indexed from the first sequence of the segment.
+         */
+        final BitSet acknowledged = new BitSet();
+        int acknowledgedCount;
+
+        Segment(Path path, long firstSequence, MappedByteBuffer buffer) {
+            this.path = path;
+            this.firstSequence = firstSequence;
+            this.buffer = buffer;
+            this.lastSequence = firstSequence - 1;
+        }
+
+        boolean isAcknowledged() {
+            return acknowledgedCount > lastSequence - firstSequence;
+        }
+    }
+
+    /**
+     * Position of a record in the log.
+     */
+    private static final class Cursor {
+        Segment segment;
+        int position;
+        long sequence;
+
+        Cursor(Segment segment, int position, long sequence) {
+            this.segment = segment;
+            this.position = position;
+            this.sequence = sequence;
+        }
+
+        Cursor copy() {
+            return new Cursor(segment, position, sequence);
+        }
+    }
+
+    /**
+     * Locked message that remembers its position in the log.
+     */
+    private static final class FileLockedMessage extends MessageLock {
+        long sequence;
+    }
+}
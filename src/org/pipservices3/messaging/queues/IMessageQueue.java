@@ -1,8 +1,10 @@
 package org.pipservices3.messaging.queues;
 
 import org.pipservices3.commons.errors.ApplicationException;
+import org.pipservices3.commons.errors.UnsupportedException;
 import org.pipservices3.commons.run.IOpenable;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -48,6 +50,48 @@ public interface IMessageQueue extends IOpenable {
      */
     void send(String correlationId, MessageEnvelope envelop) throws ApplicationException;
 
+    /**
+     * Sends a message into the queue to be delivered after a delay.
+     * The message is not visible to receivers until the delay expires.
+     * <p>
+     * The default implementation sends messages without delay and rejects positive delays,
+     * because the queue can't schedule them.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param envelop       a message envelop to be sent.
+     * @param delay         a delay in milliseconds before the message is delivered.
+     * @throws ApplicationException when error occured or the queue can't deliver delayed messages.
+     * @see #send(String, MessageEnvelope)
+     * @see MessagingCapabilities#canSchedule()
+     */
+    default void send(String correlationId, MessageEnvelope envelop, long delay) throws ApplicationException {
+        if (delay > 0)
+            throw new UnsupportedException(correlationId, "NOT_SUPPORTED",
+                    "Queue " + getName() + " doesn't support delayed delivery");
+
+        send(correlationId, envelop);
+    }
+
+    /**
+     * Sends a batch of messages into the queue.
+     * <p>
+     * The default implementation calls {@link #send(String, MessageEnvelope)} for every message.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param envelops      a list of message envelops to be sent.
+     * @throws ApplicationException when error occured.
+     * @see #send(String, MessageEnvelope)
+     */
+    default void sendBatch(String correlationId, List<MessageEnvelope> envelops) throws ApplicationException {
+        if (envelops == null)
+            return;
+
+        for (MessageEnvelope envelop : envelops)
+            send(correlationId, envelop);
+    }
+
     /**
      * Sends an object into the queue. Before sending the object is converted into
      * JSON string and wrapped in a MessageEnvelope.
@@ -95,6 +139,35 @@ public interface IMessageQueue extends IOpenable {
      */
     MessageEnvelope receive(String correlationId, long waitTimeout) throws ApplicationException;
 
+    /**
+     * Receives a batch of incoming messages and removes them from the queue.
+     * The method returns as soon as at least one message is available
+     * and takes up to the maximum number of messages that are ready.
+     * <p>
+     * The default implementation calls {@link #receive(String, long)} for every message.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param maxCount      a maximum number of messages to receive.
+     * @param waitTimeout   a timeout in milliseconds to wait for a message to come.
+     * @return a list with received messages or an empty list if no messages came before timeout.
+     * @throws ApplicationException when error occured.
+     * @see #receive(String, long)
+     */
+    default List<MessageEnvelope> receiveBatch(String correlationId, int maxCount, long waitTimeout)
+            throws ApplicationException {
+        List<MessageEnvelope> messages = new ArrayList<>();
+        while (messages.size() < maxCount) {
+            // Wait only for the first message and take the rest that are ready
+            MessageEnvelope message = receive(correlationId, messages.isEmpty() ? waitTimeout : 0);
+            if (message == null)
+                break;
+
+            messages.add(message);
+        }
+        return messages;
+    }
+
     /**
      * Renews a lock on a message that makes it invisible from other receivers in
      * the queue. This method is usually used to extend the message processing time.
@@ -135,6 +208,85 @@ public interface IMessageQueue extends IOpenable {
      */
     void moveToDeadLetter(MessageEnvelope message) throws ApplicationException;
 
+    /**
+     * Permanently removes a batch of messages from the queue.
+     * <p>
+     * The default implementation calls {@link #complete(MessageEnvelope)} for every locked message.
+     *
+     * @param messages a list of messages to remove.
+     * @return an array of flags in the order of the messages. A flag is true
+     * when the message was removed and false when it wasn't locked anymore.
+     * @throws ApplicationException when error occured.
+     * @see #complete(MessageEnvelope)
+     */
+    default boolean[] completeBatch(List<MessageEnvelope> messages) throws ApplicationException {
+        if (messages == null)
+            return new boolean[0];
+
+        boolean[] results = new boolean[messages.size()];
+        for (int index = 0; index < results.length; index++) {
+            MessageEnvelope message = messages.get(index);
+            if (message != null && message.getReference() != null) {
+                complete(message);
+                results[index] = true;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns a batch of messages into the queue and makes them available
+     * for all subscribers to receive them again.
+     * <p>
+     * The default implementation calls {@link #abandon(MessageEnvelope)} for every locked message.
+     *
+     * @param messages a list of messages to return.
+     * @return an array of flags in the order of the messages. A flag is true
+     * when the message was returned and false when it wasn't locked anymore.
+     * @throws ApplicationException when error occured.
+     * @see #abandon(MessageEnvelope)
+     */
+    default boolean[] abandonBatch(List<MessageEnvelope> messages) throws ApplicationException {
+        if (messages == null)
+            return new boolean[0];
+
+        boolean[] results = new boolean[messages.size()];
+        for (int index = 0; index < results.length; index++) {
+            MessageEnvelope message = messages.get(index);
+            if (message != null && message.getReference() != null) {
+                abandon(message);
+                results[index] = true;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Permanently removes a batch of messages from the queue and sends them to dead letter queue.
+     * <p>
+     * The default implementation calls {@link #moveToDeadLetter(MessageEnvelope)} for every locked message.
+     *
+     * @param messages a list of messages to be removed.
+     * @return an array of flags in the order of the messages. A flag is true
+     * when the message was removed and false when it wasn't locked anymore.
+     * @throws ApplicationException when error occured.
+     * @see #moveToDeadLetter(MessageEnvelope)
+     */
+    default boolean[] moveToDeadLetterBatch(List<MessageEnvelope> messages) throws ApplicationException {
+        if (messages == null)
+            return new boolean[0];
+
+        boolean[] results = new boolean[messages.size()];
+        for (int index = 0; index < results.length; index++) {
+            MessageEnvelope message = messages.get(index);
+            if (message != null && message.getReference() != null) {
+                moveToDeadLetter(message);
+                results[index] = true;
+            }
+        }
+        return results;
+    }
+
     /**
      * Listens for incoming messages and blocks the current thread until queue is
      * closed.
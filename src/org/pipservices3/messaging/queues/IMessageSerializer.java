@@ -0,0 +1,42 @@
+package org.pipservices3.messaging.queues;
+
+import java.io.IOException;
+
+/**
+ * Interface for serializers that convert message payloads into bytes and back.
+ * <p>
+ * Serializers can be set to message queues with <code>options.serializer</code> configuration parameter
+ * or to individual envelopes with {@link MessageEnvelope#setSerializer(IMessageSerializer)}.
+ *
+ * @see JsonMessageSerializer
+ * @see CborMessageSerializer
+ * @see MessageEnvelope
+ */
+public interface IMessageSerializer {
+    /**
+     * Gets the content type of serialized payloads like "application/json".
+     *
+     * @return the content type.
+     */
+    String getContentType();
+
+    /**
+     * Converts a value into bytes.
+     *
+     * @param value a value to be serialized.
+     * @return the serialized bytes.
+     * @throws IOException when conversion fails.
+     */
+    byte[] serialize(Object value) throws IOException;
+
+    /**
+     * Converts bytes into a value of the given type.
+     *
+     * @param type a type of the value.
+     * @param data bytes to be deserialized.
+     * @param <T>  the class type
+     * @return the deserialized value.
+     * @throws IOException when conversion fails.
+     */
+    <T> T deserialize(Class<T> type, byte[] data) throws IOException;
+}
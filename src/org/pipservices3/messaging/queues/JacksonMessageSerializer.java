@@ -0,0 +1,99 @@
+package org.pipservices3.messaging.queues;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Base class for message serializers implemented with Jackson.
+ * <p>
+ * Readers and writers are created once per class and reused, so repeated conversions
+ * don't look up serializers for the same types again.
+ *
+ * @see IMessageSerializer
+ */
+public abstract class JacksonMessageSerializer implements IMessageSerializer {
+    private final ObjectMapper _mapper;
+    private final String _contentType;
+    private final Map<Class<?>, ObjectReader> _readers = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ObjectWriter> _writers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new instance of the serializer.
+     *
+     * @param mapper      an object mapper to convert values.
+     * @param contentType a content type of serialized payloads.
+     */
+    protected JacksonMessageSerializer(ObjectMapper mapper, String contentType) {
+        _mapper = mapper.findAndRegisterModules()
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        _contentType = contentType;
+    }
+
+    /**
+     * Gets the content type of serialized payloads.
+     *
+     * @return the content type.
+     */
+    @Override
+    public String getContentType() {
+        return _contentType;
+    }
+
+    /**
+     * Gets a cached reader for the given type.
+     *
+     * @param type a type of values to read.
+     * @return the object reader.
+     */
+    protected ObjectReader getReader(Class<?> type) {
+        return _readers.computeIfAbsent(type, _mapper::readerFor);
+    }
+
+    /**
+     * Gets a cached writer for the given type.
+     *
+     * @param type a type of values to write.
+     * @return the object writer.
+     */
+    protected ObjectWriter getWriter(Class<?> type) {
+        return _writers.computeIfAbsent(type, _mapper::writerFor);
+    }
+
+    /**
+     * Converts a value into bytes.
+     *
+     * @param value a value to be serialized.
+     * @return the serialized bytes.
+     * @throws IOException when conversion fails.
+     */
+    @Override
+    public byte[] serialize(Object value) throws IOException {
+        if (value == null)
+            return null;
+
+        return getWriter(value.getClass()).writeValueAsBytes(value);
+    }
+
+    /**
+     * Converts bytes into a value of the given type.
+     *
+     * @param type a type of the value.
+     * @param data bytes to be deserialized.
+     * @param <T>  the class type
+     * @return the deserialized value.
+     * @throws IOException when conversion fails.
+     */
+    @Override
+    public <T> T deserialize(Class<T> type, byte[] data) throws IOException {
+        if (data == null)
+            return null;
+
+        return getReader(type).readValue(data);
+    }
+}
@@ -0,0 +1,64 @@
+package org.pipservices3.messaging.queues;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * Message serializer that converts payloads into JSON.
+ * <p>
+ * It uses the same settings as {@link org.pipservices3.commons.convert.JsonConverter},
+ * so it produces the same JSON, but caches readers and writers per class.
+ *
+ * @see IMessageSerializer
+ */
+public class JsonMessageSerializer extends JacksonMessageSerializer {
+    private static final JsonMessageSerializer _default = new JsonMessageSerializer();
+
+    /**
+     * Creates a new instance of the serializer.
+     */
+    public JsonMessageSerializer() {
+        super(new ObjectMapper(), "application/json");
+    }
+
+    /**
+     * Gets the serializer shared by all envelopes.
+     *
+     * @return the default JSON serializer.
+     */
+    public static JsonMessageSerializer getDefault() {
+        return _default;
+    }
+
+    /**
+     * Converts a value into a JSON string.
+     *
+     * @param value a value to be converted.
+     * @return the JSON string.
+     * @throws JsonProcessingException when conversion fails.
+     */
+    public String toJson(Object value) throws JsonProcessingException {
+        if (value == null)
+            return null;
+
+        return getWriter(value.getClass()).writeValueAsString(value);
+    }
+
+    /**
+     * Converts a JSON string into a value of the given type.
+     *
+     * @param type a type of the value.
+     * @param json a JSON string to be converted.
+     * @param <T>  the class type
+     * @return the converted value.
+     * @throws IOException when conversion fails.
+     */
+    public <T> T fromJson(Class<T> type, String json) throws IOException {
+        if (json == null)
+            return null;
+
+        return getReader(type).readValue(json);
+    }
+}
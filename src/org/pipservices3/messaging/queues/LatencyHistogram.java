@@ -0,0 +1,204 @@
+package org.pipservices3.messaging.queues;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead histogram of latencies measured in a message queue,
+ * like the time messages wait in the queue or the time handlers process them.
+ * <p>
+ * Values are recorded in microseconds into logarithmic buckets with 8 sub-buckets
+ * per power of two, so percentiles are estimated with an error of about 12%.
+ * Recording is lock-free and allocates nothing. The last bucket starts at about 12 days
+ * and values above about 12.7 days (2^40 microseconds) are counted in it.
+ *
+ * @see QueueCounters
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS << 1;
+    private static final int MAX_EXPONENT = 40;
+    // Exponents from SUB_BUCKET_BITS + 1 to MAX_EXPONENT - 1 follow the linear buckets
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final String _metric;
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder _sum = new LongAdder();
+    private volatile LatencyHistogram _target;
+
+    /**
+     * Creates a new instance of the histogram.
+     *
+     * @param metric a name of the measured metric like "dwell_time".
+     */
+    public LatencyHistogram(String metric) {
+        _metric = metric;
+    }
+
+    /**
+     * Gets the name of the measured metric.
+     *
+     * @return the metric name.
+     */
+    public String getMetric() {
+        return _metric;
+    }
+
+    /**
+     * Records a latency value.
+     *
+     * @param micros a latency in microseconds. Negative values are recorded as 0.
+     */
+    public void record(long micros) {
+        LatencyHistogram target = _target;
+        if (target != null) {
+            target.record(micros);
+            return;
+        }
+
+        micros = Math.max(micros, 0);
+        _buckets.incrementAndGet(getBucketIndex(micros));
+        _sum.add(micros);
+    }
+
+    /**
+     * Records a latency measured between two readings of {@link System#nanoTime()}.
+     *
+     * @param startNanos the time when measurement started in nanoseconds.
+     * @param endNanos   the time when measurement ended in nanoseconds.
+     */
+    public void recordNanos(long startNanos, long endNanos) {
+        record((endNanos - startNanos) / 1000);
+    }
+
+    /**
+     * Passes values recorded after this call to another histogram instead of this one.
+     * It lets parts of a queue, like shards, collect latencies of the whole queue.
+     *
+     * @param target a histogram to record values or <code>null</code> to record them here.
+     */
+    void redirectTo(LatencyHistogram target) {
+        _target = target;
+    }
+
+    /**
+     * Takes a snapshot of all values recorded so far.
+     *
+     * @return a snapshot of the histogram.
+     */
+    public Snapshot getSnapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int index = 0; index < BUCKET_COUNT; index++)
+            counts[index] = _buckets.get(index);
+
+        return new Snapshot(counts, _sum.sum());
+    }
+
+    private static int getBucketIndex(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT)
+            return BUCKET_COUNT - 1;
+
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long getBucketUpperBound(int index) {
+        if (index < LINEAR_BUCKETS)
+            return index;
+
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long lowerBound = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Immutable snapshot of recorded latencies. All values are returned in milliseconds.
+     */
+    public static final class Snapshot {
+        private final long[] _counts;
+        private final long _sum;
+        private final long _count;
+
+        private Snapshot(long[] counts, long sum) {
+            _counts = counts;
+            _sum = sum;
+
+            long count = 0;
+            for (long bucketCount : counts)
+                count += bucketCount;
+            _count = count;
+        }
+
+        /**
+         * Gets the number of recorded values.
+         *
+         * @return the number of values.
+         */
+        public long getCount() {
+            return _count;
+        }
+
+        /**
+         * Gets the average of recorded values.
+         *
+         * @return the average latency in milliseconds or 0 if nothing was recorded.
+         */
+        public double getMean() {
+            return _count > 0 ? _sum / 1000.0 / _count : 0;
+        }
+
+        /**
+         * Gets the estimated maximum of recorded values.
+         *
+         * @return the maximum latency in milliseconds or 0 if nothing was recorded.
+         */
+        public double getMax() {
+            return getPercentile(100);
+        }
+
+        /**
+         * Gets the estimated percentile of recorded values.
+         *
+         * @param percentile a percentile from 0 to 100 like 50 for median or 99.
+         * @return the latency in milliseconds that the given percent of values don't exceed.
+         */
+        public double getPercentile(double percentile) {
+            if (_count == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * _count);
+            rank = Math.max(rank, 1);
+
+            long count = 0;
+            for (int index = 0; index < _counts.length; index++) {
+                count += _counts[index];
+                if (count >= rank)
+                    return getBucketUpperBound(index) / 1000.0;
+            }
+            return getBucketUpperBound(_counts.length - 1) / 1000.0;
+        }
+
+        /**
+         * Gets values recorded after the previous snapshot was taken.
+         *
+         * @param previous a previous snapshot of the same histogram.
+         * @return a snapshot with values recorded between the two snapshots.
+         */
+        public Snapshot since(Snapshot previous) {
+            if (previous == null)
+                return this;
+
+            long[] counts = new long[_counts.length];
+            for (int index = 0; index < counts.length; index++)
+                counts[index] = _counts[index] - previous._counts[index];
+
+            return new Snapshot(counts, _sum - previous._sum);
+        }
+    }
+}
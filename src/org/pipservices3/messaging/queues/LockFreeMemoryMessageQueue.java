@@ -0,0 +1,609 @@
+package org.pipservices3.messaging.queues;
+
+import org.pipservices3.commons.config.ConfigParams;
+import org.pipservices3.components.auth.CredentialParams;
+import org.pipservices3.components.connect.ConnectionParams;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Message queue that sends and receives messages within the same process by using
+ * non-blocking concurrent data structures.
+ * <p>
+ * Unlike {@link MemoryMessageQueue} that guards all operations with a single lock,
+ * this queue keeps pending messages in a lock-free linked queue and in-flight messages
+ * in concurrent maps, so producers and consumers on many threads do not contend
+ * on a single monitor. Blocked receivers are parked on a semaphore that counts pending messages.
+ * <p>
+ * Every received message holds a reference to its current immutable lock deadline.
+ * Completing, abandoning, renewing or expiring the lock swaps that reference with compare-and-set,
+ * so exactly one thread settles a message and no monitors are held, which also keeps
+ * virtual threads from being pinned.
+ * <p>
+ * ### Configuration parameters ###
+ * <ul>
+ * <li>name:                        name of the message queue
+ * <li>options:
+ *   <ul>
+ *   <li>lock_timeout:              visibility timeout in milliseconds for received messages (default: 30000).
+ *                                  When the lock expires before the message is completed or abandoned,
+ *                                  the message is returned back to the queue.
+ *   <li>listen_interval:           timeout in milliseconds to wait for messages in listen loop (default: 1000)
+ *   </ul>
+ * </ul>
+ * <p>
+ * ### References ###
+ * <ul>
+ * <li>*:logger:*:*:1.0           (optional) <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/log/ILogger.html">ILogger</a> components to pass log messages
+ * <li>*:counters:*:*:1.0         (optional) <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/count/ICounters.html">ICounters</a> components to pass collected measurements
+ * </ul>
+ * <p>
+ * ### Example ###
+ * <pre>
+ * {@code
+ * MessageQueue queue = new LockFreeMemoryMessageQueue("myqueue");
+ *
+ * queue.send("123", new MessageEnvelope(null, "mymessage", "ABC"));
+ *
+ * queue.receive("123", 0);
+ * }
+ * </pre>
+ *
+ * @see MessageQueue
+ * @see MemoryMessageQueue
+ */
+public class LockFreeMemoryMessageQueue extends MessageQueue {
+    private static final Comparator<LockDeadline> DeadlineOrder = Comparator
+            .comparingLong((LockDeadline deadline) -> deadline.expirationTime)
+            .thenComparingLong(deadline -> deadline.sequence);
+
+    private final ConcurrentLinkedQueue<MessageEnvelope> _messages = new ConcurrentLinkedQueue<>();
+    private final Semaphore _messageCount = new Semaphore(0);
+    private final AtomicLong _lockTokenSequence = new AtomicLong();
+    private final AtomicLong _deadlineSequence = new AtomicLong();
+    private final ConcurrentHashMap<Long, AtomicLock> _lockedMessages = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<LockDeadline> _lockDeadlines = new ConcurrentSkipListSet<>(DeadlineOrder);
+    private volatile boolean _opened = false;
+
+    /**
+     * Used to stop the listening process.
+     */
+    private volatile boolean _cancel = false;
+    private long _listenInterval = 1000;
+    private long _lockTimeout = 30000;
+
+    /**
+     * Creates a new instance of the message queue.
+     */
+    public LockFreeMemoryMessageQueue() {
+        this(null);
+    }
+
+    /**
+     * Creates a new instance of the message queue.
+     *
+     * @param name (optional) a queue name.
+     * @see MessagingCapabilities
+     */
+    public LockFreeMemoryMessageQueue(String name) {
+        super(name);
+
+        _capabilities = new MessagingCapabilities(true, true, true, true, true, true, true, false, true);
+        _deferSerialization = true;
+    }
+
+    @Override
+    public void configure(ConfigParams config) {
+        super.configure(config);
+
+        this._listenInterval = config.getAsLongWithDefault("listen_interval", this._listenInterval);
+        this._listenInterval = config.getAsLongWithDefault("options.listen_interval", this._listenInterval);
+        this._lockTimeout = config.getAsLongWithDefault("lock_timeout", this._lockTimeout);
+        this._lockTimeout = config.getAsLongWithDefault("options.lock_timeout", this._lockTimeout);
+    }
+
+    /**
+     * Checks if the component is opened.
+     *
+     * @return true if the component has been opened and false otherwise.
+     */
+    @Override
+    public boolean isOpen() {
+        return _opened;
+    }
+
+    /**
+     * Opens the component with given connection and credential parameters.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param connection    connection parameters
+     * @param credential    credential parameters
+     */
+    @Override
+    protected void openWithParams(String correlationId, ConnectionParams connection, CredentialParams credential) {
+        _logger.trace(correlationId, "Opened queue %s", this);
+        _opened = true;
+    }
+
+    /**
+     * Closes component and frees used resources.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void close(String correlationId) {
+        _cancel = false;
+        _opened = false;
+
+        _queueCounters.close();
+        _logger.trace(correlationId, "Closed queue %s", this);
+    }
+
+    /**
+     * Clears component state.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void clear(String correlationId) {
+        // Take permits first so receivers never find an empty queue after acquiring a permit
+        int count = _messageCount.drainPermits();
+        for (int index = 0; index < count; index++)
+            _messages.poll();
+
+        _lockedMessages.clear();
+        _lockDeadlines.clear();
+
+        _logger.trace(correlationId, "Cleared queue %s", this);
+    }
+
+    /**
+     * Gets the current number of messages in the queue to be delivered.
+     *
+     * @return number of messages.
+     */
+    @Override
+    public int readMessageCount() {
+        releaseExpiredLocks(System.currentTimeMillis());
+        return _messageCount.availablePermits();
+    }
+
+    /**
+     * Sends a message into the queue.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param message       a message envelop to be sent.
+     */
+    @Override
+    public void send(String correlationId, MessageEnvelope message) {
+        if (message == null)
+            return;
+
+        compressMessage(message);
+        message.setSentTimeMillis(System.currentTimeMillis());
+        enqueue(message);
+
+        _sentMessages.increment();
+        _logger.debug(correlationId, "Sent message %s via %s", message, this);
+    }
+
+    /**
+     * Sends a batch of messages into the queue.
+     * All messages are stamped with the same sent time.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param messages      a list of message envelops to be sent.
+     */
+    @Override
+    public void sendBatch(String correlationId, List<MessageEnvelope> messages) {
+        if (messages == null || messages.isEmpty())
+            return;
+
+        int count = 0;
+        long sentTime = System.currentTimeMillis();
+
+        for (MessageEnvelope message : messages) {
+            if (message == null)
+                continue;
+
+            compressMessage(message);
+            message.setSentTimeMillis(sentTime);
+            _messages.offer(message);
+            count++;
+        }
+        _messageCount.release(count);
+
+        _sentMessages.increment(count);
+        _logger.debug(correlationId, "Sent %d messages via %s", count, this);
+    }
+
+    /**
+     * Peeks a single incoming message from the queue without removing it. If there
+     * are no messages available in the queue it returns null.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @return a message envelop object.
+     */
+    @Override
+    public MessageEnvelope peek(String correlationId) {
+        releaseExpiredLocks(System.currentTimeMillis());
+
+        MessageEnvelope message = _messages.peek();
+
+        if (message != null)
+            _logger.trace(correlationId, "Peeked message %s on %s", message, this);
+
+        return message;
+    }
+
+    /**
+     * Peeks multiple incoming messages from the queue without removing them. If
+     * there are no messages available in the queue it returns an empty list.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param messageCount  a maximum number of messages to peek.
+     * @return a list with messages.
+     */
+    @Override
+    public List<MessageEnvelope> peekBatch(String correlationId, int messageCount) {
+        releaseExpiredLocks(System.currentTimeMillis());
+
+        List<MessageEnvelope> messages = new ArrayList<>();
+        Iterator<MessageEnvelope> iterator = _messages.iterator();
+        while (iterator.hasNext() && messages.size() < messageCount)
+            messages.add(iterator.next());
+
+        _logger.trace(correlationId, "Peeked %d messages on %s", messages.size(), this);
+
+        return messages;
+    }
+
+    /**
+     * Receives an incoming message and removes it from the queue.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param waitTimeout   a timeout in milliseconds to wait for a message to come.
+     * @return a message envelop object.
+     */
+    @Override
+    public MessageEnvelope receive(String correlationId, long waitTimeout) {
+        return receive(correlationId, waitTimeout, false);
+    }
+
+    /**
+     * Receives an incoming message and removes it from the queue.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param waitTimeout   a timeout in milliseconds to wait for a message to come.
+     * @param listening     true to stop waiting when listening is cancelled.
+     * @return a message envelop object.
+     */
+    private MessageEnvelope receive(String correlationId, long waitTimeout, boolean listening) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(waitTimeout, 0));
+        boolean acquired;
+
+        try {
+            releaseExpiredLocks(System.currentTimeMillis());
+            acquired = _messageCount.tryAcquire();
+
+            while (!acquired && (!listening || _cancel)) {
+                long remainingTime = deadline - System.nanoTime();
+                if (remainingTime <= 0)
+                    break;
+
+                // Wake up not later than the next lock expires to pick up the returned message
+                LockDeadline nextLock = nextLock();
+                if (nextLock != null) {
+                    long lockTime = TimeUnit.MILLISECONDS.toNanos(
+                            Math.max(nextLock.expirationTime - System.currentTimeMillis(), 0) + 1);
+                    remainingTime = Math.min(remainingTime, lockTime);
+                }
+
+                // Listener wakes up periodically to check if it was cancelled
+                if (listening)
+                    remainingTime = Math.min(remainingTime, TimeUnit.MILLISECONDS.toNanos(_listenInterval));
+
+                acquired = _messageCount.tryAcquire(remainingTime, TimeUnit.NANOSECONDS);
+                if (!acquired) {
+                    releaseExpiredLocks(System.currentTimeMillis());
+                    acquired = _messageCount.tryAcquire();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        // Exit if message was not found
+        if (!acquired)
+            return null;
+
+        // Every permit guarantees that a message is in the queue
+        MessageEnvelope message = _messages.poll();
+        long now = System.currentTimeMillis();
+        lockMessage(message, now);
+
+        _receivedMessages.increment();
+        recordDwellTime(message, now);
+        _logger.debug(message.getCorrelationId(), "Received message %s via %s", message, this);
+
+        return message;
+    }
+
+    private void enqueue(MessageEnvelope message) {
+        _messages.offer(message);
+        _messageCount.release();
+    }
+
+    private void lockMessage(MessageEnvelope message, long now) {
+        // Generate and set locked token
+        long lockToken = _lockTokenSequence.incrementAndGet();
+        message.setReference(lockToken);
+
+        // Add messages to locked messages list
+        AtomicLock lockedMessage = new AtomicLock(message, lockToken);
+        LockDeadline deadline = new LockDeadline(lockedMessage, now + _lockTimeout, _deadlineSequence.incrementAndGet());
+        lockedMessage.deadline.set(deadline);
+
+        _lockedMessages.put(lockToken, lockedMessage);
+        _lockDeadlines.add(deadline);
+    }
+
+    /**
+     * Removes a lock held by the message. Only one thread can remove the lock,
+     * so a message is never settled twice.
+     *
+     * @param message a locked message.
+     * @return the removed lock or <code>null</code> if the message is not locked.
+     */
+    private AtomicLock removeLock(MessageEnvelope message) {
+        if (!(message.getReference() instanceof Long lockToken))
+            return null;
+
+        AtomicLock lockedMessage = _lockedMessages.get(lockToken);
+        if (lockedMessage == null)
+            return null;
+
+        // The thread that clears the deadline owns the message
+        LockDeadline deadline = lockedMessage.deadline.getAndSet(null);
+        if (deadline == null)
+            return null;
+
+        _lockDeadlines.remove(deadline);
+        _lockedMessages.remove(lockToken, lockedMessage);
+        message.setReference(null);
+        _lockHoldTime.recordNanos(lockedMessage.lockTime, System.nanoTime());
+
+        return lockedMessage;
+    }
+
+    /**
+     * Returns messages with expired locks back to the queue.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private void releaseExpiredLocks(long now) {
+        while (true) {
+            LockDeadline deadline = nextLock();
+            if (deadline == null || deadline.expirationTime > now)
+                return;
+
+            _lockDeadlines.remove(deadline);
+
+            // Skip deadlines that were replaced by renewal or settled concurrently
+            AtomicLock lockedMessage = deadline.lock;
+            if (lockedMessage.deadline.compareAndSet(deadline, null)) {
+                _lockedMessages.remove(lockedMessage.lockToken, lockedMessage);
+                lockedMessage.message.setReference(null);
+                enqueue(lockedMessage.message);
+            }
+        }
+    }
+
+    /**
+     * Gets a lock deadline that expires first.
+     *
+     * @return the first deadline or <code>null</code> if no messages are locked.
+     */
+    private LockDeadline nextLock() {
+        // Iterator is used because first() throws when the set is emptied concurrently
+        Iterator<LockDeadline> iterator = _lockDeadlines.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Renews a lock on a message that makes it invisible from other receivers in
+     * the queue. This method is usually used to extend the message processing time.
+     *
+     * @param message     a message to extend its lock.
+     * @param lockTimeout a locking timeout in milliseconds.
+     */
+    @Override
+    public void renewLock(MessageEnvelope message, long lockTimeout) {
+        if (message == null || !(message.getReference() instanceof Long lockToken))
+            return;
+
+        AtomicLock lockedMessage = _lockedMessages.get(lockToken);
+        while (lockedMessage != null) {
+            LockDeadline deadline = lockedMessage.deadline.get();
+            if (deadline == null)
+                break;
+
+            // Replace the deadline. A lock that was settled or expired meanwhile stays released
+            LockDeadline renewedDeadline = new LockDeadline(lockedMessage, System.currentTimeMillis() + lockTimeout,
+                    _deadlineSequence.incrementAndGet());
+            if (lockedMessage.deadline.compareAndSet(deadline, renewedDeadline)) {
+                _lockDeadlines.add(renewedDeadline);
+                _lockDeadlines.remove(deadline);
+                break;
+            }
+        }
+
+        _logger.trace(message.getCorrelationId(), "Renewed lock for message %s at %s", message, this);
+    }
+
+    /**
+     * Returns message into the queue and makes it available for all subscribers to
+     * receive it again. This method is usually used to return a message which could
+     * not be processed at the moment to repeat the attempt. Messages that cause
+     * unrecoverable errors shall be removed permanently or/and send to dead letter
+     * queue.
+     *
+     * @param message a message to return.
+     */
+    @Override
+    public void abandon(MessageEnvelope message) {
+        if (message == null || removeLock(message) == null)
+            return;
+
+        enqueue(message);
+
+        _logger.trace(message.getCorrelationId(), "Abandoned message %s at %s", message, this);
+    }
+
+    /**
+     * Permanently removes a message from the queue. This method is usually used to
+     * remove the message after successful processing.
+     *
+     * @param message a message to remove.
+     */
+    @Override
+    public void complete(MessageEnvelope message) {
+        if (message == null || removeLock(message) == null)
+            return;
+
+        _logger.trace(message.getCorrelationId(), "Completed message %s at %s", message, this);
+    }
+
+    /**
+     * Permanently removes a message from the queue and sends it to dead letter
+     * queue.
+     *
+     * @param message a message to be removed.
+     */
+    @Override
+    public void moveToDeadLetter(MessageEnvelope message) {
+        if (message == null || removeLock(message) == null)
+            return;
+
+        _deadMessages.increment();
+        _logger.trace(message.getCorrelationId(), "Moved to dead message %s at %s", message, this);
+    }
+
+    /**
+     * Listens for incoming messages and blocks the current thread until queue is
+     * closed.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param receiver      a receiver to receive incoming messages.
+     * @see IMessageReceiver
+     * @see #receive(String, long)
+     */
+    @Override
+    public void listen(String correlationId, IMessageReceiver receiver) {
+        if (_cancel) {
+            _logger.error(correlationId, "Already listening queue %s", this);
+            return;
+        }
+
+        _logger.trace(correlationId, "Started listening messages at %s", this);
+
+        _cancel = true;
+
+        MessageListenerPool pool = createListenerPool(receiver);
+        try {
+            while (_cancel) {
+                // Wait for a free worker before taking a message from the queue
+                if (!pool.acquire(_listenInterval))
+                    continue;
+
+                MessageEnvelope message = receive(correlationId, _listenInterval, true);
+
+                if (_cancel && message != null)
+                    pool.dispatch(correlationId, message);
+                else
+                    pool.release();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.close(_listenShutdownTimeout);
+        }
+
+        _logger.trace(correlationId, "Stopped listening messages at %s", this);
+    }
+
+    /**
+     * Ends listening for incoming messages. When this method is call listen()
+     * unblocks the thread and execution continues.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void endListen(String correlationId) {
+        _cancel = false;
+    }
+
+    /**
+     * Override toString() method, string representation of queue.
+     *
+     * @return queue name
+     */
+    @Override
+    public String toString() {
+        return "[" + getName() + "]";
+    }
+
+    /**
+     * Lock of a received message. It references the current deadline of the lock
+     * or <code>null</code> when the message was settled or returned to the queue.
+     */
+    private static final class AtomicLock {
+        final AtomicReference<LockDeadline> deadline = new AtomicReference<>();
+        final MessageEnvelope message;
+        final long lockToken;
+        final long lockTime = System.nanoTime();
+
+        AtomicLock(MessageEnvelope message, long lockToken) {
+            this.message = message;
+            this.lockToken = lockToken;
+        }
+    }
+
+    /**
+     * Immutable deadline of a message lock. Renewing a lock replaces its deadline,
+     * so deadlines never change while they are ordered in the skip list.
+     */
+    private static final class LockDeadline {
+        final AtomicLock lock;
+        final long expirationTime;
+        final long sequence;
+
+        LockDeadline(AtomicLock lock, long expirationTime, long sequence) {
+            this.lock = lock;
+            this.expirationTime = expirationTime;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -1,31 +1,90 @@
 package org.pipservices3.messaging.queues;
 
 import org.pipservices3.commons.config.ConfigParams;
+import org.pipservices3.commons.errors.ApplicationException;
+import org.pipservices3.commons.errors.ConfigException;
+import org.pipservices3.commons.errors.FileException;
+import org.pipservices3.commons.errors.InvalidStateException;
+import org.pipservices3.commons.refer.DependencyResolver;
+import org.pipservices3.commons.refer.IReferences;
+import org.pipservices3.commons.refer.ReferenceException;
 import org.pipservices3.components.auth.CredentialParams;
 import org.pipservices3.components.connect.ConnectionParams;
 
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.temporal.ChronoUnit;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Message queue that sends and receives messages within the same process by using shared memory.
  * <p>
  * This queue is typically used for testing to mock real queues.
  * <p>
+ * Blocking receives wait on a {@link ReentrantLock} condition instead of monitors,
+ * so they do not pin carrier threads when the queue is used from virtual threads.
+ * <p>
  * ### Configuration parameters ###
  * <ul>
  * <li>name:                        name of the message queue
+ * <li>options:
+ *   <ul>
+ *   <li>lock_timeout:              visibility timeout in milliseconds for received messages (default: 30000).
+ *                                  When the lock expires before the message is completed or abandoned,
+ *                                  the message is returned back to the queue.
+ *   <li>listen_interval:           timeout in milliseconds to wait for messages in listen loop (default: 1000)
+ *   <li>max_size:                  maximum number of messages waiting in the queue, 0 for unlimited (default: 0)
+ *   <li>max_bytes:                 maximum total size of string and binary payloads waiting in the queue, 0 for unlimited (default: 0).
+ *                                  Compressed payloads are counted by their compressed size.
+ *   <li>overflow_policy:           what to do with a new message when the queue is full:
+ *                                  block, reject, drop_oldest or drop_newest (default: block)
+ *   <li>send_timeout:              timeout in milliseconds to wait for space in the queue with the block policy (default: 10000)
+ *   <li>priority_lanes:            number of priority lanes from 1 to 64. Messages with higher priority are delivered first,
+ *                                  and messages with the same priority keep FIFO order (default: 1).
+ *                                  The drop_oldest policy drops the oldest message of the lowest priority.
+ *   <li>virtual_threads:           true to listen and process messages on virtual threads when the JDK supports them (default: false)
+ *   <li>journal_path:              path to the directory with the journal to restore the queue after a crash (default: no journal)
+ *   <li>journal_sync_interval:     interval in milliseconds to sync the journal to disk, 0 to sync every operation (default: 100)
+ *   <li>journal_sync_batch:        number of operations that triggers a sync before the interval expires (default: 1000)
+ *   <li>journal_checkpoint_size:   size of the journal in bytes that triggers a checkpoint (default: 64 MB)
+ *   <li>snapshot_path:             path to the directory with the snapshot to restore the queue after a restart (default: no snapshot)
+ *   <li>message_ttl:               time to live in milliseconds of messages sent without expiration time, 0 to keep them (default: 0)
+ *   <li>expiration_interval:       interval in milliseconds to remove expired messages in the background (default: 1000)
+ *   <li>dead_letter_expired:       true to move expired messages to dead letter (default: false)
+ *   <li>max_deliveries:            number of deliveries after which abandoned messages and messages with expired locks
+ *                                  are moved to dead letter, 0 for unlimited (default: 0)
+ *   <li>compression_threshold:     minimum size in bytes of string and binary payloads compressed in the queue, 0 to disable (default: 0)
+ *   </ul>
+ * <li>dependencies:
+ *   <ul>
+ *   <li>dead_letter_queue:         descriptor of another queue that receives dead messages (default: dead messages are dropped)
+ *   </ul>
  * </ul>
  * <p>
+ * Size limits apply to new messages only. Delayed messages stay invisible until they are due.
+ * Expired messages are never delivered and are removed in the background.
+ * Poison and dead messages are sent to the dead letter queue when it is set.
+ * A journal restores the queue after a crash, while a snapshot only survives a clean restart.
+ * <p>
  * ### References ###
  * <ul>
  * <li>*:logger:*:*:1.0           (optional) <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/log/ILogger.html">ILogger</a> components to pass log messages
  * <li>*:counters:*:*:1.0         (optional) <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/count/ICounters.html">ICounters</a> components to pass collected measurements
+ * <li>dead_letter_queue          (optional) <a href="IMessageQueue.html">IMessageQueue</a> to receive dead messages, set by the dependency
  * </ul>
  * <p>
  * ### Example ###
@@ -43,140 +102,1386 @@ import java.util.Map;
  * @see MessagingCapabilities
  */
 public class MemoryMessageQueue extends MessageQueue {
-    private final List<MessageEnvelope> _messages = new ArrayList<>();
-    private int _lockTokenSequence = 0;
-    private final Map<Integer, LockedMessage> _lockedMessages = new HashMap<>();
-    private boolean _opened = false;
+    private PriorityMessageBuffer _messages = new PriorityMessageBuffer(1);
+    private long _lockTokenSequence = 0;
+    private long _lockTokenStep = 1;
+    private final Map<Long, MessageLock> _lockedMessages = new HashMap<>();
+    private final DeadlineHeap<MessageLock> _lockDeadlines = new DeadlineHeap<>();
+    private final DeadlineHeap<ScheduledMessage> _scheduledMessages = new DeadlineHeap<>();
+    private final ReentrantLock _queueLock = new ReentrantLock();
+    private final Condition _messageAvailable = _queueLock.newCondition();
+    private final Condition _spaceAvailable = _queueLock.newCondition();
+    private int _waitingReceivers = 0;
+    private int _waitingSenders = 0;
+    private long _messageBytes = 0;
+    private volatile boolean _opened = false;
+
+    /**
+     * Used to stop the listening process.
+     */
+    private volatile boolean _cancel = false;
+    private long _listenInterval = 1000;
+    private long _lockTimeout = 30000;
+    private int _maxSize = 0;
+    private long _maxBytes = 0;
+    private OverflowPolicy _overflowPolicy = OverflowPolicy.Block;
+    private long _sendTimeout = 10000;
+    private volatile MessageJournal _journal;
+    private String _journalPath;
+    private long _journalSyncInterval = 100;
+    private int _journalSyncBatch = 1000;
+    private long _journalCheckpointSize = 64 * 1024 * 1024;
+    private long _lockTokenOffset = 0;
+    private String _snapshotPath;
+    private long _messageTtl = 0;
+    private long _expirationInterval = 1000;
+    private boolean _deadLetterExpired = false;
+    private long _nextExpirationTime = Long.MAX_VALUE;
+    private ScheduledFuture<?> _expirationTask;
+    private int _maxDeliveries = 0;
+    private final DependencyResolver _dependencyResolver = new DependencyResolver();
+    private volatile IMessageQueue _deadLetterQueue;
+    private ConfigException _dependencyError;
+    /**
+     * Dead messages collected under the queue lock to be sent to the dead letter queue after it is released.
+     */
+    private final ConcurrentLinkedQueue<MessageEnvelope> _deadLetters = new ConcurrentLinkedQueue<>();
+    /**
+     * Dead messages that were not accepted by the dead letter queue yet. They stay in the journal,
+     * checkpoints and snapshots until they are sent. The set is guarded by the queue lock.
+     */
+    private final Set<MessageEnvelope> _unsentDeadLetters = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final QueueCounter _rejectedMessages = _queueCounters.getCounter("rejected_messages");
+    private final QueueCounter _droppedMessages = _queueCounters.getCounter("dropped_messages");
+    private final QueueCounter _expiredMessages = _queueCounters.getCounter("expired_messages");
+
+
+    /**
+     * Creates a new instance of the message queue.
+     */
+    public MemoryMessageQueue() {
+        this(null);
+    }
+
+    /**
+     * Creates a new instance of the message queue.
+     *
+     * @param name (optional) a queue name.
+     * @see MessagingCapabilities
+     */
+    public MemoryMessageQueue(String name) {
+        super(name);
+
+        _capabilities = new MessagingCapabilities(true, true, true, true, true, true, true, false, true, true);
+        _deferSerialization = true;
+    }
+
+    /**
+     * Checks if the component is opened.
+     *
+     * @return true if the component has been opened and false otherwise.
+     */
+    @Override
+    public boolean isOpen() {
+        return _opened;
+    }
+
+    /**
+     * Opens the component with given connection and credential parameters.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param connection    connection parameters
+     * @param credential    credential parameters
+     */
+    @Override
+    public void openWithParams(String correlationId, ConnectionParams connection, CredentialParams credential)
+            throws ApplicationException {
+        if (_dependencyError != null)
+            throw _dependencyError;
+
+        if (_journalPath != null && _journal == null)
+            openJournal(correlationId);
+        else if (_journalPath == null && _snapshotPath != null && !_opened)
+            restoreSnapshot(correlationId);
+
+        _logger.trace(correlationId, "Opened queue %s", this);
+        _opened = true;
+    }
+
+    /**
+     * Opens the journal and restores messages recorded in it.
+     * Sent, completed, abandoned and dead messages are recorded in the journal, and messages
+     * that were received but not completed return to the queue.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @throws ApplicationException when the journal can't be read.
+     */
+    private void openJournal(String correlationId) throws ApplicationException {
+        // Shards of the same queue keep separate journals
+        MessageJournal journal = new MessageJournal(getStorageFile(_journalPath, ".journal"),
+                _journalSyncInterval, _journalSyncBatch, _journalCheckpointSize);
+
+        int count;
+        _queueLock.lock();
+        try {
+            List<MessageEnvelope> messages = journal.open();
+
+            // The journal is the source of the queue state
+            clearMessages();
+            long now = System.currentTimeMillis();
+            for (MessageEnvelope message : messages)
+                restoreMessage(message, now);
+            count = messages.size();
+
+            journal.checkpoint(messages, journal.markCheckpoint());
+            _journal = journal;
+        } catch (IOException ex) {
+            try {
+                journal.close();
+            } catch (IOException closeEx) {
+                // Ignore...
+            }
+            throw new FileException(correlationId, "JOURNAL_FAILED", "Failed to open journal of queue " + getName())
+                    .withCause(ex);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        if (count > 0)
+            _logger.info(correlationId, "Restored %d messages in queue %s from journal", count, this);
+    }
+
+    /**
+     * Gets a file that keeps the queue state in the given directory.
+     *
+     * @param directory a directory with the file.
+     * @param extension an extension of the file.
+     * @return the path to the file.
+     */
+    private Path getStorageFile(String directory, String extension) {
+        // Shards of the same queue keep separate files
+        String fileName = getName() + (_lockTokenStep > 1 ? "-" + _lockTokenOffset : "") + extension;
+        return Paths.get(directory).resolve(fileName);
+    }
+
+    /**
+     * Loads messages saved in the snapshot when the queue was closed.
+     * The snapshot is used only without a journal, and unlike the journal it doesn't survive a crash.
+     * The snapshot is deleted after loading, so its messages are not restored twice.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @throws ApplicationException when the snapshot can't be read.
+     */
+    private void restoreSnapshot(String correlationId) throws ApplicationException {
+        Path path = getStorageFile(_snapshotPath, ".snapshot");
+
+        List<MessageEnvelope> messages;
+        try {
+            messages = MessageSnapshot.read(path);
+        } catch (IOException ex) {
+            throw new FileException(correlationId, "SNAPSHOT_FAILED", "Failed to read snapshot of queue " + getName())
+                    .withCause(ex);
+        }
+        if (messages.isEmpty())
+            return;
+
+        _queueLock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            for (MessageEnvelope message : messages)
+                restoreMessage(message, now);
+            signalReceivers(messages.size());
+        } finally {
+            _queueLock.unlock();
+        }
+
+        deleteSnapshot(correlationId);
+        _logger.info(correlationId, "Restored %d messages in queue %s from snapshot", messages.size(), this);
+    }
+
+    /**
+     * Saves messages into the snapshot and removes them from the queue.
+     * Messages that were received but not completed are saved too, so they return to the queue.
+     * When the snapshot can't be written the messages stay in the queue.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    private void saveSnapshot(String correlationId) {
+        // Locked messages go first as they were received before waiting messages
+        List<MessageLock> lockedMessages = new ArrayList<>(_lockedMessages.values());
+        lockedMessages.sort(Comparator.comparingLong((lockedMessage) -> lockedMessage.lockToken));
+        List<MessageEnvelope> messages = new ArrayList<>(lockedMessages.size() + _messages.size());
+        for (MessageLock lockedMessage : lockedMessages)
+            messages.add(lockedMessage.message);
+        // Dead letters that are still being sent return to the queue after restart
+        messages.addAll(_unsentDeadLetters);
+        addQueuedMessages(messages);
+
+        try {
+            MessageSnapshot.write(getStorageFile(_snapshotPath, ".snapshot"), messages);
+        } catch (IOException ex) {
+            _logger.error(correlationId, ex, "Failed to write snapshot of queue %s", this);
+            return;
+        }
+
+        clearMessages();
+        _spaceAvailable.signalAll();
+
+        if (!messages.isEmpty())
+            _logger.info(correlationId, "Saved %d messages in queue %s to snapshot", messages.size(), this);
+    }
+
+    private void deleteSnapshot(String correlationId) {
+        if (_snapshotPath == null)
+            return;
+
+        try {
+            Files.deleteIfExists(getStorageFile(_snapshotPath, ".snapshot"));
+        } catch (IOException ex) {
+            _logger.error(correlationId, ex, "Failed to delete snapshot of queue %s", this);
+        }
+    }
+
+    /**
+     * Closes component and frees used resources.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void close(String correlationId) {
+        MessageJournal journal;
+        _queueLock.lock();
+        try {
+            _cancel = false;
+            _messageAvailable.signalAll();
+
+            journal = _journal;
+            _journal = null;
+            if (_expirationTask != null) {
+                _expirationTask.cancel(false);
+                _expirationTask = null;
+            }
+            if (_opened && journal == null && _snapshotPath != null)
+                saveSnapshot(correlationId);
+            _opened = false;
+        } finally {
+            _queueLock.unlock();
+        }
+
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                _logger.error(correlationId, ex, "Failed to close journal of queue %s", this);
+            }
+        }
+
+        _queueCounters.close();
+        _logger.trace(correlationId, "Closed queue %s", this);
+    }
+
+    /**
+     * Clears component state.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void clear(String correlationId) {
+        Runnable checkpoint;
+        _queueLock.lock();
+        try {
+            // Clear messages
+            clearMessages();
+            checkpoint = prepareCheckpoint(correlationId);
+            deleteSnapshot(correlationId);
+
+            // Release producers waiting for space
+            _spaceAvailable.signalAll();
+        } finally {
+            _queueLock.unlock();
+        }
+
+        if (checkpoint != null)
+            checkpoint.run();
+
+        _logger.trace(correlationId, "Cleared queue %s", this);
+    }
+
+    /**
+     * Sets references to dependent components.
+     *
+     * @param references references to locate the component dependencies.
+     * @throws ReferenceException when no references found.
+     */
+    @Override
+    public void setReferences(IReferences references) throws ReferenceException {
+        super.setReferences(references);
+
+        // The queue can't be its own dead letter queue
+        _dependencyResolver.setReferences(references);
+        IMessageQueue deadLetterQueue = null;
+        List<IMessageQueue> queues = _dependencyResolver.getOptional(IMessageQueue.class, "dead_letter_queue");
+        if (queues != null) {
+            for (IMessageQueue queue : queues) {
+                if (queue != this) {
+                    deadLetterQueue = queue;
+                    break;
+                }
+            }
+        }
+
+        _deadLetterQueue = deadLetterQueue;
+        _capabilities = new MessagingCapabilities(true, true, true, true, true, true, true, deadLetterQueue != null,
+                true, true);
+    }
+
+    @Override
+    public void configure(ConfigParams config) {
+        super.configure(config);
+
+        this._listenInterval = config.getAsLongWithDefault("listen_interval", this._listenInterval);
+        this._listenInterval = config.getAsLongWithDefault("options.listen_interval", this._listenInterval);
+        this._lockTimeout = config.getAsLongWithDefault("lock_timeout", this._lockTimeout);
+        this._lockTimeout = config.getAsLongWithDefault("options.lock_timeout", this._lockTimeout);
+        this._maxSize = config.getAsIntegerWithDefault("options.max_size", this._maxSize);
+        this._maxBytes = config.getAsLongWithDefault("options.max_bytes", this._maxBytes);
+        this._overflowPolicy = OverflowPolicy.fromString(
+                config.getAsNullableString("options.overflow_policy"), this._overflowPolicy);
+        this._sendTimeout = config.getAsLongWithDefault("options.send_timeout", this._sendTimeout);
+        this._journalPath = config.getAsStringWithDefault("options.journal_path", this._journalPath);
+        this._journalSyncInterval = config.getAsLongWithDefault("options.journal_sync_interval", this._journalSyncInterval);
+        this._journalSyncBatch = config.getAsIntegerWithDefault("options.journal_sync_batch", this._journalSyncBatch);
+        this._journalCheckpointSize = config.getAsLongWithDefault("options.journal_checkpoint_size", this._journalCheckpointSize);
+        this._snapshotPath = config.getAsStringWithDefault("options.snapshot_path", this._snapshotPath);
+        this._messageTtl = config.getAsLongWithDefault("options.message_ttl", this._messageTtl);
+        this._expirationInterval = config.getAsLongWithDefault("options.expiration_interval", this._expirationInterval);
+        this._deadLetterExpired = config.getAsBooleanWithDefault("options.dead_letter_expired", this._deadLetterExpired);
+        this._maxDeliveries = config.getAsIntegerWithDefault("options.max_deliveries", this._maxDeliveries);
+        try {
+            _dependencyResolver.configure(config);
+            _dependencyError = null;
+        } catch (ConfigException ex) {
+            // Configuration errors are reported when the queue is opened
+            _dependencyError = ex;
+        }
+
+        int priorityLanes = config.getAsIntegerWithDefault("options.priority_lanes", _messages.laneCount());
+        priorityLanes = Math.max(1, Math.min(priorityLanes, PriorityMessageBuffer.MAX_LANES));
+        if (priorityLanes != _messages.laneCount())
+            setPriorityLanes(priorityLanes);
+    }
+
+    /**
+     * Changes the number of priority lanes. Waiting messages are moved to the new lanes.
+     *
+     * @param laneCount a number of priority lanes.
+     */
+    private void setPriorityLanes(int laneCount) {
+        _queueLock.lock();
+        try {
+            PriorityMessageBuffer messages = new PriorityMessageBuffer(laneCount);
+            while (!_messages.isEmpty())
+                messages.addLast(_messages.pollFirst());
+            _messages = messages;
+        } finally {
+            _queueLock.unlock();
+        }
+    }
+
+    /**
+     * Sets up generation of lock tokens, so tokens issued by several queues never overlap.
+     * Every issued token modulo the step is equal to the offset.
+     *
+     * @param offset an offset of generated tokens.
+     * @param step   a step between generated tokens.
+     */
+    void setLockTokens(long offset, long step) {
+        _queueLock.lock();
+        try {
+            _lockTokenSequence = offset;
+            _lockTokenOffset = offset;
+            _lockTokenStep = step;
+        } finally {
+            _queueLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the time when the next message returns to the queue because its lock expires
+     * or its delivery time comes.
+     *
+     * @return the time in milliseconds or <code>Long.MAX_VALUE</code> if no messages are locked or scheduled.
+     */
+    long readNextReleaseTime() {
+        _queueLock.lock();
+        try {
+            return getNextReleaseTime();
+        } finally {
+            _queueLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the time when the next message returns to the queue.
+     * The method shall be called while holding the queue lock.
+     *
+     * @return the time in milliseconds or <code>Long.MAX_VALUE</code> if no messages are locked or scheduled.
+     */
+    private long getNextReleaseTime() {
+        MessageLock nextLock = _lockDeadlines.peek();
+        ScheduledMessage nextScheduled = _scheduledMessages.peek();
+        return Math.min(nextLock != null ? nextLock.expirationTime : Long.MAX_VALUE,
+                nextScheduled != null ? nextScheduled.getDeadline() : Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns messages with expired locks and scheduled messages that are due back to the queue.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private void releaseMessages(long now) {
+        releaseExpiredLocks(now);
+        releaseScheduledMessages(now);
+    }
+
+    /**
+     * Moves scheduled messages that are due to the queue. It is called when the queue is accessed,
+     * and waiting receivers wake up at the next due time, so no timer threads are used.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param now the current time in milliseconds.
+     * @return the number of moved messages.
+     */
+    private int releaseScheduledMessages(long now) {
+        int count = 0;
+
+        ScheduledMessage scheduledMessage = _scheduledMessages.peek();
+        while (scheduledMessage != null && scheduledMessage.getDeadline() <= now) {
+            _scheduledMessages.poll();
+            if (scheduledMessage.message.isExpired(now)) {
+                releaseMessage(scheduledMessage.message);
+                expireMessage(scheduledMessage.message);
+            } else {
+                // The message was charged against the limits when it was scheduled
+                addWaitingMessage(scheduledMessage.message);
+                count++;
+            }
+
+            scheduledMessage = _scheduledMessages.peek();
+        }
+
+        // Release threads waiting for messages
+        signalReceivers(count);
+
+        return count;
+    }
+
+    /**
+     * Keeps a message in the heap of scheduled messages until its delivery time,
+     * so it is not visible to receive, peek and listen until it is due.
+     * The message is charged against the queue size limits right away,
+     * so delayed sends can't grow the queue past its limits.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a message to schedule.
+     */
+    private void scheduleMessage(MessageEnvelope message) {
+        chargeMessageSize(message);
+        ScheduledMessage scheduledMessage = new ScheduledMessage(message);
+        _scheduledMessages.add(scheduledMessage);
+
+        // Let a waiting receiver shorten its wait when the message is due earlier than others
+        if (_scheduledMessages.peek() == scheduledMessage)
+            signalReceivers(1);
+    }
+
+    /**
+     * Adds a restored message to the queue or schedules it when it is not due yet.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a restored message.
+     * @param now     the current time in milliseconds.
+     */
+    private void restoreMessage(MessageEnvelope message, long now) {
+        if (message.isExpired(now))
+            expireMessage(message);
+        else if (message.getDeliveryTimeMillis() > now)
+            scheduleMessage(message);
+        else
+            enqueueMessage(message);
+    }
+
+    /**
+     * Adds waiting and scheduled messages to the list in the order they shall be delivered.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param messages a list to add messages to.
+     */
+    private void addQueuedMessages(List<MessageEnvelope> messages) {
+        for (int index = 0; index < _messages.size(); index++)
+            messages.add(_messages.get(index));
+
+        List<MessageEnvelope> scheduledMessages = new ArrayList<>(_scheduledMessages.size());
+        for (int index = 0; index < _scheduledMessages.size(); index++)
+            scheduledMessages.add(_scheduledMessages.get(index).message);
+        scheduledMessages.sort(Comparator.comparingLong(MessageEnvelope::getDeliveryTimeMillis));
+        messages.addAll(scheduledMessages);
+    }
+
+    /**
+     * Removes all waiting, locked and scheduled messages.
+     * The method shall be called while holding the queue lock.
+     */
+    private void clearMessages() {
+        _messages.clear();
+        _messageBytes = 0;
+        _lockedMessages.clear();
+        _lockDeadlines.clear();
+        _scheduledMessages.clear();
+        _unsentDeadLetters.clear();
+        _nextExpirationTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns messages with expired locks back to the queue.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param now the current time in milliseconds.
+     * @return the number of returned messages.
+     */
+    private int releaseExpiredLocks(long now) {
+        int count = 0;
+
+        MessageLock lockedMessage = _lockDeadlines.peek();
+        while (lockedMessage != null && lockedMessage.expirationTime <= now) {
+            _lockDeadlines.poll();
+            _lockedMessages.remove(lockedMessage.lockToken);
+
+            lockedMessage.message.setReference(null);
+            if (isDeliveryLimitReached(lockedMessage.message)) {
+                addDeadLetter(lockedMessage.message);
+            } else {
+                enqueueMessage(lockedMessage.message);
+                count++;
+            }
+
+            lockedMessage = _lockDeadlines.peek();
+        }
+
+        // Release threads waiting for messages
+        signalReceivers(count);
+
+        return count;
+    }
+
+    /**
+     * Removes a lock held by the message.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a locked message.
+     * @return the removed lock or <code>null</code> if the message is not locked.
+     */
+    private MessageLock removeLock(MessageEnvelope message) {
+        if (!(message.getReference() instanceof Long lockToken))
+            return null;
+
+        MessageLock lockedMessage = _lockedMessages.remove(lockToken);
+        if (lockedMessage != null) {
+            _lockDeadlines.remove(lockedMessage);
+            message.setReference(null);
+            _lockHoldTime.recordNanos(lockedMessage.lockTime, System.nanoTime());
+        }
+
+        return lockedMessage;
+    }
+
+    /**
+     * Gets the current number of messages in the queue to be delivered.
+     *
+     * @return number of messages.
+     */
+    @Override
+    public int readMessageCount() {
+        int count;
+        _queueLock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            releaseMessages(now);
+            // Only expired messages at the head are dropped, the rest is left to the background sweep
+            peekLiveMessage(now);
+            count = _messages.size();
+        } finally {
+            _queueLock.unlock();
+        }
+
+        sendDeadLetters();
+        return count;
+    }
+
+    /**
+     * Sends a message into the queue.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param message       a message envelop to be sent.
+     * @throws InvalidStateException when the queue is full and the reject policy or the send timeout
+     *                               of the block policy applies, or when the journal can't be written.
+     *                               Queues without limits and journal never throw it.
+     */
+    @Override
+    public void send(String correlationId, MessageEnvelope message) throws InvalidStateException {
+        if (message == null)
+            return;
+
+        // Compress and encode outside of the lock
+        setExpirationTime(message, System.currentTimeMillis());
+        compressMessage(message);
+        long messageSize = getMessageSize(message);
+        ByteBuffer journalRecord = encodeForJournal(correlationId, message);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(_sendTimeout, 0));
+        boolean scheduled = message.getDeliveryTimeMillis() > System.currentTimeMillis();
+        int dropped = 0;
+        long journalPosition = 0;
+        InvalidStateException error = null;
+
+        _queueLock.lock();
+        try {
+            // Make space for the message when the queue is full
+            dropped = makeSpace(correlationId, messageSize, deadline);
+
+            if (dropped >= 0) {
+                // Set sent time
+                message.setSentTimeMillis(System.currentTimeMillis());
+
+                if (scheduled) {
+                    // Keep the message hidden until it is due
+                    scheduleMessage(message);
+                } else {
+                    // Add message to the queue and release a thread waiting for messages
+                    enqueueMessage(message);
+                    signalReceivers(1);
+                }
+                journalPosition = journalSend(message, journalRecord);
+            }
+        } catch (InvalidStateException ex) {
+            error = ex;
+        } finally {
+            _queueLock.unlock();
+        }
+
+        sendDeadLetters();
+        if (error != null) {
+            _rejectedMessages.increment();
+            throw error;
+        }
+
+        commitJournal(correlationId, journalPosition);
+
+        if (dropped < 0) {
+            _droppedMessages.increment();
+            _logger.debug(correlationId, "Dropped message %s at full queue %s", message, this);
+            return;
+        }
+
+        if (dropped > 0)
+            _droppedMessages.increment(dropped);
+        _sentMessages.increment();
+        _logger.debug(correlationId, "Sent message %s via %s", message, this);
+    }
+
+    /**
+     * Sends a batch of messages into the queue.
+     * All messages are stamped with the same sent time and added to the queue at once.
+     * When the queue is full and the overflow policy rejects a message, messages
+     * before it stay in the queue and the rest of the batch is rejected.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param messages      a list of message envelops to be sent.
+     * @throws InvalidStateException when the queue is full and the reject policy or the send timeout
+     *                               of the block policy applies, or when the journal can't be written.
+     *                               Queues without limits and journal never throw it.
+     */
+    @Override
+    public void sendBatch(String correlationId, List<MessageEnvelope> messages) throws InvalidStateException {
+        if (messages == null || messages.isEmpty())
+            return;
+
+        int count = 0;
+        int dropped = 0;
+        int rejected = 0;
+        InvalidStateException error = null;
+        long sentTime = System.currentTimeMillis();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(_sendTimeout, 0));
+
+        // Compress and encode outside of the lock
+        List<ByteBuffer> journalRecords = new ArrayList<>(messages.size());
+        for (MessageEnvelope message : messages) {
+            if (message != null)
+                setExpirationTime(message, sentTime);
+            compressMessage(message);
+            journalRecords.add(message != null ? encodeForJournal(correlationId, message) : null);
+        }
+
+        long journalPosition = 0;
+        _queueLock.lock();
+        try {
+            for (int index = 0; index < messages.size(); index++) {
+                MessageEnvelope message = messages.get(index);
+                if (message == null)
+                    continue;
+
+                if (error != null) {
+                    rejected++;
+                    continue;
+                }
+
+                try {
+                    int droppedOldest = makeSpace(correlationId, getMessageSize(message), deadline);
+                    if (droppedOldest < 0) {
+                        dropped++;
+                        continue;
+                    }
+                    dropped += droppedOldest;
+                } catch (InvalidStateException ex) {
+                    error = ex;
+                    rejected++;
+                    continue;
+                }
+
+                message.setSentTimeMillis(sentTime);
+                if (message.getDeliveryTimeMillis() > sentTime) {
+                    // Keep the message hidden until it is due
+                    scheduleMessage(message);
+                } else {
+                    enqueueMessage(message);
+
+                    // Let receivers drain the queue while the producer waits for space
+                    if (_overflowPolicy == OverflowPolicy.Block)
+                        signalReceivers(1);
+                }
+                journalPosition = journalSend(message, journalRecords.get(index));
+                count++;
+            }
+
+            // Release threads waiting for messages
+            if (_overflowPolicy != OverflowPolicy.Block)
+                signalReceivers(count);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        sendDeadLetters();
+
+        commitJournal(correlationId, journalPosition);
+
+        if (dropped > 0)
+            _droppedMessages.increment(dropped);
+        if (rejected > 0)
+            _rejectedMessages.increment(rejected);
+        _sentMessages.increment(count);
+        _logger.debug(correlationId, "Sent %d messages via %s", count, this);
+
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Adds a message to the tail of the queue and accounts its size.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a message to be added.
+     */
+    private void enqueueMessage(MessageEnvelope message) {
+        chargeMessageSize(message);
+        addWaitingMessage(message);
+    }
+
+    /**
+     * Adds a message that is already charged against the size limits to the tail of the queue.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a message to be added.
+     */
+    private void addWaitingMessage(MessageEnvelope message) {
+        _messages.addLast(message);
+
+        long expirationTime = message.getExpirationTimeMillis();
+        if (expirationTime != 0 && expirationTime < _nextExpirationTime) {
+            _nextExpirationTime = expirationTime;
+            startExpiration();
+        }
+    }
+
+    /**
+     * Sets the expiration time by the queue time to live when the message doesn't have its own.
+     * The time to live of delayed messages starts at their delivery time.
+     *
+     * @param message a message to be sent.
+     * @param now     the current time in milliseconds.
+     */
+    private void setExpirationTime(MessageEnvelope message, long now) {
+        if (_messageTtl > 0 && message.getExpirationTimeMillis() == 0)
+            message.setExpirationTimeMillis(Math.max(now, message.getDeliveryTimeMillis()) + _messageTtl);
+    }
+
+    /**
+     * Removes a message from the head of the queue discarding expired messages on the way.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param now the current time in milliseconds.
+     * @return the removed message or <code>null</code> if the queue has no live messages.
+     */
+    private MessageEnvelope dequeueLiveMessage(long now) {
+        MessageEnvelope message = dequeueMessage();
+        while (message != null && message.isExpired(now)) {
+            expireMessage(message);
+            message = dequeueMessage();
+        }
+        return message;
+    }
+
+    /**
+     * Gets a message at the head of the queue discarding expired messages on the way.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param now the current time in milliseconds.
+     * @return the first live message or <code>null</code> if the queue has no live messages.
+     */
+    private MessageEnvelope peekLiveMessage(long now) {
+        MessageEnvelope message = _messages.peekFirst();
+        while (message != null && message.isExpired(now)) {
+            expireMessage(dequeueMessage());
+            message = _messages.peekFirst();
+        }
+        return message;
+    }
+
+    /**
+     * Accounts a message that expired and was removed from the queue.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message an expired message.
+     */
+    private void expireMessage(MessageEnvelope message) {
+        _expiredMessages.increment();
+        _logger.trace(message.getCorrelationId(), "Expired message %s at %s", message, this);
+
+        if (_deadLetterExpired) {
+            addDeadLetter(message);
+        } else {
+            journalRemove(message);
+        }
+    }
+
+    /**
+     * Checks if the message was delivered the maximum number of times.
+     *
+     * @param message a message returned to the queue.
+     * @return true if the message shall be moved to dead letter and false otherwise.
+     */
+    private boolean isDeliveryLimitReached(MessageEnvelope message) {
+        return _maxDeliveries > 0 && message.getDeliveryCount() >= _maxDeliveries;
+    }
+
+    /**
+     * Keeps a dead message to be sent to the dead letter queue by {@link #sendDeadLetters()}.
+     * The message stays in the journal until the dead letter queue accepts it.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a dead message.
+     */
+    private void addDeadLetter(MessageEnvelope message) {
+        _unsentDeadLetters.add(message);
+        _deadLetters.add(message);
+    }
+
+    /**
+     * Sends dead messages collected under the queue lock to the dead letter queue.
+     * The method shall be called after the queue lock is released.
+     */
+    private void sendDeadLetters() {
+        MessageEnvelope message;
+        while ((message = _deadLetters.poll()) != null)
+            sendDeadLetter(message);
+    }
+
+    /**
+     * Sends a dead message to the dead letter queue or drops it when the queue has none.
+     * The delivery count is reset, so the dead letter queue delivers the message from scratch.
+     * When the dead letter queue fails, the message returns to this queue and is moved
+     * to dead letter again after its next delivery or expiration.
+     *
+     * @param message a dead message removed from the queue.
+     */
+    private void sendDeadLetter(MessageEnvelope message) {
+        IMessageQueue deadLetterQueue = _deadLetterQueue;
+        if (deadLetterQueue != null) {
+            // The dead letter queue gets a copy, so it can't change the journal sequence or the queued size
+            MessageEnvelope deadLetter = message.copy();
+            deadLetter.setDeliveryCount(0);
+            // Dead letter queues shall not discard expired messages again
+            if (deadLetter.isExpired(System.currentTimeMillis()))
+                deadLetter.setExpirationTimeMillis(0);
+
+            try {
+                deadLetterQueue.send(message.getCorrelationId(), deadLetter);
+            } catch (ApplicationException ex) {
+                returnDeadLetter(message);
+                _logger.error(message.getCorrelationId(), ex, "Failed to send dead message %s from %s, returned it to the queue",
+                        message, this);
+                return;
+            }
+        }
+
+        long journalPosition;
+        _queueLock.lock();
+        try {
+            _unsentDeadLetters.remove(message);
+            journalPosition = journalRemove(message);
+        } finally {
+            _queueLock.unlock();
+        }
+        syncJournal(message.getCorrelationId(), journalPosition);
+
+        _deadMessages.increment();
+        _logger.trace(message.getCorrelationId(), "Moved to dead message %s at %s", message, this);
+    }
+
+    /**
+     * Returns a dead message that the dead letter queue didn't accept back to this queue.
+     * Like abandoned messages it is not limited by the queue size.
+     *
+     * @param message a dead message.
+     */
+    private void returnDeadLetter(MessageEnvelope message) {
+        long journalPosition;
+        _queueLock.lock();
+        try {
+            // The queue was cleared meanwhile
+            if (!_unsentDeadLetters.remove(message))
+                return;
+
+            enqueueMessage(message);
+            journalPosition = journalAbandon(message);
+            signalReceivers(1);
+        } finally {
+            _queueLock.unlock();
+        }
+        syncJournal(message.getCorrelationId(), journalPosition);
+    }
+
+    /**
+     * Removes expired messages from the whole queue. It is called only by the background sweep,
+     * since other paths drop expired messages from the head of the queue.
+     * The queue is scanned only when the earliest known expiration time has passed.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param now the current time in milliseconds.
+     * @return the number of removed messages.
+     */
+    private int removeExpiredMessages(long now) {
+        if (now < _nextExpirationTime)
+            return 0;
+
+        _nextExpirationTime = Long.MAX_VALUE;
+        List<MessageEnvelope> expiredMessages = new ArrayList<>();
+        _messages.removeIf((message) -> {
+            long expirationTime = message.getExpirationTimeMillis();
+            if (expirationTime == 0)
+                return false;
+
+            if (expirationTime > now) {
+                _nextExpirationTime = Math.min(_nextExpirationTime, expirationTime);
+                return false;
+            }
+
+            expiredMessages.add(message);
+            return true;
+        });
+
+        // Journal records may trigger a checkpoint, so they are written after the queue is compacted
+        for (MessageEnvelope message : expiredMessages) {
+            refundMessageSize(message);
+            expireMessage(message);
+        }
+
+        // Release producers waiting for space
+        if (!expiredMessages.isEmpty() && _waitingSenders > 0)
+            _spaceAvailable.signalAll();
+
+        return expiredMessages.size();
+    }
 
     /**
-     * Used to stop the listening process.
+     * Starts removing expired messages in the background.
+     * The method shall be called while holding the queue lock.
      */
-    private boolean _cancel = false;
-    private long _listenInterval = 1000;
+    private void startExpiration() {
+        if (_expirationTask != null || _expirationInterval <= 0)
+            return;
+
+        _expirationTask = QueueThreads.getScheduler().scheduleWithFixedDelay(
+                () -> QueueThreads.getSharedExecutor().execute(this::expireInBackground),
+                _expirationInterval, _expirationInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void expireInBackground() {
+        _queueLock.lock();
+        try {
+            removeExpiredMessages(System.currentTimeMillis());
+
+            // Stop when no messages can expire anymore
+            if (_nextExpirationTime == Long.MAX_VALUE && _expirationTask != null) {
+                _expirationTask.cancel(false);
+                _expirationTask = null;
+            }
+        } finally {
+            _queueLock.unlock();
+        }
 
+        sendDeadLetters();
+    }
 
     /**
-     * Creates a new instance of the message queue.
+     * Removes a message from the head of the queue and releases a producer waiting for space.
+     * The method shall be called while holding the queue lock.
+     *
+     * @return the removed message or <code>null</code> if the queue is empty.
      */
-    public MemoryMessageQueue() {
-        this(null);
+    private MessageEnvelope dequeueMessage() {
+        return releaseMessage(_messages.pollFirst());
     }
 
     /**
-     * Creates a new instance of the message queue.
+     * Removes the oldest message of the lowest priority to make space for a new message.
+     * The method shall be called while holding the queue lock.
      *
-     * @param name (optional) a queue name.
-     * @see MessagingCapabilities
+     * @return the removed message or <code>null</code> if the queue is empty.
      */
-    public MemoryMessageQueue(String name) {
-        super(name);
+    private MessageEnvelope dropOldestMessage() {
+        return releaseMessage(_messages.pollLowest());
+    }
 
-        _capabilities = new MessagingCapabilities(true, true, true, true, true, true, true, false, true);
+    private MessageEnvelope releaseMessage(MessageEnvelope message) {
+        if (message != null) {
+            refundMessageSize(message);
+
+            if (_waitingSenders > 0)
+                _spaceAvailable.signal();
+        }
+        return message;
     }
 
     /**
-     * Checks if the component is opened.
+     * Encodes a message to be recorded in the journal. It is called before taking the queue lock.
      *
-     * @return true if the component has been opened and false otherwise.
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param message       a message to encode.
+     * @return the encoded message or <code>null</code> if the queue has no journal.
+     * @throws InvalidStateException when the message can't be encoded.
      */
-    @Override
-    public boolean isOpen() {
-        return _opened;
+    private ByteBuffer encodeForJournal(String correlationId, MessageEnvelope message) throws InvalidStateException {
+        if (_journal == null)
+            return null;
+
+        // The journal keeps the time when the message was sent
+        message.setSentTimeMillis(System.currentTimeMillis());
+        try {
+            return MessageJournal.encode(message);
+        } catch (IOException ex) {
+            InvalidStateException error = new InvalidStateException(correlationId, "JOURNAL_FAILED",
+                    "Failed to write message " + message + " to journal of queue " + getName());
+            error.withCause(ex);
+            throw error;
+        }
     }
 
     /**
-     * Opens the component with given connection and credential parameters.
+     * Records a sent message in the journal.
+     * The method shall be called while holding the queue lock after the message was added.
+     *
+     * @param message a sent message.
+     * @param record  the message encoded by {@link #encodeForJournal(String, MessageEnvelope)}.
+     * @return the journal position to commit or 0 if the queue has no journal.
+     */
+    private long journalSend(MessageEnvelope message, ByteBuffer record) {
+        if (_journal == null || record == null)
+            return 0;
+
+        long position = _journal.appendSend(message, record);
+        checkpointJournalIfDue();
+        return position;
+    }
+
+    /**
+     * Records a message removed from the queue in the journal.
+     * The method shall be called while holding the queue lock after the message was removed.
+     *
+     * @param message a removed message.
+     * @return the journal position to commit or 0 if the queue has no journal.
+     */
+    private long journalRemove(MessageEnvelope message) {
+        if (_journal == null || message == null)
+            return 0;
+
+        long position = _journal.appendRemove(message);
+        checkpointJournalIfDue();
+        return position;
+    }
+
+    /**
+     * Records a message returned to the queue in the journal.
+     * The method shall be called while holding the queue lock after the message was returned.
+     *
+     * @param message an abandoned message.
+     * @return the journal position to commit or 0 if the queue has no journal.
+     */
+    private long journalAbandon(MessageEnvelope message) {
+        if (_journal == null)
+            return 0;
+
+        long position = _journal.appendAbandon(message);
+        checkpointJournalIfDue();
+        return position;
+    }
+
+    private void checkpointJournalIfDue() {
+        if (!_journal.isCheckpointDue())
+            return;
+
+        // The checkpoint is written in the background, so the queue lock isn't held during disk writes
+        Runnable checkpoint = prepareCheckpoint(null);
+        QueueThreads.getSharedExecutor().execute(checkpoint);
+    }
+
+    /**
+     * Takes a snapshot of messages that are in the queue now to replace the journal.
+     * The method shall be called while holding the queue lock, and the returned task
+     * shall be run after the lock is released.
      *
      * @param correlationId (optional) transaction id to trace execution through
      *                      call chain.
-     * @param connection    connection parameters
-     * @param credential    credential parameters
+     * @return a task that writes the checkpoint or <code>null</code> if the queue has no journal.
      */
-    @Override
-    public void openWithParams(String correlationId, ConnectionParams connection, CredentialParams credential) {
-        _logger.trace(correlationId, "Opened queue %s", this);
-        _opened = true;
+    private Runnable prepareCheckpoint(String correlationId) {
+        MessageJournal journal = _journal;
+        if (journal == null)
+            return null;
+
+        // Locked messages and unsent dead letters go first as they were received before waiting messages
+        List<MessageEnvelope> messages = new ArrayList<>(_lockedMessages.size() + _messages.size());
+        for (MessageLock lockedMessage : _lockedMessages.values())
+            messages.add(lockedMessage.message);
+        messages.addAll(_unsentDeadLetters);
+        messages.sort(Comparator.comparingLong(MessageEnvelope::getJournalSequence));
+        addQueuedMessages(messages);
+        long position = journal.markCheckpoint();
+
+        return () -> {
+            try {
+                journal.checkpoint(messages, position);
+            } catch (IOException ex) {
+                _logger.error(correlationId, ex, "Failed to write checkpoint of journal of queue %s", this);
+            }
+        };
     }
 
     /**
-     * Closes component and frees used resources.
+     * Makes sure a sent message is durable according to the journal sync settings.
+     * A sync interval shares the cost of disk syncs between many operations, but operations
+     * of the last interval can be lost in a crash. With zero interval senders wait for the sync
+     * and concurrent senders share it.
      *
      * @param correlationId (optional) transaction id to trace execution through
      *                      call chain.
+     * @param position      a journal position returned by the journal.
+     * @throws InvalidStateException when the journal can't be written.
      */
-    @Override
-    public void close(String correlationId) {
-        synchronized (_lock) {
-            _cancel = false;
-            _opened = false;
-            _lock.notifyAll();
-        }
+    private void commitJournal(String correlationId, long position) throws InvalidStateException {
+        MessageJournal journal = _journal;
+        if (journal == null || position == 0)
+            return;
 
-        _logger.trace(correlationId, "Closed queue %s", this);
+        try {
+            journal.commit(position);
+        } catch (IOException ex) {
+            InvalidStateException error = new InvalidStateException(correlationId, "JOURNAL_FAILED",
+                    "Failed to write journal of queue " + getName());
+            error.withCause(ex);
+            throw error;
+        }
     }
 
     /**
-     * Clears component state.
+     * Makes sure settled messages are durable according to the journal sync settings.
+     * Errors are logged, since settled messages are delivered again in the worst case.
      *
      * @param correlationId (optional) transaction id to trace execution through
      *                      call chain.
+     * @param position      a journal position returned by the journal.
      */
-    @Override
-    public void clear(String correlationId) {
-        synchronized (_lock) {
-            // Clear messages
-            _messages.clear();
-            _lockedMessages.clear();
+    private void syncJournal(String correlationId, long position) {
+        try {
+            commitJournal(correlationId, position);
+        } catch (InvalidStateException ex) {
+            _logger.error(correlationId, ex, "Failed to write journal of queue %s", this);
         }
+    }
 
-        _logger.trace(correlationId, "Cleared queue %s", this);
+    /**
+     * Charges the payload size of a queued message against the queue size limits.
+     * The charged size is kept with the message, so exactly the same size is refunded
+     * even when the payload is read or replaced while the message is queued.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a queued message.
+     */
+    private void chargeMessageSize(MessageEnvelope message) {
+        long messageSize = getMessageSize(message);
+        message.setQueuedSize(messageSize);
+        _messageBytes += messageSize;
     }
 
-    @Override
-    public void configure(ConfigParams config) {
-        super.configure(config);
+    /**
+     * Refunds the size charged by {@link #chargeMessageSize(MessageEnvelope)} when a message leaves the queue.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a message removed from the queue.
+     */
+    private void refundMessageSize(MessageEnvelope message) {
+        _messageBytes -= message.getQueuedSize();
+        message.setQueuedSize(0);
+    }
 
-        this._listenInterval = config.getAsLongWithDefault("listen_interval", this._listenInterval);
-        this._listenInterval = config.getAsLongWithDefault("options.listen_interval", this._listenInterval);
+    /**
+     * Estimates the size of a message payload. Only string and binary payloads are counted.
+     *
+     * @param message a message to estimate.
+     * @return the payload size.
+     */
+    private static long getMessageSize(MessageEnvelope message) {
+        // Deferred objects are not serialized to measure them
+        Object payload = message.peekMessage();
+        if (payload instanceof byte[] bytes)
+            return bytes.length;
+        if (payload instanceof ByteBuffer buffer)
+            return buffer.remaining();
+        if (payload instanceof CharSequence text)
+            return text.length();
+        return 0;
     }
 
     /**
-     * Gets the current number of messages in the queue to be delivered.
+     * Checks if a new message of the given size doesn't fit into the queue.
+     * The method shall be called while holding the queue lock.
      *
-     * @return number of messages.
+     * @param messageSize a size of the new message.
+     * @return true if the queue is full and false otherwise.
      */
-    @Override
-    public int readMessageCount() {
-        synchronized (_lock) {
-            return _messages.size();
-        }
+    private boolean isFull(long messageSize) {
+        // Scheduled messages take space until they are delivered
+        int messageCount = _messages.size() + _scheduledMessages.size();
+        if (messageCount == 0)
+            return false;
+
+        return (_maxSize > 0 && messageCount >= _maxSize)
+                || (_maxBytes > 0 && _messageBytes + messageSize > _maxBytes);
     }
 
     /**
-     * Sends a message into the queue.
+     * Makes space for a new message according to the overflow policy.
+     * Abandoned messages and messages with expired locks bypass the limits and are always returned.
+     * A message that alone exceeds <code>max_bytes</code> is accepted when the queue is empty.
+     * When only scheduled messages fill the queue, the drop_oldest policy drops the new message.
+     * The method shall be called while holding the queue lock.
      *
      * @param correlationId (optional) transaction id to trace execution through
      *                      call chain.
-     * @param message       a message envelop to be sent.
+     * @param messageSize   a size of the new message.
+     * @param deadline      the time in nanoseconds when waiting for space shall stop.
+     * @return the number of dropped old messages or -1 if the new message shall be dropped.
+     * @throws InvalidStateException when the message is rejected.
      */
-    @Override
-    public void send(String correlationId, MessageEnvelope message) {
-        if (message == null)
-            return;
-
-        synchronized (_lock) {
-            // Set sent time
-            message.setSentTime(ZonedDateTime.now(ZoneOffset.UTC));
+    private int makeSpace(String correlationId, long messageSize, long deadline) throws InvalidStateException {
+        // Unbounded queues never wait, drop or reject messages
+        if (_maxSize <= 0 && _maxBytes <= 0)
+            return 0;
+
+        int dropped = 0;
+
+        // Expired messages at the head make space before any other messages are dropped or rejected.
+        // The whole queue is scanned only by the background sweep, so full sends stay cheap.
+        if (isFull(messageSize))
+            peekLiveMessage(System.currentTimeMillis());
+
+        while (isFull(messageSize)) {
+            switch (_overflowPolicy) {
+                case DropNewest:
+                    return -1;
+                case DropOldest:
+                    // Scheduled messages are not dropped, so the new message is dropped instead
+                    MessageEnvelope oldestMessage = dropOldestMessage();
+                    if (oldestMessage == null)
+                        return -1;
+                    journalRemove(oldestMessage);
+                    dropped++;
+                    break;
+                case Reject:
+                    throw new InvalidStateException(correlationId, "QUEUE_FULL", "Queue " + getName() + " is full");
+                default:
+                    if (!awaitSpace(deadline)) {
+                        throw new InvalidStateException(correlationId, "QUEUE_FULL",
+                                "Queue " + getName() + " is full and timed out waiting for space");
+                    }
+            }
+        }
 
-            // Add message to the queue
-            _messages.add(message);
+        return dropped;
+    }
 
-            // Release threads waiting for messages
-            _lock.notify();
+    /**
+     * Waits for a signal about free space in the queue.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param deadline the time in nanoseconds when waiting shall stop.
+     * @return true if the method waited and false if the deadline has passed or the thread was interrupted.
+     */
+    private boolean awaitSpace(long deadline) {
+        long remainingTime = deadline - System.nanoTime();
+        if (remainingTime <= 0)
+            return false;
+
+        _waitingSenders++;
+        try {
+            _spaceAvailable.awaitNanos(remainingTime);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            _waitingSenders--;
         }
+    }
 
-        _counters.incrementOne("queue." + getName() + ".sent_messages");
-        _logger.debug(correlationId, "Sent message %s via %s", message, this);
+    /**
+     * Wakes up threads waiting for messages, not more than one thread per added message.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param messageCount a number of added messages.
+     */
+    private void signalReceivers(int messageCount) {
+        for (int index = Math.min(messageCount, _waitingReceivers); index > 0; index--)
+            _messageAvailable.signal();
     }
 
     /**
@@ -191,12 +1496,19 @@ public class MemoryMessageQueue extends MessageQueue {
     public MessageEnvelope peek(String correlationId) {
         MessageEnvelope message = null;
 
-        synchronized (_lock) {
+        _queueLock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            releaseMessages(now);
+
             // Pick a message
-            if (_messages.size() > 0)
-                message = _messages.get(0);
+            message = peekLiveMessage(now);
+        } finally {
+            _queueLock.unlock();
         }
 
+        sendDeadLetters();
+
         if (message != null)
             _logger.trace(correlationId, "Peeked message %s on %s", message, this);
 
@@ -216,11 +1528,24 @@ public class MemoryMessageQueue extends MessageQueue {
     public List<MessageEnvelope> peekBatch(String correlationId, int messageCount) {
         List<MessageEnvelope> messages = new ArrayList<>();
 
-        synchronized (_lock) {
-            for (int index = 0; index < _messages.size() && index < messageCount; index++)
-                messages.add(_messages.get(index));
+        _queueLock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            releaseMessages(now);
+            peekLiveMessage(now);
+
+            // Expired messages behind the head are skipped and left for the background removal
+            for (int index = 0; index < _messages.size() && messages.size() < messageCount; index++) {
+                MessageEnvelope message = _messages.get(index);
+                if (!message.isExpired(now))
+                    messages.add(message);
+            }
+        } finally {
+            _queueLock.unlock();
         }
 
+        sendDeadLetters();
+
         _logger.trace(correlationId, "Peeked %d messages on %s", messages.size(), this);
 
         return messages;
@@ -236,60 +1561,194 @@ public class MemoryMessageQueue extends MessageQueue {
      */
     @Override
     public MessageEnvelope receive(String correlationId, long waitTimeout) {
-        MessageEnvelope message = null;
-        long checkIntervalMs = 100;
-        long elapsedTime = 0;
+        return receive(correlationId, waitTimeout, false);
+    }
+
+    /**
+     * Receives an incoming message and removes it from the queue.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param waitTimeout   a timeout in milliseconds to wait for a message to come.
+     * @param listening     true to stop waiting when listening is cancelled.
+     * @return a message envelop object.
+     */
+    private MessageEnvelope receive(String correlationId, long waitTimeout, boolean listening) {
+        MessageEnvelope message;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(waitTimeout, 0));
 
-        synchronized (_lock) {
+        _queueLock.lock();
+        try {
             // Get message the the queue
-            if (_messages.size() > 0) {
-                message = _messages.get(0);
-                _messages.remove(0);
-            }
-        }
+            message = pollMessage();
 
-        while (elapsedTime < waitTimeout && message == null) {
-            synchronized (_lock) {
-                if (message == null) {
-                    try {
-                        // Wait for a while
-                        _lock.wait(checkIntervalMs);
-                    } catch (InterruptedException ex) {
-                        return null;
-                    }
-                }
-            
+            // Wait until a message comes or timeout expires
+            while (message == null && (!listening || _cancel) && awaitMessage(deadline)) {
                 // Try to get a message again
-                if (message == null && _messages.size() > 0) {
-                    message = _messages.get(0);
-                    _messages.remove(0);
-                }
+                message = pollMessage();
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            message = null;
+        } finally {
+            _queueLock.unlock();
         }
 
+        sendDeadLetters();
+
         // Exit if message was not found
         if (message == null)
             return null;
 
-        // Generate and set locked token
-        int lockedToken = _lockTokenSequence++;
-        message.setReference(lockedToken);
+        _receivedMessages.increment();
+        recordDwellTime(message, System.currentTimeMillis());
+        _logger.debug(message.getCorrelationId(), "Received message %s via %s", message, this);
 
-        // Add messages to locked messages list
-        LockedMessage lockedMessage = new LockedMessage();
-        lockedMessage.expirationTime = ZonedDateTime.now().plus(waitTimeout, ChronoUnit.MILLIS);
-        lockedMessage.message = message;
-        lockedMessage.timeout = waitTimeout;
+        return message;
+    }
+
+    /**
+     * Receives a batch of incoming messages and removes them from the queue.
+     * All available messages up to the maximum count are taken and locked at once.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param minCount      a minimum number of messages to wait for.
+     * @param maxCount      a maximum number of messages to receive.
+     * @param waitTimeout   a timeout in milliseconds to wait for messages to come.
+     * @return a list with received messages. It may contain less than the minimum
+     * number of messages if timeout expired.
+     */
+    @Override
+    public List<MessageEnvelope> receiveBatch(String correlationId, int minCount, int maxCount, long waitTimeout) {
+        List<MessageEnvelope> messages = new ArrayList<>();
+        if (maxCount <= 0)
+            return messages;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(waitTimeout, 0));
+
+        _queueLock.lock();
+        try {
+            pollMessages(messages, maxCount);
+
+            // Wait until the minimum number of messages is collected or timeout expires
+            while (messages.size() < Math.min(minCount, maxCount) && awaitMessage(deadline))
+                pollMessages(messages, maxCount);
+        } catch (InterruptedException ex) {
+            // Return already locked messages to the caller
+            Thread.currentThread().interrupt();
+        } finally {
+            _queueLock.unlock();
+        }
 
-        _lockedMessages.put(lockedToken, lockedMessage);
+        sendDeadLetters();
 
+        if (messages.size() > 0) {
+            long now = System.currentTimeMillis();
+            for (MessageEnvelope message : messages)
+                recordDwellTime(message, now);
 
-        _counters.incrementOne("queue." + getName() + ".received_messages");
-        _logger.debug(message.getCorrelationId(), "Received message %s via %s", message, this);
+            _receivedMessages.increment(messages.size());
+            _logger.debug(correlationId, "Received %d messages via %s", messages.size(), this);
+        }
+
+        return messages;
+    }
+
+    /**
+     * Waits for a signal about incoming messages. The wait is limited by the given deadline
+     * and by the time when the next message lock expires or the next scheduled message is due.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param deadline the time in nanoseconds when waiting shall stop.
+     * @return true if the method waited and false if the deadline has passed.
+     * @throws InterruptedException when the thread was interrupted.
+     */
+    private boolean awaitMessage(long deadline) throws InterruptedException {
+        long remainingTime = deadline - System.nanoTime();
+        if (remainingTime <= 0)
+            return false;
+
+        // Wake up not later than the next lock expires or a scheduled message is due
+        long releaseTime = getNextReleaseTime();
+        if (releaseTime != Long.MAX_VALUE) {
+            releaseTime = TimeUnit.MILLISECONDS.toNanos(
+                    Math.max(releaseTime - System.currentTimeMillis(), 0) + 1);
+            remainingTime = Math.min(remainingTime, releaseTime);
+        }
+
+        _waitingReceivers++;
+        try {
+            _messageAvailable.awaitNanos(remainingTime);
+        } finally {
+            _waitingReceivers--;
+        }
+        return true;
+    }
+
+    /**
+     * Removes messages from the head of the queue and locks them for the visibility timeout.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param messages a list to add received messages to.
+     * @param maxCount a maximum number of messages in the list.
+     */
+    private void pollMessages(List<MessageEnvelope> messages, int maxCount) {
+        long now = System.currentTimeMillis();
+        releaseMessages(now);
+
+        while (messages.size() < maxCount) {
+            MessageEnvelope message = dequeueLiveMessage(now);
+            if (message == null)
+                break;
+
+            lockMessage(message, now);
+            messages.add(message);
+        }
+    }
+
+    /**
+     * Removes a message from the head of the queue and locks it for the visibility timeout.
+     * The method shall be called while holding the queue lock.
+     *
+     * @return a locked message or <code>null</code> if the queue is empty.
+     */
+    private MessageEnvelope pollMessage() {
+        long now = System.currentTimeMillis();
+        releaseMessages(now);
+
+        MessageEnvelope message = dequeueLiveMessage(now);
+        if (message != null)
+            lockMessage(message, now);
 
         return message;
     }
 
+    /**
+     * Locks a received message for the visibility timeout and increases its delivery count.
+     * The method shall be called while holding the queue lock.
+     *
+     * @param message a received message.
+     * @param now     the current time in milliseconds.
+     */
+    private void lockMessage(MessageEnvelope message, long now) {
+        // Generate and set locked token
+        long lockToken = _lockTokenSequence += _lockTokenStep;
+        message.setReference(lockToken);
+        message.setDeliveryCount(message.getDeliveryCount() + 1);
+
+        // Add messages to locked messages list
+        MessageLock lockedMessage = new MessageLock();
+        lockedMessage.message = message;
+        lockedMessage.lockToken = lockToken;
+        lockedMessage.timeout = _lockTimeout;
+        lockedMessage.expirationTime = now + _lockTimeout;
+        lockedMessage.lockTime = System.nanoTime();
+
+        _lockedMessages.put(lockToken, lockedMessage);
+        _lockDeadlines.add(lockedMessage);
+    }
+
     /**
      * Renews a lock on a message that makes it invisible from other receivers in
      * the queue. This method is usually used to extend the message processing time.
@@ -302,14 +1761,20 @@ public class MemoryMessageQueue extends MessageQueue {
         if (message == null || message.getReference() == null)
             return;
 
-        synchronized (_lock) {
+        _queueLock.lock();
+        try {
             // Get message from locked queue
-            int lockedToken = (int) message.getReference();
-            LockedMessage lockedMessage = _lockedMessages.get(lockedToken);
+            MessageLock lockedMessage = message.getReference() instanceof Long lockToken
+                    ? _lockedMessages.get(lockToken) : null;
 
             // If lock is found, extend the lock
-            if (lockedMessage != null)
-                lockedMessage.expirationTime = ZonedDateTime.now().plus(lockTimeout, ChronoUnit.MILLIS);
+            if (lockedMessage != null) {
+                lockedMessage.timeout = lockTimeout;
+                lockedMessage.expirationTime = System.currentTimeMillis() + lockTimeout;
+                _lockDeadlines.update(lockedMessage);
+            }
+        } finally {
+            _queueLock.unlock();
         }
 
         _logger.trace(message.getCorrelationId(), "Renewed lock for message %s at %s", message, this);
@@ -329,28 +1794,31 @@ public class MemoryMessageQueue extends MessageQueue {
         if (message == null || message.getReference() == null)
             return;
 
-        synchronized (_lock) {
-            // Get message from locked queue
-            int lockedToken = (int) message.getReference();
-            LockedMessage lockedMessage = _lockedMessages.get(lockedToken);
-            if (lockedMessage != null) {
-                // Remove from locked messages
-                _lockedMessages.remove(lockedToken);
-                message.setReference(null);
+        long journalPosition = 0;
+        _queueLock.lock();
+        try {
+            // Remove from locked messages and skip if it absent
+            if (removeLock(message) == null)
+                return;
 
-                // Skip if it is already expired
-                if (lockedMessage.expirationTime.toInstant().toEpochMilli() <= ZonedDateTime.now().toInstant().toEpochMilli())
-                    return;
+            if (isDeliveryLimitReached(message)) {
+                // Poison messages are not delivered again
+                addDeadLetter(message);
+            } else {
+                // Add back to the queue
+                enqueueMessage(message);
+                journalPosition = journalAbandon(message);
+
+                // Release a thread waiting for messages
+                signalReceivers(1);
             }
-            // Skip if it absent
-            else
-                return;
+        } finally {
+            _queueLock.unlock();
         }
 
+        syncJournal(message.getCorrelationId(), journalPosition);
+        sendDeadLetters();
         _logger.trace(message.getCorrelationId(), "Abandoned message %s at %s", message, this);
-
-        // Add back to the queue
-        send(message.getCorrelationId(), message);
     }
 
     /**
@@ -364,12 +1832,16 @@ public class MemoryMessageQueue extends MessageQueue {
         if (message == null || message.getReference() == null)
             return;
 
-        synchronized (_lock) {
-            int lockKey = (int) message.getReference();
-            _lockedMessages.remove(lockKey);
-            message.setReference(null);
+        long journalPosition = 0;
+        _queueLock.lock();
+        try {
+            if (removeLock(message) != null)
+                journalPosition = journalRemove(message);
+        } finally {
+            _queueLock.unlock();
         }
 
+        syncJournal(message.getCorrelationId(), journalPosition);
         _logger.trace(message.getCorrelationId(), "Completed message %s at %s", message, this);
     }
 
@@ -384,14 +1856,142 @@ public class MemoryMessageQueue extends MessageQueue {
         if (message == null || message.getReference() == null)
             return;
 
-        synchronized (_lock) {
-            int lockKey = (int) message.getReference();
-            _lockedMessages.remove(lockKey);
-            message.setReference(null);
+        _queueLock.lock();
+        try {
+            if (removeLock(message) != null)
+                addDeadLetter(message);
+        } finally {
+            _queueLock.unlock();
         }
 
-        _counters.incrementOne("queue." + getName() + ".dead_messages");
-        _logger.trace(message.getCorrelationId(), "Moved to dead message %s at %s", message, this);
+        sendDeadLetters();
+    }
+
+    /**
+     * Permanently removes a batch of messages from the queue.
+     * All messages are settled under one lock acquisition.
+     *
+     * @param messages a list of messages to remove.
+     * @return an array of flags in the order of the messages. A flag is true
+     * when the message was removed and false when it wasn't locked anymore.
+     */
+    @Override
+    public boolean[] completeBatch(List<MessageEnvelope> messages) {
+        boolean[] results = removeLocks(messages, false);
+
+        _logger.trace(null, "Completed %d messages at %s", countSettled(results), this);
+
+        return results;
+    }
+
+    /**
+     * Returns a batch of messages into the queue and makes them available
+     * for all subscribers to receive them again.
+     * All messages are settled under one lock acquisition.
+     *
+     * @param messages a list of messages to return.
+     * @return an array of flags in the order of the messages. A flag is true
+     * when the message was returned and false when it wasn't locked anymore.
+     */
+    @Override
+    public boolean[] abandonBatch(List<MessageEnvelope> messages) {
+        boolean[] results = removeLocks(messages, true);
+
+        _logger.trace(null, "Abandoned %d messages at %s", countSettled(results), this);
+
+        return results;
+    }
+
+    /**
+     * Permanently removes a batch of messages from the queue and sends them to dead letter queue.
+     * All messages are settled under one lock acquisition.
+     *
+     * @param messages a list of messages to be removed.
+     * @return an array of flags in the order of the messages. A flag is true
+     * when the message was removed and false when it wasn't locked anymore.
+     */
+    @Override
+    public boolean[] moveToDeadLetterBatch(List<MessageEnvelope> messages) {
+        if (messages == null)
+            return new boolean[0];
+
+        boolean[] results = new boolean[messages.size()];
+        int count = 0;
+
+        _queueLock.lock();
+        try {
+            int index = 0;
+            for (MessageEnvelope message : messages) {
+                if (message != null && removeLock(message) != null) {
+                    addDeadLetter(message);
+                    results[index] = true;
+                    count++;
+                }
+                index++;
+            }
+        } finally {
+            _queueLock.unlock();
+        }
+
+        sendDeadLetters();
+        _logger.trace(null, "Moved to dead %d messages at %s", count, this);
+
+        return results;
+    }
+
+    /**
+     * Removes locks held by a batch of messages under one lock acquisition.
+     *
+     * @param messages a list of locked messages.
+     * @param requeue  true to return unlocked messages back to the queue.
+     * @return an array of flags in the order of the messages.
+     */
+    private boolean[] removeLocks(List<MessageEnvelope> messages, boolean requeue) {
+        if (messages == null)
+            return new boolean[0];
+
+        boolean[] results = new boolean[messages.size()];
+        int requeued = 0;
+        long journalPosition = 0;
+
+        _queueLock.lock();
+        try {
+            int index = 0;
+            for (MessageEnvelope message : messages) {
+                if (message != null && removeLock(message) != null) {
+                    results[index] = true;
+
+                    if (requeue && isDeliveryLimitReached(message)) {
+                        addDeadLetter(message);
+                    } else if (requeue) {
+                        enqueueMessage(message);
+                        journalPosition = journalAbandon(message);
+                        requeued++;
+                    } else {
+                        journalPosition = journalRemove(message);
+                    }
+                }
+                index++;
+            }
+
+            // Release threads waiting for messages
+            signalReceivers(requeued);
+        } finally {
+            _queueLock.unlock();
+        }
+
+        syncJournal(null, journalPosition);
+        sendDeadLetters();
+        return results;
+    }
+
+    private static int countSettled(boolean[] results) {
+        int count = 0;
+        for (boolean result : results) {
+            if (result)
+                count++;
+        }
+        return count;
     }
 
     /**
@@ -415,17 +2015,24 @@ public class MemoryMessageQueue extends MessageQueue {
 
         _cancel = true;
 
-        while (_cancel) {
-            MessageEnvelope message = receive(correlationId, _listenInterval);
+        MessageListenerPool pool = createListenerPool(receiver);
+        try {
+            while (_cancel) {
+                // Wait for a free worker before taking a message from the queue
+                if (!pool.acquire(_listenInterval))
+                    continue;
 
-            if (_cancel && message != null) {
-                try {
-                    receiver.receiveMessage(message, this);
-                } catch (Exception ex) {
-                    _logger.error(correlationId, ex, "Failed to process the message");
-                    // await AbandonAsync(message);
-                }
+                MessageEnvelope message = receive(correlationId, _listenInterval, true);
+
+                if (_cancel && message != null)
+                    pool.dispatch(correlationId, message);
+                else
+                    pool.release();
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.close(_listenShutdownTimeout);
         }
 
         _logger.trace(correlationId, "Stopped listening messages at %s", this);
@@ -440,8 +2047,14 @@ public class MemoryMessageQueue extends MessageQueue {
      */
     @Override
     public void endListen(String correlationId) {
-        synchronized (_lock) {
+        _queueLock.lock();
+        try {
             _cancel = false;
+
+            // Wake up the listener to let it stop without waiting for the listen interval
+            _messageAvailable.signalAll();
+        } finally {
+            _queueLock.unlock();
         }
     }
 
@@ -455,4 +2068,20 @@ public class MemoryMessageQueue extends MessageQueue {
         return "[" + getName() + "]";
     }
 
+    /**
+     * Entry of the heap that keeps a message until its delivery time.
+     */
+    private static final class ScheduledMessage extends DeadlineHeap.Entry {
+        private final MessageEnvelope message;
+
+        private ScheduledMessage(MessageEnvelope message) {
+            this.message = message;
+        }
+
+        @Override
+        long getDeadline() {
+            return message.getDeliveryTimeMillis();
+        }
+    }
+
 }
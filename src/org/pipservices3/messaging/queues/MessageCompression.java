@@ -0,0 +1,91 @@
+package org.pipservices3.messaging.queues;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Helper that compresses message payloads with the JDK deflate codec.
+ * <p>
+ * Deflaters and inflaters hold native memory and are expensive to create,
+ * so every thread reuses its own instances.
+ *
+ * @see MessageEnvelope#compressMessage(int, int)
+ */
+final class MessageCompression {
+    /**
+     * The content encoding of payloads compressed by this helper.
+     */
+    static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<Deflater> _deflater = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> _inflater = ThreadLocal.withInitial(Inflater::new);
+
+    private MessageCompression() {
+    }
+
+    /**
+     * Compresses the given bytes.
+     *
+     * @param data  the bytes to compress.
+     * @param level a compression level from 1 (fastest) to 9 (smallest).
+     * @return the compressed bytes or <code>null</code> if compression doesn't reduce the size.
+     */
+    static byte[] deflate(byte[] data, int level) {
+        Deflater deflater = _deflater.get();
+        try {
+            deflater.setLevel(level);
+            deflater.setInput(data);
+            deflater.finish();
+
+            // Stop as soon as the output is not smaller than the input
+            byte[] buffer = new byte[Math.max(data.length / 4, 64)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    if (buffer.length >= data.length)
+                        return null;
+                    buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, data.length));
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+
+            return length < data.length ? Arrays.copyOf(buffer, length) : null;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Decompresses the given bytes.
+     *
+     * @param data the compressed bytes.
+     * @return the original bytes.
+     * @throws DataFormatException when the data is not compressed by {@link #deflate(byte[], int)}.
+     */
+    static byte[] inflate(byte[] data) throws DataFormatException {
+        Inflater inflater = _inflater.get();
+        try {
+            inflater.setInput(data);
+
+            byte[] buffer = new byte[Math.max(data.length * 4, BUFFER_SIZE)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+                int count = inflater.inflate(buffer, length, buffer.length - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Compressed message is truncated");
+                length += count;
+            }
+
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        } finally {
+            inflater.reset();
+        }
+    }
+}
@@ -1,15 +1,24 @@
 package org.pipservices3.messaging.queues;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import org.pipservices3.commons.convert.JsonConverter;
 import org.pipservices3.commons.convert.StringConverter;
 import org.pipservices3.commons.data.IdGenerator;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 
 /**
  * Allows adding additional information to messages. A correlation id, message id, and a message type
@@ -17,12 +26,39 @@ import java.util.Map;
  * <p>
  * Side note: a MessageEnvelope's message is stored as a buffer, so strings are converted
  * using utf8 conversions.
+ * <p>
+ * Binary payloads like Protobuf or Avro messages can be stored as byte arrays or read-only
+ * {@link ByteBuffer}s. They are passed along without copying and without conversion to strings.
+ * The content type tells receivers how to decode them.
+ * <p>
+ * Decoded payloads are cached, so repeated calls of {@link #getMessageAs(Class)} with the same type
+ * return the same object without parsing. Receivers shall not modify returned objects.
+ * <p>
+ * Large string and binary payloads can be compressed by {@link #compressMessage(int, int)}
+ * while they wait in a queue. They are decompressed transparently when the payload is accessed.
+ * <p>
+ * Getters never change the stored payload. Decompressed or serialized payloads and decoded objects
+ * are kept in immutable holders published through volatile fields, so an envelope shared by
+ * several threads after a peek can be read concurrently.
+ * <p>
+ * Compact envelopes created by {@link #createCompact(String, String, Object)} are meant for messages
+ * that stay within the process. They use sequential numeric IDs formatted only when requested
+ * and share instances of message type strings.
  */
 public class MessageEnvelope {
+    private static final int MAX_MESSAGE_TYPES = 1024;
+    private static final Map<String, String> _messageTypes = new ConcurrentHashMap<>();
+    // Start from the current time, so IDs don't repeat after restart
+    private static final AtomicLong _messageSequence = new AtomicLong(System.currentTimeMillis() << 20);
+
     /**
      * The message's auto-generated ID.
      */
     private String _messageId;
+    /**
+     * The sequential number used to generate the ID of compact envelopes.
+     */
+    private long _messageNumber;
     /**
      * String value that defines the stored message's type.
      */
@@ -36,12 +72,68 @@ public class MessageEnvelope {
      * The stored message.
      */
     private Object _message;
+    /**
+     * The content type of the stored message like "application/json" or "application/x-protobuf".
+     */
+    private String _contentType;
+    /**
+     * The encoding of the compressed message like "deflate" or <code>null</code> if it is not compressed.
+     */
+    private String _contentEncoding;
+    /**
+     * True when the compressed message was a string.
+     */
+    private boolean _compressedText;
+    /**
+     * The serializer used to convert objects into binary payloads.
+     */
+    private IMessageSerializer _serializer;
+    /**
+     * The last decoded message or the original object which serialization is deferred.
+     */
+    private volatile DecodedMessage _decodedMessage;
+    /**
+     * The serialized deferred object or the decompressed payload prepared by getters.
+     */
+    private volatile Object _preparedMessage;
+    /**
+     * True when the stored message is an original object that wasn't serialized.
+     */
+    private boolean _encodePending;
     /**
      * The stored reference.
      */
     private Object _reference;
     /**
-     * The time at which the message was sent.
+     * The delivery priority. Messages with higher priority are delivered first.
+     */
+    private int _priority;
+    /**
+     * The time when the message becomes visible to receivers in milliseconds since epoch.
+     */
+    private long _deliveryTimeMillis;
+    /**
+     * The time when the message expires in milliseconds since epoch.
+     */
+    private long _expirationTimeMillis;
+    /**
+     * The number of times the message was received.
+     */
+    private int _deliveryCount;
+    /**
+     * The sequence number of the message in the queue journal.
+     */
+    private long _journalSequence;
+    /**
+     * The payload size charged against the queue size limits when the message was queued.
+     */
+    private long _queuedSize;
+    /**
+     * The time at which the message was sent in milliseconds since epoch.
+     */
+    private long _sentTimeMillis;
+    /**
+     * The time at which the message was sent. It is created on demand from milliseconds.
      */
     private ZonedDateTime _sentTime;
 
@@ -83,6 +175,73 @@ public class MessageEnvelope {
         _messageId = IdGenerator.nextLong();
     }
 
+    /**
+     * Creates a compact MessageEnvelope for messages that stay within the process.
+     * The message ID is a sequential 64-bit number which is converted to a string
+     * only when it is requested, and equal message types share the same string instance.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param messageType   a string value that defines the message's type.
+     * @param message       the data being sent/received.
+     * @return a created envelope.
+     */
+    public static MessageEnvelope createCompact(String correlationId, String messageType, Object message) {
+        MessageEnvelope envelope = new MessageEnvelope();
+        envelope._correlationId = correlationId;
+        envelope._messageType = internMessageType(messageType);
+        envelope._message = message;
+        envelope._messageNumber = _messageSequence.incrementAndGet();
+        return envelope;
+    }
+
+    /**
+     * Creates a copy of the envelope with the same message and delivery attributes.
+     * The reference, the journal sequence and the queued size are not copied,
+     * so the copy can be sent to another queue without changing the state of this one.
+     *
+     * @return a copy of the envelope.
+     */
+    MessageEnvelope copy() {
+        MessageEnvelope envelope = new MessageEnvelope();
+        envelope._messageId = _messageId;
+        envelope._messageNumber = _messageNumber;
+        envelope._messageType = _messageType;
+        envelope._correlationId = _correlationId;
+        envelope._message = _message;
+        envelope._contentType = _contentType;
+        envelope._contentEncoding = _contentEncoding;
+        envelope._compressedText = _compressedText;
+        envelope._serializer = _serializer;
+        // Holders are immutable, so they are shared with the copy
+        envelope._decodedMessage = _decodedMessage;
+        envelope._preparedMessage = _preparedMessage;
+        envelope._encodePending = _encodePending;
+        envelope._priority = _priority;
+        envelope._deliveryTimeMillis = _deliveryTimeMillis;
+        envelope._expirationTimeMillis = _expirationTimeMillis;
+        envelope._deliveryCount = _deliveryCount;
+        envelope._sentTimeMillis = _sentTimeMillis;
+        envelope._sentTime = _sentTime;
+        return envelope;
+    }
+
+    private static String internMessageType(String messageType) {
+        if (messageType == null)
+            return null;
+
+        String result = _messageTypes.get(messageType);
+        if (result != null)
+            return result;
+
+        // Limit the cache to protect from unbounded numbers of types
+        if (_messageTypes.size() >= MAX_MESSAGE_TYPES)
+            return messageType;
+
+        result = _messageTypes.putIfAbsent(messageType, messageType);
+        return result != null ? result : messageType;
+    }
+
     /**
      * @return the lock token that this MessageEnvelope references.
      */
@@ -111,11 +270,14 @@ public class MessageEnvelope {
 
     @JsonProperty("message_id")
     public String getMessageId() {
+        if (_messageId == null && _messageNumber != 0)
+            _messageId = Long.toHexString(_messageNumber);
         return _messageId;
     }
 
     public void setMessageId(String value) {
         _messageId = value;
+        _messageNumber = 0;
     }
 
     @JsonProperty("message_type")
@@ -127,22 +289,428 @@ public class MessageEnvelope {
         _messageType = value;
     }
 
+    /**
+     * Gets the delivery priority of the message. Queues that support priorities
+     * deliver messages with higher priority first. The default priority is 0.
+     *
+     * @return the message priority.
+     */
+    @JsonProperty("priority")
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public int getPriority() {
+        return _priority;
+    }
+
+    /**
+     * Sets the delivery priority of the message.
+     *
+     * @param value the message priority.
+     */
+    public void setPriority(int value) {
+        _priority = value;
+    }
+
     @JsonProperty("sent_time")
     public ZonedDateTime getSentTime() {
+        if (_sentTime == null && _sentTimeMillis != 0)
+            _sentTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(_sentTimeMillis), ZoneOffset.UTC);
         return _sentTime;
     }
 
     public void setSentTime(ZonedDateTime value) {
         _sentTime = value;
+        _sentTimeMillis = value != null ? value.toInstant().toEpochMilli() : 0;
+    }
+
+    /**
+     * @return the time at which the message was sent in milliseconds since epoch
+     * or 0 if the message wasn't sent.
+     */
+    @JsonIgnore
+    public long getSentTimeMillis() {
+        return _sentTimeMillis;
+    }
+
+    /**
+     * Sets the time at which the message was sent without allocating a date object.
+     *
+     * @param value the time in milliseconds since epoch.
+     */
+    @JsonIgnore
+    public void setSentTimeMillis(long value) {
+        _sentTimeMillis = value;
+        _sentTime = null;
+    }
+
+    /**
+     * Gets the time when the message becomes visible to receivers.
+     *
+     * @return the delivery time in milliseconds since epoch
+     * or 0 if the message is delivered immediately.
+     */
+    @JsonIgnore
+    public long getDeliveryTimeMillis() {
+        return _deliveryTimeMillis;
+    }
+
+    /**
+     * Schedules delivery of the message. Queues that support delayed delivery
+     * hide the message from receivers until this time.
+     *
+     * @param value the delivery time in milliseconds since epoch or 0 to deliver immediately.
+     * @see IMessageQueue#send(String, MessageEnvelope, long)
+     */
+    @JsonIgnore
+    public void setDeliveryTimeMillis(long value) {
+        _deliveryTimeMillis = value;
+    }
+
+    /**
+     * Gets the time when the message expires. Queues that support expiration
+     * discard expired messages instead of delivering them.
+     *
+     * @return the expiration time in milliseconds since epoch or 0 if the message never expires.
+     */
+    @JsonIgnore
+    public long getExpirationTimeMillis() {
+        return _expirationTimeMillis;
+    }
+
+    /**
+     * Sets the time when the message expires.
+     *
+     * @param value the expiration time in milliseconds since epoch or 0 if the message never expires.
+     */
+    @JsonIgnore
+    public void setExpirationTimeMillis(long value) {
+        _expirationTimeMillis = value;
+    }
+
+    /**
+     * Checks if the message has expired.
+     *
+     * @param now the current time in milliseconds since epoch.
+     * @return true if the message has an expiration time that has passed and false otherwise.
+     */
+    public boolean isExpired(long now) {
+        return _expirationTimeMillis != 0 && _expirationTimeMillis <= now;
+    }
+
+    /**
+     * Gets the number of times the message was received from the queue.
+     * Queues that support dead letters use it to stop redelivering poison messages.
+     *
+     * @return the number of delivery attempts.
+     */
+    @JsonIgnore
+    public int getDeliveryCount() {
+        return _deliveryCount;
+    }
+
+    /**
+     * Sets the number of times the message was received from the queue.
+     *
+     * @param value the number of delivery attempts.
+     */
+    @JsonIgnore
+    public void setDeliveryCount(int value) {
+        _deliveryCount = value;
     }
 
     @JsonProperty("message")
     public Object getMessage() {
-        return _message;
+        return getPreparedMessage();
     }
 
     public void setMessage(Object value) {
         _message = value;
+        _contentEncoding = null;
+        _compressedText = false;
+        _decodedMessage = null;
+        _preparedMessage = null;
+        _encodePending = false;
+    }
+
+    /**
+     * Gets the stored payload without serializing a deferred object or decompressing it.
+     *
+     * @return the stored payload or <code>null</code> if it is not set or not serialized yet.
+     */
+    Object peekMessage() {
+        return _message;
+    }
+
+    /**
+     * Gets the stored payload in the form it can be persisted. Deferred objects are serialized
+     * and compressed payloads are returned without decompression.
+     *
+     * @return the stored payload.
+     */
+    Object getEncodedMessage() {
+        return _encodePending ? getPreparedMessage() : _message;
+    }
+
+    /**
+     * Stores a compressed payload restored from persistent storage.
+     *
+     * @param data     the compressed bytes.
+     * @param encoding the content encoding like "deflate".
+     * @param text     true if the original payload was a string.
+     */
+    void setCompressedMessage(byte[] data, String encoding, boolean text) {
+        setMessage(data);
+        _contentEncoding = encoding;
+        _compressedText = text;
+    }
+
+    /**
+     * @return the sequence number of the message in the queue journal or 0 if it wasn't journaled.
+     */
+    long getJournalSequence() {
+        return _journalSequence;
+    }
+
+    void setJournalSequence(long value) {
+        _journalSequence = value;
+    }
+
+    /**
+     * @return the payload size charged against the queue size limits or 0 if the message is not queued.
+     */
+    long getQueuedSize() {
+        return _queuedSize;
+    }
+
+    void setQueuedSize(long value) {
+        _queuedSize = value;
+    }
+
+    /**
+     * @return true if the compressed payload was a string.
+     */
+    boolean isCompressedText() {
+        return _compressedText;
+    }
+
+    /**
+     * Gets the payload in the form it is returned to readers. Deferred objects are serialized
+     * and compressed payloads are decompressed into a separate value, so the stored payload
+     * never changes. Concurrent readers may prepare the value twice, but always see a complete one.
+     *
+     * @return the prepared payload.
+     */
+    private Object getPreparedMessage() {
+        if (!_encodePending && _contentEncoding == null)
+            return _message;
+
+        Object message = _preparedMessage;
+        if (message == null) {
+            message = _encodePending ? encodePendingMessage() : decompressMessage();
+            _preparedMessage = message;
+        }
+        return message;
+    }
+
+    private Object encodePendingMessage() {
+        try {
+            return encodeObject(_decodedMessage.value);
+        } catch (JsonProcessingException ex) {
+            throw new IllegalStateException("Failed to serialize message " + _messageType, ex);
+        }
+    }
+
+    private Object encodeObject(Object value) throws JsonProcessingException {
+        if (_serializer == null)
+            return JsonMessageSerializer.getDefault().toJson(value);
+
+        try {
+            return _serializer.serialize(value);
+        } catch (JsonProcessingException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw JsonMappingException.fromUnexpectedIOE(ex);
+        }
+    }
+
+    /**
+     * Compresses the stored string or binary payload when it is not smaller than the threshold.
+     * Strings are encoded in UTF-8 before compression. The payload is kept as is when it
+     * is already compressed, when it is an object passed without serialization or when
+     * compression doesn't reduce its size.
+     *
+     * @param threshold the minimum payload size in bytes to be compressed.
+     * @param level     a compression level from 1 (fastest) to 9 (smallest).
+     * @return true if the payload was compressed and false otherwise.
+     */
+    public boolean compressMessage(int threshold, int level) {
+        if (_contentEncoding != null || _encodePending || _message == null)
+            return false;
+
+        // Original objects passed without serialization are kept as is
+        DecodedMessage decoded = _decodedMessage;
+        if (decoded != null && decoded.original)
+            return false;
+
+        byte[] data;
+        if (_message instanceof String text) {
+            // Skip short strings without encoding them
+            if (text.length() < threshold / 3)
+                return false;
+            data = text.getBytes(StandardCharsets.UTF_8);
+        } else if (_message instanceof byte[] || _message instanceof ByteBuffer) {
+            data = getMessageAsBytes();
+        } else
+            return false;
+
+        if (data.length < threshold)
+            return false;
+
+        byte[] compressed = MessageCompression.deflate(data, level);
+        if (compressed == null)
+            return false;
+
+        _compressedText = _message instanceof String;
+        _message = compressed;
+        _contentEncoding = MessageCompression.DEFLATE;
+        _preparedMessage = null;
+        return true;
+    }
+
+    private Object decompressMessage() {
+        try {
+            byte[] data = MessageCompression.inflate((byte[]) _message);
+            return _compressedText ? new String(data, StandardCharsets.UTF_8) : data;
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("Failed to decompress message " + _messageType, ex);
+        }
+    }
+
+    /**
+     * Checks if the stored payload is compressed. The stored payload stays compressed
+     * and readers get its decompressed copy.
+     *
+     * @return true if the payload is compressed and false otherwise.
+     */
+    @JsonIgnore
+    public boolean isCompressed() {
+        return _contentEncoding != null;
+    }
+
+    /**
+     * @return the encoding of the compressed payload like "deflate"
+     * or <code>null</code> if the payload is not compressed.
+     */
+    @JsonIgnore
+    public String getContentEncoding() {
+        return _contentEncoding;
+    }
+
+    /**
+     * @return the serializer used to convert objects into binary payloads
+     * or <code>null</code> if objects are stored as JSON strings.
+     */
+    @JsonIgnore
+    public IMessageSerializer getSerializer() {
+        return _serializer;
+    }
+
+    /**
+     * Sets the serializer used by {@link #setMessageAsObject(Object)} and {@link #getMessageAs(Class)}.
+     *
+     * @param value the serializer or <code>null</code> to store objects as JSON strings.
+     */
+    @JsonIgnore
+    public void setSerializer(IMessageSerializer value) {
+        _serializer = value;
+    }
+
+    @JsonProperty("content_type")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getContentType() {
+        return _contentType;
+    }
+
+    public void setContentType(String value) {
+        _contentType = value;
+    }
+
+    /**
+     * Checks if the stored message is a binary payload.
+     *
+     * @return true if the message is stored as a byte array or a buffer and false otherwise.
+     */
+    @JsonIgnore
+    public boolean isBinary() {
+        Object message = getPreparedMessage();
+        return message instanceof byte[] || message instanceof ByteBuffer;
+    }
+
+    /**
+     * Stores the given bytes as a binary payload. The array is stored without copying,
+     * so it shall not be changed after it was passed to the envelope.
+     *
+     * @param value the bytes to store.
+     */
+    public void setMessageAsBytes(byte[] value) {
+        setMessage(value);
+    }
+
+    /**
+     * Stores the given bytes as a binary payload with its content type.
+     *
+     * @param value       the bytes to store.
+     * @param contentType the content type of the payload like "application/x-protobuf".
+     */
+    public void setMessageAsBytes(byte[] value, String contentType) {
+        setMessage(value);
+        _contentType = contentType;
+    }
+
+    /**
+     * Stores remaining bytes of the given buffer as a binary payload.
+     * The content is not copied, the envelope keeps a read-only view of the buffer.
+     *
+     * @param value the buffer to store.
+     */
+    public void setMessageAsBuffer(ByteBuffer value) {
+        setMessage(value != null ? value.asReadOnlyBuffer() : null);
+    }
+
+    /**
+     * Gets the stored message as bytes. Byte arrays are returned without copying,
+     * buffers are copied and strings are encoded in UTF-8.
+     *
+     * @return the message bytes or <code>null</code> if the message is not set.
+     */
+    @JsonIgnore
+    public byte[] getMessageAsBytes() {
+        Object message = getPreparedMessage();
+        if (message == null)
+            return null;
+        if (message instanceof byte[] bytes)
+            return bytes;
+        if (message instanceof ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+        return message.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the stored message as a read-only buffer. Binary payloads are returned without copying.
+     * Every call returns a new view, so reading from it doesn't affect other readers.
+     *
+     * @return the message buffer or <code>null</code> if the message is not set.
+     */
+    @JsonIgnore
+    public ByteBuffer getMessageAsBuffer() {
+        Object message = getPreparedMessage();
+        if (message == null)
+            return null;
+        if (message instanceof ByteBuffer buffer)
+            return buffer.asReadOnlyBuffer();
+        return ByteBuffer.wrap(getMessageAsBytes()).asReadOnlyBuffer();
     }
 
     /**
@@ -152,21 +720,53 @@ public class MessageEnvelope {
      *                encoding.
      */
     public void setMessageAsJson(Object message) throws JsonProcessingException {
-        _message = JsonConverter.toJson(message);
+        setMessage(JsonMessageSerializer.getDefault().toJson(message));
     }
 
     /**
      * @return the value that was stored in this message as a JSON string.
+     * The decoded value is cached until the message is changed.
      */
     public <T> T getMessageAsJson(Class<T> type) throws IOException {
-        return JsonConverter.fromJson(type, _message.toString());
+        T value = getDecodedMessage(type);
+        if (value != null)
+            return value;
+
+        value = JsonMessageSerializer.getDefault().fromJson(type, getMessageAsString());
+        setDecodedMessage(type, value);
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T getDecodedMessage(Class<T> type) {
+        DecodedMessage decoded = _decodedMessage;
+        if (decoded == null)
+            return null;
+
+        // The original object is returned to any compatible type
+        if (decoded.type == type || (decoded.original && type.isInstance(decoded.value)))
+            return (T) decoded.value;
+
+        return null;
+    }
+
+    private void setDecodedMessage(Class<?> type, Object value) {
+        // Keep the original object passed by the sender
+        DecodedMessage decoded = _decodedMessage;
+        if (value == null || (decoded != null && decoded.original))
+            return;
+
+        _decodedMessage = new DecodedMessage(value, type, false);
     }
 
     /**
      * @return the information stored in this message as a UTF-8 encoded string.
      */
     public String getMessageAsString() {
-        return this.getMessage() != null ? this.getMessage().toString() : null;
+        Object message = getPreparedMessage();
+        if (message instanceof byte[] || message instanceof ByteBuffer)
+            return new String(getMessageAsBytes(), StandardCharsets.UTF_8);
+        return message != null ? message.toString() : null;
     }
 
     /**
@@ -181,16 +781,33 @@ public class MessageEnvelope {
 
     /**
      * @return the value that was stored in this message
-     * as a JSON string.
+     * as a JSON string or as a binary payload converted by the serializer.
+     * The decoded value is cached until the message is changed.
      * @see [[setMessageAsJson]]
      */
     public <T> T getMessageAs(Class<T> type) throws IOException {
-        if (this.getMessage() == null) return null;
-        return JsonConverter.fromJson(type, _message.toString());
+        T value = getDecodedMessage(type);
+        if (value != null)
+            return value;
+
+        Object message = getPreparedMessage();
+        if (message == null) return null;
+        if (message instanceof byte[] || message instanceof ByteBuffer) {
+            IMessageSerializer serializer = _serializer != null ? _serializer
+                    : MessageSerializers.fromContentType(_contentType);
+            if (serializer != null)
+                value = serializer.deserialize(type, getMessageAsBytes());
+        }
+        if (value == null)
+            value = JsonMessageSerializer.getDefault().fromJson(type, getMessageAsString());
+
+        setDecodedMessage(type, value);
+        return value;
     }
 
     /**
-     * Stores the given value as a object.
+     * Stores the given value as a object. When the envelope has a serializer the value
+     * is stored as a binary payload with the serializer's content type.
      *
      * @param value the value to convert to JSON and store in
      *              this message.
@@ -200,10 +817,39 @@ public class MessageEnvelope {
         if (value == null) {
             this.setMessage(null);
         } else {
-            setMessageAsString(JsonConverter.toJson(value));
+            this.setMessage(encodeObject(value));
+            if (_serializer != null)
+                _contentType = _serializer.getContentType();
         }
     }
 
+    /**
+     * Stores the given value as is to pass it within the same process. Calls of
+     * {@link #getMessageAs(Class)} with a compatible type return the original object
+     * without serialization. When the envelope has a serializer, the value is serialized
+     * only when the payload is requested as a string, bytes or by {@link #getMessage()}.
+     * Without a serializer the value itself is the payload.
+     *
+     * @param value the value to store in this message.
+     */
+    public void setMessageAsObjectDeferred(Object value) {
+        setMessage(null);
+        if (value == null)
+            return;
+
+        _decodedMessage = new DecodedMessage(value, value.getClass(), true);
+
+        if (_serializer != null) {
+            _contentType = _serializer.getContentType();
+            _encodePending = true;
+        } else
+            _message = value;
+    }
+
+    private int getMessageSize() {
+        return _message instanceof byte[] bytes ? bytes.length : ((ByteBuffer) _message).remaining();
+    }
+
     /**
      * Convert's this MessageEnvelope to a string, using the following format:
      *
@@ -218,7 +864,10 @@ public class MessageEnvelope {
     public String toString() {
         return "[" + (_correlationId != null ? _correlationId : "---") +
                 "," + (_messageType != null ? _messageType : "---") + "," +
-                (_message != null ? StringConverter.toString(_message) : "--") + "]";
+                (_encodePending ? StringConverter.toString(_decodedMessage.value)
+                        : _contentEncoding != null ? "<" + getMessageSize() + " compressed bytes>"
+                        : _message instanceof byte[] || _message instanceof ByteBuffer ? "<" + getMessageSize() + " bytes>"
+                        : _message != null ? StringConverter.toString(_message) : "--") + "]";
     }
 
     /**
@@ -228,8 +877,7 @@ public class MessageEnvelope {
      * @return A JSON encoded representation is this object.
      */
     public Map<?, ?> toJSON() {
-        var payload = this.getMessage() != null ? this.getMessage().toString() : null;
-        return JsonConverter.toMap(payload);
+        return JsonConverter.toMap(getMessageAsString());
     }
 
     /**
@@ -242,6 +890,24 @@ public class MessageEnvelope {
     public static MessageEnvelope fromJSON(String value) throws IOException {
         if (value == null) return null;
 
-        return JsonConverter.fromJson(MessageEnvelope.class, value);
+        return JsonMessageSerializer.getDefault().fromJson(MessageEnvelope.class, value);
+    }
+
+    /**
+     * Immutable holder of a decoded message, so readers always see the value with its type.
+     */
+    private static final class DecodedMessage {
+        final Object value;
+        final Class<?> type;
+        /**
+         * True when the value is the original object passed by the sender.
+         */
+        final boolean original;
+
+        DecodedMessage(Object value, Class<?> type, boolean original) {
+            this.value = value;
+            this.type = type;
+            this.original = original;
+        }
     }
 }
@@ -0,0 +1,201 @@
+package org.pipservices3.messaging.queues;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helper that converts message envelopes into a compact binary form to be stored in files.
+ * <p>
+ * The binary form keeps the envelope fields and the payload as is. Strings and binary payloads
+ * are written as UTF-8 and raw bytes, compressed payloads stay compressed, and deferred objects
+ * are serialized by the envelope serializer or converted to JSON with the matching content type.
+ * Reading the binary form doesn't produce intermediate JSON strings.
+ *
+ * @see FileMessageQueue
+ */
+final class MessageEnvelopeCodec {
+    private static final byte VERSION = 1;
+
+    private static final byte PAYLOAD_NONE = 0;
+    private static final byte PAYLOAD_STRING = 1;
+    private static final byte PAYLOAD_BYTES = 2;
+    private static final byte PAYLOAD_COMPRESSED_STRING = 3;
+    private static final byte PAYLOAD_COMPRESSED_BYTES = 4;
+
+    private MessageEnvelopeCodec() {
+    }
+
+    /**
+     * Writes a message into a buffer. The buffer is cleared before writing
+     * and flipped after it, so it contains only the written message.
+     *
+     * @param message a message to write.
+     * @param buffer  (optional) a buffer to reuse.
+     * @return the given buffer or a new larger buffer if the message didn't fit in it.
+     * @throws IOException when the message payload can't be serialized.
+     */
+    static ByteBuffer encode(MessageEnvelope message, ByteBuffer buffer) throws IOException {
+        byte[] messageId = toBytes(message.getMessageId());
+        byte[] correlationId = toBytes(message.getCorrelationId());
+        byte[] messageType = toBytes(message.getMessageType());
+        byte[] contentType = toBytes(message.getContentType());
+        byte[] contentEncoding = null;
+
+        byte payloadType;
+        byte[] payload;
+        Object value = message.getEncodedMessage();
+        if (value == null) {
+            payloadType = PAYLOAD_NONE;
+            payload = null;
+        } else if (message.isCompressed()) {
+            payloadType = message.isCompressedText() ? PAYLOAD_COMPRESSED_STRING : PAYLOAD_COMPRESSED_BYTES;
+            payload = (byte[]) value;
+            contentEncoding = toBytes(message.getContentEncoding());
+        } else if (value instanceof byte[] || value instanceof ByteBuffer) {
+            payloadType = PAYLOAD_BYTES;
+            payload = message.getMessageAsBytes();
+        } else if (value instanceof String text) {
+            payloadType = PAYLOAD_STRING;
+            payload = text.getBytes(StandardCharsets.UTF_8);
+        } else {
+            // Objects passed without serialization are stored by the envelope serializer or as JSON
+            IMessageSerializer serializer = message.getSerializer();
+            if (serializer != null) {
+                payloadType = PAYLOAD_BYTES;
+                payload = serializer.serialize(value);
+            } else {
+                JsonMessageSerializer json = JsonMessageSerializer.getDefault();
+                serializer = json;
+                payloadType = PAYLOAD_STRING;
+                payload = toBytes(json.toJson(value));
+            }
+            contentType = toBytes(serializer.getContentType());
+        }
+
+        int size = 1 + 8 + 4 + 8 + 8 + 4 + getSize(messageId) + getSize(correlationId) + getSize(messageType)
+                + getSize(contentType) + 1 + getSize(payload)
+                + (contentEncoding != null ? getSize(contentEncoding) : 0);
+
+        if (buffer == null || buffer.capacity() < size)
+            buffer = ByteBuffer.allocate(Math.max(size, buffer != null ? buffer.capacity() * 2 : 0));
+
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.putLong(message.getSentTimeMillis());
+        buffer.putInt(message.getPriority());
+        buffer.putLong(message.getDeliveryTimeMillis());
+        buffer.putLong(message.getExpirationTimeMillis());
+        buffer.putInt(message.getDeliveryCount());
+        putBytes(buffer, messageId);
+        putBytes(buffer, correlationId);
+        putBytes(buffer, messageType);
+        putBytes(buffer, contentType);
+        buffer.put(payloadType);
+        if (contentEncoding != null)
+            putBytes(buffer, contentEncoding);
+        putBytes(buffer, payload);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Reads a message from the current position of a buffer.
+     *
+     * @param buffer a buffer to read from.
+     * @return the read message.
+     * @throws IOException when the buffer doesn't contain a valid message.
+     */
+    static MessageEnvelope decode(ByteBuffer buffer) throws IOException {
+        try {
+            byte version = buffer.get();
+            if (version != VERSION)
+                throw new IOException("Unsupported message format version " + version);
+
+            MessageEnvelope message = new MessageEnvelope();
+            long sentTime = buffer.getLong();
+            message.setPriority(buffer.getInt());
+            message.setDeliveryTimeMillis(buffer.getLong());
+            message.setExpirationTimeMillis(buffer.getLong());
+            message.setDeliveryCount(buffer.getInt());
+            message.setMessageId(getString(buffer));
+            message.setCorrelationId(getString(buffer));
+            message.setMessageType(getString(buffer));
+            message.setContentType(getString(buffer));
+            message.setSentTimeMillis(sentTime);
+
+            byte payloadType = buffer.get();
+            switch (payloadType) {
+                case PAYLOAD_NONE:
+                    getBytes(buffer);
+                    break;
+                case PAYLOAD_STRING:
+                    message.setMessage(getString(buffer));
+                    break;
+                case PAYLOAD_BYTES:
+                    message.setMessage(getBytes(buffer));
+                    break;
+                case PAYLOAD_COMPRESSED_STRING:
+                case PAYLOAD_COMPRESSED_BYTES:
+                    String contentEncoding = getString(buffer);
+                    message.setCompressedMessage(getBytes(buffer), contentEncoding,
+                            payloadType == PAYLOAD_COMPRESSED_STRING);
+                    break;
+                default:
+                    throw new IOException("Unsupported message payload type " + payloadType);
+            }
+
+            return message;
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new IOException("Message is truncated or corrupted", ex);
+        }
+    }
+
+    private static byte[] toBytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int getSize(byte[] value) {
+        return 4 + (value != null ? value.length : 0);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return value;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        if (length > buffer.remaining())
+            throw new BufferUnderflowException();
+
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(buffer.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,519 @@
+package org.pipservices3.messaging.queues;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of operations on a {@link MemoryMessageQueue} used to restore
+ * the queue after a process crash.
+ * <p>
+ * Records are collected in memory and written to disk by group commits: one fsync covers all
+ * records appended since the previous one. With a sync interval the journal is synced in the
+ * background at that interval or when the batch size is reached, so a crash can lose operations
+ * of the last interval. With zero interval every caller waits until its records are synced,
+ * and concurrent callers share a single fsync.
+ * <p>
+ * When the journal grows over the checkpoint size it is replaced with a checkpoint that contains
+ * only messages which are still in the queue, so replay time stays bounded. The queue only marks
+ * the checkpoint position and takes a snapshot of its messages. The checkpoint is encoded and
+ * written later, while records appended after the mark are still accepted, and they are copied
+ * after the snapshot. The old journal stays in place until the checkpoint replaces it.
+ *
+ * @see MemoryMessageQueue
+ */
+final class MessageJournal {
+    private static final byte SEND_RECORD = 1;
+    private static final byte REMOVE_RECORD = 2;
+    private static final byte ABANDON_RECORD = 3;
+    /**
+     * Records start with a body length and a checksum.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path _path;
+    private final long _syncInterval;
+    private final int _syncBatch;
+    private final long _checkpointSize;
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final ReentrantLock _syncLock = new ReentrantLock();
+    private final CRC32 _checksum = new CRC32();
+    private FileChannel _channel;
+    private ByteBuffer _buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer _spareBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long _nextSequence = 1;
+    private long _appendedPosition = 0;
+    private long _checkpointPosition = 0;
+    /**
+     * A position of the record at the start of the journal file.
+     * After a checkpoint it is the position of the first record that follows the snapshot.
+     */
+    private long _filePosition = 0;
+    /**
+     * A difference between positions of records and their offsets in the journal file.
+     */
+    private long _fileOffset = 0;
+    private int _pendingRecords = 0;
+    private volatile long _syncedPosition = 0;
+    private volatile IOException _syncError;
+    private ScheduledFuture<?> _syncTask;
+
+    /**
+     * Creates a new instance of the journal.
+     *
+     * @param path           a path to the journal file.
+     * @param syncInterval   an interval in milliseconds to sync the journal in the background
+     *                       or 0 to sync every operation.
+     * @param syncBatch      a number of records that triggers a sync before the interval expires.
+     * @param checkpointSize a size of the journal in bytes that triggers a checkpoint.
+     */
+    MessageJournal(Path path, long syncInterval, int syncBatch, long checkpointSize) {
+        _path = path;
+        _syncInterval = Math.max(syncInterval, 0);
+        _syncBatch = Math.max(syncBatch, 1);
+        _checkpointSize = checkpointSize;
+    }
+
+    /**
+     * Opens the journal and replays its records.
+     *
+     * @return messages that were in the queue in the order they shall be delivered.
+     * @throws IOException when the journal can't be read.
+     */
+    List<MessageEnvelope> open() throws IOException {
+        Files.createDirectories(_path.toAbsolutePath().getParent());
+
+        _channel = FileChannel.open(_path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Map<Long, MessageEnvelope> messages = replay();
+
+        // Cut off a partially written record at the end
+        _channel.truncate(_appendedPosition);
+        _channel.position(_appendedPosition);
+        _syncedPosition = _appendedPosition;
+
+        if (_syncInterval > 0) {
+            _syncTask = QueueThreads.getScheduler().scheduleWithFixedDelay(
+                    () -> QueueThreads.getSharedExecutor().execute(this::syncInBackground),
+                    _syncInterval, _syncInterval, TimeUnit.MILLISECONDS);
+        }
+
+        return new ArrayList<>(messages.values());
+    }
+
+    private Map<Long, MessageEnvelope> replay() throws IOException {
+        Map<Long, MessageEnvelope> messages = new LinkedHashMap<>();
+        long position = 0;
+
+        // Records are read by a buffered stream, so small records don't cost a system call each
+        _channel.position(0);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(_channel), BUFFER_SIZE));
+        byte[] body = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                int length = input.readInt();
+                int checksum = input.readInt();
+                if (length <= 0 || length > _channel.size() - position)
+                    break;
+
+                if (body.length < length)
+                    body = new byte[Math.max(length, body.length * 2)];
+                input.readFully(body, 0, length);
+
+                ByteBuffer buffer = ByteBuffer.wrap(body, 0, length);
+                if (checksum != computeChecksum(buffer))
+                    break;
+
+                byte type = buffer.get();
+                long sequence = buffer.getLong();
+                if (type == SEND_RECORD) {
+                    MessageEnvelope message = MessageEnvelopeCodec.decode(buffer);
+                    message.setJournalSequence(sequence);
+                    messages.put(sequence, message);
+                } else if (type == REMOVE_RECORD) {
+                    messages.remove(sequence);
+                } else if (type == ABANDON_RECORD) {
+                    // Abandoned messages go to the end of the queue
+                    MessageEnvelope message = messages.remove(sequence);
+                    if (message != null) {
+                        if (buffer.remaining() >= 4)
+                            message.setDeliveryCount(buffer.getInt());
+                        messages.put(sequence, message);
+                    }
+                } else {
+                    break;
+                }
+
+                _nextSequence = Math.max(_nextSequence, sequence + 1);
+                position += RECORD_HEADER_SIZE + length;
+            }
+        } catch (EOFException ex) {
+            // The journal ended, possibly in the middle of a record
+        }
+
+        _appendedPosition = position;
+        _checkpointPosition = 0;
+        _filePosition = 0;
+        _fileOffset = 0;
+        return messages;
+    }
+
+    private int computeChecksum(ByteBuffer buffer) {
+        return computeChecksum(_checksum, buffer);
+    }
+
+    private static int computeChecksum(CRC32 checksum, ByteBuffer buffer) {
+        checksum.reset();
+        checksum.update(buffer.duplicate());
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Encodes a message to be appended to the journal. It is called before taking the queue lock.
+     *
+     * @param message a message to encode.
+     * @return the encoded message.
+     * @throws IOException when the message can't be encoded.
+     */
+    static ByteBuffer encode(MessageEnvelope message) throws IOException {
+        return MessageEnvelopeCodec.encode(message, null);
+    }
+
+    /**
+     * Appends a record about a sent message and assigns the journal sequence to the message.
+     *
+     * @param message a sent message.
+     * @param encoded the message encoded by {@link #encode(MessageEnvelope)}.
+     * @return the position of the journal after the record.
+     */
+    long appendSend(MessageEnvelope message, ByteBuffer encoded) {
+        _lock.lock();
+        try {
+            long sequence = _nextSequence++;
+            message.setJournalSequence(sequence);
+            return appendRecord(SEND_RECORD, sequence, encoded);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record about a message that was completed, moved to dead letter or dropped.
+     *
+     * @param message a removed message.
+     * @return the position of the journal after the record.
+     */
+    long appendRemove(MessageEnvelope message) {
+        return appendRecord(REMOVE_RECORD, message, null);
+    }
+
+    /**
+     * Appends a record about a message that was returned to the end of the queue.
+     * The record keeps the delivery count of the message, so the delivery limit
+     * is not reset when the queue is restored.
+     *
+     * @param message an abandoned message.
+     * @return the position of the journal after the record.
+     */
+    long appendAbandon(MessageEnvelope message) {
+        ByteBuffer body = ByteBuffer.allocate(4).putInt(0, message.getDeliveryCount());
+        return appendRecord(ABANDON_RECORD, message, body);
+    }
+
+    private long appendRecord(byte type, MessageEnvelope message, ByteBuffer body) {
+        _lock.lock();
+        try {
+            return appendRecord(type, message.getJournalSequence(), body);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a record into the memory buffer.
+     * The method shall be called while holding the journal lock.
+     */
+    private long appendRecord(byte type, long sequence, ByteBuffer body) {
+        int recordSize = getRecordSize(body);
+        _buffer = ensureCapacity(_buffer, recordSize);
+        putRecord(_buffer, _checksum, type, sequence, body);
+
+        _pendingRecords++;
+        _appendedPosition += recordSize;
+        return _appendedPosition;
+    }
+
+    private static int getRecordSize(ByteBuffer body) {
+        return RECORD_HEADER_SIZE + 1 + 8 + (body != null ? body.remaining() : 0);
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int recordSize) {
+        if (buffer.remaining() >= recordSize)
+            return buffer;
+
+        ByteBuffer result = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + recordSize));
+        buffer.flip();
+        result.put(buffer);
+        return result;
+    }
+
+    private static void putRecord(ByteBuffer buffer, CRC32 checksum, byte type, long sequence, ByteBuffer body) {
+        int position = buffer.position();
+        int length = getRecordSize(body) - RECORD_HEADER_SIZE;
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(type);
+        buffer.putLong(sequence);
+        if (body != null)
+            buffer.put(body.duplicate());
+
+        buffer.putInt(position, length);
+        buffer.putInt(position + 4, computeChecksum(checksum, buffer.slice(position + RECORD_HEADER_SIZE, length)));
+    }
+
+    /**
+     * Makes sure appended records are durable according to the sync settings.
+     * With zero sync interval the method waits until the record at the given position is synced.
+     * Otherwise it syncs only when the batch size is reached.
+     *
+     * @param position a position returned by one of append methods.
+     * @throws IOException when the journal can't be written.
+     */
+    void commit(long position) throws IOException {
+        if (_syncError != null)
+            throw _syncError;
+        if (_syncInterval > 0 && _pendingRecords < _syncBatch)
+            return;
+
+        sync(position);
+    }
+
+    /**
+     * Writes records up to the given position and forces them to disk.
+     * Callers that come while another caller syncs wait for it and return
+     * without another fsync when their records were covered.
+     *
+     * @param position a position to sync up to.
+     * @throws IOException when the journal can't be written.
+     */
+    void sync(long position) throws IOException {
+        if (_syncedPosition >= position)
+            return;
+
+        _syncLock.lock();
+        try {
+            // The previous leader may have synced our records
+            if (_syncedPosition >= position || _channel == null)
+                return;
+
+            try {
+                long syncedPosition = writeAppended();
+                _channel.force(false);
+                _syncedPosition = syncedPosition;
+            } catch (IOException ex) {
+                // Records are lost from memory, so the journal can't be trusted anymore
+                _syncError = ex;
+                throw ex;
+            }
+        } finally {
+            _syncLock.unlock();
+        }
+    }
+
+    /**
+     * Writes records appended so far to the journal file without forcing them to disk.
+     * The method shall be called while holding the sync lock.
+     *
+     * @return the position of the journal after the written records.
+     */
+    private long writeAppended() throws IOException {
+        ByteBuffer buffer;
+        long position;
+        _lock.lock();
+        try {
+            buffer = _buffer;
+            _buffer = _spareBuffer;
+            _buffer.clear();
+            _spareBuffer = buffer;
+            position = _appendedPosition;
+            _pendingRecords = 0;
+        } finally {
+            _lock.unlock();
+        }
+
+        buffer.flip();
+        while (buffer.hasRemaining())
+            _channel.write(buffer);
+        return position;
+    }
+
+    private void syncInBackground() {
+        try {
+            sync(_appendedPosition);
+        } catch (IOException ex) {
+            // The error is reported to senders by the next commit
+        }
+    }
+
+    /**
+     * Checks if the journal has grown enough to be replaced by a checkpoint.
+     *
+     * @return true if a checkpoint is due and false otherwise.
+     */
+    boolean isCheckpointDue() {
+        return _checkpointSize > 0 && _appendedPosition - _checkpointPosition >= _checkpointSize;
+    }
+
+    /**
+     * Marks the position of a checkpoint. It shall be called together with taking
+     * the snapshot of messages in the queue, so the snapshot matches the position.
+     *
+     * @return the checkpoint position to pass to {@link #checkpoint(Collection, long)}.
+     */
+    long markCheckpoint() {
+        _lock.lock();
+        try {
+            _checkpointPosition = _appendedPosition;
+            return _checkpointPosition;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the journal with records of messages that are still in the queue
+     * followed by records appended after the checkpoint position.
+     * The queue may change while the checkpoint is written. When the checkpoint fails
+     * the journal can't be trusted anymore and the error is reported by the next commit.
+     *
+     * @param messages messages in the queue at the checkpoint position in the order they shall be delivered.
+     * @param position a position returned by {@link #markCheckpoint()}.
+     * @throws IOException when the checkpoint can't be written.
+     */
+    void checkpoint(Collection<MessageEnvelope> messages, long position) throws IOException {
+        _syncLock.lock();
+        try {
+            // A later checkpoint has already replaced the journal
+            if (_channel == null || position < _filePosition)
+                return;
+
+            Path checkpointPath = _path.resolveSibling(_path.getFileName() + ".checkpoint");
+            try {
+                long checkpointSize = writeCheckpoint(checkpointPath, messages, position);
+                replaceJournal(checkpointPath);
+
+                _filePosition = position;
+                _fileOffset = position - checkpointSize;
+                _syncedPosition = Math.max(_syncedPosition, _fileOffset + _channel.size());
+            } catch (IOException ex) {
+                _syncError = ex;
+                try {
+                    Files.deleteIfExists(checkpointPath);
+                } catch (IOException deleteEx) {
+                    // Ignore...
+                }
+                throw ex;
+            }
+        } finally {
+            _syncLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the snapshot of messages and the records appended after it to the checkpoint file.
+     * The method shall be called while holding the sync lock.
+     *
+     * @return the size of the snapshot in the checkpoint file.
+     */
+    private long writeCheckpoint(Path checkpointPath, Collection<MessageEnvelope> messages, long position)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(checkpointPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // The snapshot has its own buffer and checksum, so records are appended meanwhile
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            CRC32 checksum = new CRC32();
+            ByteBuffer encoded = null;
+            for (MessageEnvelope message : messages) {
+                encoded = MessageEnvelopeCodec.encode(message, encoded);
+                int recordSize = getRecordSize(encoded);
+                if (buffer.remaining() < recordSize)
+                    writeBuffer(channel, buffer);
+                buffer = ensureCapacity(buffer, recordSize);
+                putRecord(buffer, checksum, SEND_RECORD, message.getJournalSequence(), encoded);
+            }
+            writeBuffer(channel, buffer);
+            long checkpointSize = channel.size();
+
+            // Records appended after the checkpoint position are copied from the old journal
+            long start = position - _fileOffset;
+            long end = writeAppended() - _fileOffset;
+            while (start < end)
+                start += _channel.transferTo(start, end - start, channel);
+
+            channel.force(false);
+            return checkpointSize;
+        }
+    }
+
+    /**
+     * Moves the checkpoint file in place of the journal.
+     * The journal is reopened even when the move fails, so it stays usable.
+     */
+    private void replaceJournal(Path checkpointPath) throws IOException {
+        _channel.close();
+        try {
+            Files.move(checkpointPath, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            _channel = FileChannel.open(_path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            _channel.position(_channel.size());
+        }
+    }
+
+    private static void writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Syncs all appended records and closes the journal.
+     *
+     * @throws IOException when the journal can't be written.
+     */
+    void close() throws IOException {
+        if (_syncTask != null) {
+            _syncTask.cancel(false);
+            _syncTask = null;
+        }
+
+        try {
+            sync(_appendedPosition);
+        } finally {
+            _syncLock.lock();
+            try {
+                if (_channel != null)
+                    _channel.close();
+                _channel = null;
+            } finally {
+                _syncLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.pipservices3.messaging.queues;
+
+import org.pipservices3.components.log.CompositeLogger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of workers that pass incoming messages to a message receiver
+ * while a queue is listening.
+ * <p>
+ * The listening loop acquires a free slot before receiving a message, so no more than
+ * the maximum number of messages are taken from the queue and processed at once.
+ * Errors thrown by the receiver are logged and do not affect other workers.
+ * When the pool has a single thread, messages are processed on the listening thread.
+ * <p>
+ * In virtual thread mode every message is processed on its own virtual thread.
+ * If the running JDK does not support virtual threads, messages are processed
+ * on the executor shared by all queues.
+ *
+ * @see MessageQueue#listen(String, IMessageReceiver)
+ */
+public class MessageListenerPool {
+    private final IMessageQueue _queue;
+    private final IMessageReceiver _receiver;
+    private final CompositeLogger _logger;
+    private final LatencyHistogram _handlerTime;
+    private final ExecutorService _executor;
+    private final ThreadFactory _virtualThreadFactory;
+    private final boolean _ownsExecutor;
+    private final int _maxInflight;
+    private final Semaphore _slots;
+
+    /**
+     * Creates a new instance of the pool.
+     *
+     * @param queue       a queue where messages come from.
+     * @param receiver    a receiver to process incoming messages.
+     * @param logger      a logger to log processing errors.
+     * @param threadCount a number of worker threads.
+     * @param maxInflight a maximum number of messages processed or waiting for a worker at once.
+     */
+    public MessageListenerPool(IMessageQueue queue, IMessageReceiver receiver, CompositeLogger logger,
+                               int threadCount, int maxInflight) {
+        this(queue, receiver, logger, threadCount, maxInflight, false, null);
+    }
+
+    /**
+     * Creates a new instance of the pool.
+     *
+     * @param queue          a queue where messages come from.
+     * @param receiver       a receiver to process incoming messages.
+     * @param logger         a logger to log processing errors.
+     * @param threadCount    a number of worker threads.
+     * @param maxInflight    a maximum number of messages processed or waiting for a worker at once.
+     * @param virtualThreads true to process messages on virtual threads.
+     * @param handlerTime    (optional) a histogram to record time spent by the receiver.
+     */
+    public MessageListenerPool(IMessageQueue queue, IMessageReceiver receiver, CompositeLogger logger,
+                               int threadCount, int maxInflight, boolean virtualThreads,
+                               LatencyHistogram handlerTime) {
+        _queue = queue;
+        _receiver = receiver;
+        _logger = logger;
+        _handlerTime = handlerTime;
+        _maxInflight = Math.max(maxInflight, 1);
+        _slots = new Semaphore(_maxInflight);
+
+        if (threadCount <= 1) {
+            _virtualThreadFactory = null;
+            _executor = null;
+            _ownsExecutor = false;
+        } else if (virtualThreads) {
+            _virtualThreadFactory = QueueThreads.createVirtualThreadFactory("queue-" + queue.getName() + "-worker-");
+            _executor = _virtualThreadFactory == null ? QueueThreads.getSharedExecutor() : null;
+            _ownsExecutor = false;
+        } else {
+            _virtualThreadFactory = null;
+            _executor = Executors.newFixedThreadPool(threadCount, createThreadFactory(queue));
+            _ownsExecutor = true;
+        }
+    }
+
+    private static ThreadFactory createThreadFactory(IMessageQueue queue) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return (runnable) -> new Thread(runnable, "queue-" + queue.getName() + "-worker-" + threadNumber.incrementAndGet());
+    }
+
+    /**
+     * Waits for a free slot to process a message.
+     *
+     * @param timeout a timeout in milliseconds to wait for a free slot.
+     * @return true if the slot was acquired and false if timeout expired.
+     * @throws InterruptedException when the thread was interrupted.
+     */
+    public boolean acquire(long timeout) throws InterruptedException {
+        return _slots.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Releases a slot acquired for a message that wasn't received.
+     */
+    public void release() {
+        _slots.release();
+    }
+
+    /**
+     * Passes a message to the receiver in a free worker and releases
+     * the acquired slot when processing is completed.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param message       a received message.
+     */
+    public void dispatch(String correlationId, MessageEnvelope message) {
+        if (_virtualThreadFactory != null) {
+            _virtualThreadFactory.newThread(() -> process(correlationId, message)).start();
+            return;
+        }
+
+        if (_executor == null) {
+            process(correlationId, message);
+            return;
+        }
+
+        try {
+            _executor.execute(() -> process(correlationId, message));
+        } catch (RejectedExecutionException ex) {
+            _slots.release();
+            _logger.error(correlationId, ex, "Failed to process the message");
+        }
+    }
+
+    private void process(String correlationId, MessageEnvelope message) {
+        long startTime = System.nanoTime();
+        try {
+            _receiver.receiveMessage(message, _queue);
+        } catch (Exception ex) {
+            _logger.error(correlationId, ex, "Failed to process the message");
+        } finally {
+            if (_handlerTime != null)
+                _handlerTime.recordNanos(startTime, System.nanoTime());
+            _slots.release();
+        }
+    }
+
+    /**
+     * Stops accepting new messages and waits until workers complete processing of received messages.
+     *
+     * @param timeout a timeout in milliseconds to wait for workers.
+     */
+    public void close(long timeout) {
+        if (!_ownsExecutor) {
+            awaitSlots(timeout);
+            return;
+        }
+
+        _executor.shutdown();
+        try {
+            if (!_executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+                _executor.shutdownNow();
+        } catch (InterruptedException ex) {
+            _executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitSlots(long timeout) {
+        // All slots are back when no messages are processed
+        try {
+            if (_slots.tryAcquire(_maxInflight, timeout, TimeUnit.MILLISECONDS))
+                _slots.release(_maxInflight);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
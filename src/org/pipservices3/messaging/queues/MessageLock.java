@@ -0,0 +1,42 @@
+package org.pipservices3.messaging.queues;
+
+/**
+ * Lock of a received message in memory and file queues. Locks are ordered
+ * by their expiration time in a {@link DeadlineHeap}, so messages with expired locks
+ * are returned back to the queue.
+ *
+ * @see MemoryMessageQueue
+ * @see FileMessageQueue
+ */
+class MessageLock extends DeadlineHeap.Entry {
+    /**
+     * The locked message.
+     */
+    MessageEnvelope message;
+
+    /**
+     * The token that identifies the lock.
+     */
+    long lockToken;
+
+    /**
+     * The expiration time for the message lock in milliseconds since epoch.
+     * When the lock expires the message is returned back to the queue.
+     */
+    long expirationTime;
+
+    /**
+     * The lock timeout in milliseconds.
+     */
+    long timeout;
+
+    /**
+     * The time when the message was locked in nanoseconds from {@link System#nanoTime()}.
+     */
+    long lockTime;
+
+    @Override
+    long getDeadline() {
+        return expirationTime;
+    }
+}
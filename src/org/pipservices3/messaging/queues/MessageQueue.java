@@ -1,10 +1,14 @@
 package org.pipservices3.messaging.queues;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.pipservices3.commons.config.ConfigParams;
 import org.pipservices3.commons.config.IConfigurable;
 import org.pipservices3.commons.config.NameResolver;
 import org.pipservices3.commons.errors.ApplicationException;
+import org.pipservices3.commons.errors.BadRequestException;
+import org.pipservices3.commons.errors.ConfigException;
 import org.pipservices3.commons.errors.InvalidStateException;
+import org.pipservices3.commons.errors.UnsupportedException;
 import org.pipservices3.commons.refer.IReferenceable;
 import org.pipservices3.commons.refer.IReferences;
 import org.pipservices3.commons.refer.ReferenceException;
@@ -17,7 +21,9 @@ import org.pipservices3.components.connect.ConnectionResolver;
 import org.pipservices3.components.count.CompositeCounters;
 import org.pipservices3.components.log.CompositeLogger;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Deflater;
 
 /**
  * Abstract message queue that is used as a basis for specific message queue implementations.
@@ -41,6 +47,17 @@ import java.util.List;
  *   <li>access_id:                 application access id
  *   <li>access_key:                application secret key
  *   </ul>
+ * <li>options:
+ *   <ul>
+ *   <li>listen_threads:            number of worker threads that process messages while listening (default: 1)
+ *   <li>max_inflight:              maximum number of messages processed at once while listening (default: listen_threads)
+ *   <li>listen_shutdown_timeout:   timeout in milliseconds to wait for workers when listening ends (default: 30000)
+ *   <li>virtual_threads:           true to listen and process messages on virtual threads when the JDK supports them (default: false)
+ *   <li>counters_interval:         interval in milliseconds to pass collected counters to ICounters (default: 1000)
+ *   <li>serializer:                serializer for objects sent by sendAsObject: none, json or cbor (default: none)
+ *   <li>compression_threshold:     minimum size in bytes of string and binary payloads compressed in the queue, 0 to disable (default: 0)
+ *   <li>compression_level:         deflate compression level from 1 (fastest) to 9 (smallest) (default: 1)
+ *   </ul>
  * </ul>
  * <p>
  * ### References ###
@@ -61,8 +78,28 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
     protected final Object _lock = new Object();
     protected CompositeLogger _logger = new CompositeLogger();
     protected CompositeCounters _counters = new CompositeCounters();
+    protected final QueueCounters _queueCounters = new QueueCounters(_counters, getName());
+    protected final QueueCounter _sentMessages = _queueCounters.getCounter("sent_messages");
+    protected final QueueCounter _receivedMessages = _queueCounters.getCounter("received_messages");
+    protected final QueueCounter _deadMessages = _queueCounters.getCounter("dead_messages");
+    protected final LatencyHistogram _dwellTime = _queueCounters.getHistogram("dwell_time");
+    protected final LatencyHistogram _handlerTime = _queueCounters.getHistogram("handler_time");
+    protected final LatencyHistogram _lockHoldTime = _queueCounters.getHistogram("lock_hold_time");
     protected ConnectionResolver _connectionResolver = new ConnectionResolver();
     protected CredentialResolver _credentialResolver = new CredentialResolver();
+    protected int _listenThreads = 1;
+    protected int _maxInflight = 0;
+    protected long _listenShutdownTimeout = 30000;
+    protected boolean _virtualThreads = false;
+    protected IMessageSerializer _serializer;
+    /**
+     * True to pass objects sent by sendAsObject to receivers without serialization.
+     * It is set by queues that deliver messages within the same process.
+     */
+    protected boolean _deferSerialization = false;
+    private ConfigException _serializerError;
+    protected int _compressionThreshold = 0;
+    protected int _compressionLevel = Deflater.BEST_SPEED;
 
     /**
      * Creates a new instance of the message queue.
@@ -79,6 +116,7 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
     public MessageQueue(String name, MessagingCapabilities capabilities) {
         this._name = name;
         this._capabilities = capabilities != null ? capabilities : this._capabilities;
+        _queueCounters.setQueueName(getName());
     }
 
     /**
@@ -88,6 +126,7 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
      */
     public MessageQueue(String name) {
         _name = name;
+        _queueCounters.setQueueName(getName());
     }
 
     /**
@@ -98,6 +137,7 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
      */
     public MessageQueue(String name, ConfigParams config) {
         _name = name;
+        _queueCounters.setQueueName(getName());
         if (config != null)
             configure(config);
     }
@@ -114,6 +154,28 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
         _credentialResolver.configure(config, true);
 
         _name = config.getAsStringWithDefault("queue", _name);
+        _queueCounters.setQueueName(getName());
+        _queueCounters.setInterval(config.getAsLongWithDefault("options.counters_interval", _queueCounters.getInterval()));
+
+        _listenThreads = config.getAsIntegerWithDefault("options.listen_threads", _listenThreads);
+        _maxInflight = config.getAsIntegerWithDefault("options.max_inflight", _maxInflight);
+        _listenShutdownTimeout = config.getAsLongWithDefault("options.listen_shutdown_timeout", _listenShutdownTimeout);
+        _virtualThreads = config.getAsBooleanWithDefault("options.virtual_threads", _virtualThreads);
+
+        _compressionThreshold = config.getAsIntegerWithDefault("options.compression_threshold", _compressionThreshold);
+        _compressionLevel = config.getAsIntegerWithDefault("options.compression_level", _compressionLevel);
+        _compressionLevel = Math.min(Math.max(_compressionLevel, Deflater.BEST_SPEED), Deflater.BEST_COMPRESSION);
+
+        String serializer = config.getAsNullableString("options.serializer");
+        if (serializer != null) {
+            try {
+                _serializer = MessageSerializers.create(null, serializer);
+                _serializerError = null;
+            } catch (ConfigException ex) {
+                // Configuration errors are reported when the queue is opened
+                _serializerError = ex;
+            }
+        }
     }
 
     /**
@@ -149,6 +211,47 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
 
     public abstract int readMessageCount();
 
+    /**
+     * Gets the histogram of time messages wait in the queue from sending until receiving.
+     *
+     * @return the dwell time histogram.
+     */
+    public LatencyHistogram getDwellTime() {
+        return _dwellTime;
+    }
+
+    /**
+     * Gets the histogram of time the receiver spends processing messages while listening.
+     *
+     * @return the handler time histogram.
+     */
+    public LatencyHistogram getHandlerTime() {
+        return _handlerTime;
+    }
+
+    /**
+     * Gets the histogram of time received messages stay locked until they are completed,
+     * abandoned or moved to dead letter queue.
+     *
+     * @return the lock hold time histogram.
+     */
+    public LatencyHistogram getLockHoldTime() {
+        return _lockHoldTime;
+    }
+
+    /**
+     * Records the time the message waited in the queue since it was sent.
+     *
+     * @param message a received message.
+     * @param now     the current time in milliseconds.
+     */
+    protected void recordDwellTime(MessageEnvelope message, long now) {
+        // Delayed messages wait in the queue from their delivery time
+        long startTime = Math.max(message.getSentTimeMillis(), message.getDeliveryTimeMillis());
+        if (startTime != 0)
+            _dwellTime.record((now - startTime) * 1000);
+    }
+
     /**
      * Checks if the component is opened.
      *
@@ -165,6 +268,9 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
      */
     @Override
     public void open(String correlationId) throws ApplicationException {
+        if (_serializerError != null)
+            throw _serializerError;
+
         ConnectionParams connection = _connectionResolver.resolve(correlationId);
         CredentialParams credential = _credentialResolver.lookup(correlationId);
         openWithParams(correlationId, connection, credential);
@@ -224,9 +330,67 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
      */
     public abstract void send(String correlationId, MessageEnvelope message) throws ApplicationException;
 
+    /**
+     * Sends a message into the queue to be delivered after a delay.
+     * <p>
+     * The default implementation sets the delivery time of the message and calls
+     * {@link #send(String, MessageEnvelope)}. Queues that don't report
+     * {@link MessagingCapabilities#canSchedule()} reject positive delays.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param message       a message envelop to be sent.
+     * @param delay         a delay in milliseconds before the message is delivered.
+     * @throws ApplicationException when error occured or the queue can't deliver delayed messages.
+     * @see MessageEnvelope#setDeliveryTimeMillis(long)
+     */
+    public void send(String correlationId, MessageEnvelope message, long delay) throws ApplicationException {
+        if (delay > 0 && !getCapabilities().canSchedule())
+            throw new UnsupportedException(correlationId, "NOT_SUPPORTED",
+                    "Queue " + getName() + " doesn't support delayed delivery");
+
+        if (message != null && delay > 0)
+            message.setDeliveryTimeMillis(System.currentTimeMillis() + delay);
+
+        send(correlationId, message);
+    }
+
+    /**
+     * Compresses the message payload when compression is enabled and the payload
+     * is not smaller than the configured threshold. Queues call it before messages are stored.
+     *
+     * @param message a message to compress.
+     */
+    protected void compressMessage(MessageEnvelope message) {
+        if (_compressionThreshold > 0 && message != null)
+            message.compressMessage(_compressionThreshold, _compressionLevel);
+    }
+
+    /**
+     * Sends a batch of messages into the queue.
+     * <p>
+     * The default implementation calls {@link #send(String, MessageEnvelope)} for every message.
+     * Specific queues may override it to send the whole batch in one call.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param messages      a list of message envelops to be sent.
+     * @throws ApplicationException when error occured.
+     */
+    public void sendBatch(String correlationId, List<MessageEnvelope> messages) throws ApplicationException {
+        if (messages == null)
+            return;
+
+        for (MessageEnvelope message : messages)
+            send(correlationId, message);
+    }
+
     /**
      * Sends an object into the queue. Before sending the object is converted into
-     * JSON string and wrapped in a [[MessageEnvelope]].
+     * JSON string and wrapped in a [[MessageEnvelope]]. When the queue is configured
+     * with a serializer the object is converted into a binary payload by that serializer.
+     * Queues that deliver messages within the same process pass the original object
+     * and serialize it only when the payload is requested.
      *
      * @param correlationId (optional) transaction id to trace execution through
      *                      call chain.
@@ -236,7 +400,23 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
      * @see #send(String, MessageEnvelope)
      */
     public void sendAsObject(String correlationId, String messageType, Object message) throws ApplicationException {
-        MessageEnvelope envelop = new MessageEnvelope(correlationId, messageType, message);
+        MessageEnvelope envelop;
+        if (_deferSerialization) {
+            envelop = new MessageEnvelope(correlationId, messageType, (Object) null);
+            envelop.setSerializer(_serializer);
+            envelop.setMessageAsObjectDeferred(message);
+        } else if (_serializer != null) {
+            envelop = new MessageEnvelope(correlationId, messageType, (Object) null);
+            envelop.setSerializer(_serializer);
+            try {
+                envelop.setMessageAsObject(message);
+            } catch (JsonProcessingException ex) {
+                throw new BadRequestException(correlationId, "SERIALIZATION_FAILED",
+                        "Failed to serialize message of type " + messageType).withCause(ex);
+            }
+        } else {
+            envelop = new MessageEnvelope(correlationId, messageType, message);
+        }
         send(correlationId, envelop);
     }
 
@@ -274,6 +454,58 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
      */
     public abstract MessageEnvelope receive(String correlationId, long waitTimeout) throws ApplicationException;
 
+    /**
+     * Receives a batch of incoming messages and removes them from the queue.
+     * The method returns as soon as at least one message is available
+     * and takes up to the maximum number of messages that are ready.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param maxCount      a maximum number of messages to receive.
+     * @param waitTimeout   a timeout in milliseconds to wait for a message to come.
+     * @return a list with received messages or an empty list if no messages came before timeout.
+     * @throws ApplicationException when error occured.
+     * @see #receiveBatch(String, int, int, long)
+     */
+    public List<MessageEnvelope> receiveBatch(String correlationId, int maxCount, long waitTimeout) throws ApplicationException {
+        return receiveBatch(correlationId, 1, maxCount, waitTimeout);
+    }
+
+    /**
+     * Receives a batch of incoming messages and removes them from the queue.
+     * The method waits until at least the minimum number of messages is received
+     * or the timeout expires, and takes up to the maximum number of messages that are ready.
+     * <p>
+     * The default implementation calls {@link #receive(String, long)} for every message.
+     * Specific queues may override it to receive the whole batch in one call.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param minCount      a minimum number of messages to wait for.
+     * @param maxCount      a maximum number of messages to receive.
+     * @param waitTimeout   a timeout in milliseconds to wait for messages to come.
+     * @return a list with received messages. It may contain less than the minimum
+     * number of messages if timeout expired.
+     * @throws ApplicationException when error occured.
+     */
+    public List<MessageEnvelope> receiveBatch(String correlationId, int minCount, int maxCount, long waitTimeout)
+            throws ApplicationException {
+        List<MessageEnvelope> messages = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + Math.max(waitTimeout, 0);
+
+        while (messages.size() < maxCount) {
+            // Wait only until the minimum number of messages is collected
+            long timeout = messages.size() < minCount ? deadline - System.currentTimeMillis() : 0;
+            MessageEnvelope message = receive(correlationId, Math.max(timeout, 0));
+            if (message == null)
+                break;
+
+            messages.add(message);
+        }
+
+        return messages;
+    }
+
     /**
      * Renews a lock on a message that makes it invisible from other receivers in
      * the queue. This method is usually used to extend the message processing time.
@@ -314,6 +546,75 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
      */
     public abstract void moveToDeadLetter(MessageEnvelope message) throws ApplicationException;
 
+    /**
+     * Permanently removes a batch of messages from the queue.
+     * <p>
+     * The default implementation calls {@link #complete(MessageEnvelope)} for every message.
+     *
+     * @param messages a list of messages to remove.
+     * @return an array of flags in the order of the messages. A flag is true
+     * when the message was removed and false when it wasn't locked or failed.
+     * @throws ApplicationException when error occured.
+     */
+    public boolean[] completeBatch(List<MessageEnvelope> messages) throws ApplicationException {
+        return settleBatch(messages, this::complete, "complete");
+    }
+
+    /**
+     * Returns a batch of messages into the queue and makes them available
+     * for all subscribers to receive them again.
+     * <p>
+     * The default implementation calls {@link #abandon(MessageEnvelope)} for every message.
+     *
+     * @param messages a list of messages to return.
+     * @return an array of flags in the order of the messages. A flag is true
+     * when the message was returned and false when it wasn't locked or failed.
+     * @throws ApplicationException when error occured.
+     */
+    public boolean[] abandonBatch(List<MessageEnvelope> messages) throws ApplicationException {
+        return settleBatch(messages, this::abandon, "abandon");
+    }
+
+    /**
+     * Permanently removes a batch of messages from the queue and sends them to dead letter queue.
+     * <p>
+     * The default implementation calls {@link #moveToDeadLetter(MessageEnvelope)} for every message.
+     *
+     * @param messages a list of messages to be removed.
+     * @return an array of flags in the order of the messages. A flag is true
+     * when the message was removed and false when it wasn't locked or failed.
+     * @throws ApplicationException when error occured.
+     */
+    public boolean[] moveToDeadLetterBatch(List<MessageEnvelope> messages) throws ApplicationException {
+        return settleBatch(messages, this::moveToDeadLetter, "move to dead letter");
+    }
+
+    @FunctionalInterface
+    private interface MessageAction {
+        void apply(MessageEnvelope message) throws ApplicationException;
+    }
+
+    private boolean[] settleBatch(List<MessageEnvelope> messages, MessageAction action, String actionName) {
+        if (messages == null)
+            return new boolean[0];
+
+        boolean[] results = new boolean[messages.size()];
+        int index = 0;
+        for (MessageEnvelope message : messages) {
+            if (message != null && message.getReference() != null) {
+                try {
+                    action.apply(message);
+                    results[index] = true;
+                } catch (Exception ex) {
+                    _logger.error(message.getCorrelationId(), ex, "Failed to %s message %s", actionName, message);
+                }
+            }
+            index++;
+        }
+
+        return results;
+    }
+
     /**
      * Listens for incoming messages and blocks the current thread until queue is
      * closed.
@@ -326,6 +627,20 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
      */
     public abstract void listen(String correlationId, IMessageReceiver receiver) throws ApplicationException;
 
+    /**
+     * Creates a pool of workers to process incoming messages while listening.
+     * The pool is sized by <code>options.listen_threads</code> and <code>options.max_inflight</code>
+     * configuration parameters and uses virtual threads when <code>options.virtual_threads</code> is set.
+     *
+     * @param receiver a receiver to receive incoming messages.
+     * @return a created listener pool.
+     */
+    protected MessageListenerPool createListenerPool(IMessageReceiver receiver) {
+        int maxInflight = _maxInflight > 0 ? _maxInflight : _listenThreads;
+        return new MessageListenerPool(this, receiver, _logger, _listenThreads, maxInflight, _virtualThreads,
+                _handlerTime);
+    }
+
     /**
      * Listens for incoming messages without blocking the current thread.
      *
@@ -336,7 +651,7 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
      */
     public void beginListen(String correlationId, IMessageReceiver receiver) {
         // Start listening on a parallel tread
-        new Thread(new Runnable() {
+        QueueThreads.start("queue-" + getName() + "-listener", new Runnable() {
             @Override
             public void run() {
                 try {
@@ -345,7 +660,7 @@ public abstract class MessageQueue implements IMessageQueue, IReferenceable, ICo
                     _logger.error(correlationId, ex, "Failed to listen messages");
                 }
             }
-        }).start();
+        }, _virtualThreads);
     }
 
     /**
@@ -0,0 +1,159 @@
+package org.pipservices3.messaging.queues;
+
+import java.util.function.Predicate;
+
+/**
+ * Growable ring buffer that stores pending messages in {@link MemoryMessageQueue}.
+ * <p>
+ * Adding to the tail and removing from the head take constant time.
+ * The buffer doubles its capacity when it is full and halves it when
+ * it becomes less than a quarter full, so memory taken by a burst
+ * of messages is released once the burst is drained.
+ * <p>
+ * The buffer is not thread-safe. Callers are responsible for synchronization.
+ *
+ * @see MemoryMessageQueue
+ */
+final class MessageRingBuffer {
+    private static final int MIN_CAPACITY = 16;
+
+    private MessageEnvelope[] _items;
+    private int _head = 0;
+    private int _size = 0;
+
+    /**
+     * Creates a new instance of the buffer.
+     */
+    MessageRingBuffer() {
+        _items = new MessageEnvelope[MIN_CAPACITY];
+    }
+
+    /**
+     * Gets the number of messages in the buffer.
+     *
+     * @return the number of messages.
+     */
+    int size() {
+        return _size;
+    }
+
+    /**
+     * Checks if the buffer has no messages.
+     *
+     * @return true if the buffer is empty and false otherwise.
+     */
+    boolean isEmpty() {
+        return _size == 0;
+    }
+
+    /**
+     * Gets the current capacity of the buffer.
+     *
+     * @return the number of slots allocated in the buffer.
+     */
+    int capacity() {
+        return _items.length;
+    }
+
+    /**
+     * Adds a message to the tail of the buffer.
+     *
+     * @param message a message to be added.
+     */
+    void addLast(MessageEnvelope message) {
+        if (_size == _items.length)
+            resize(_items.length << 1);
+
+        _items[(_head + _size) & (_items.length - 1)] = message;
+        _size++;
+    }
+
+    /**
+     * Gets a message at the head of the buffer without removing it.
+     *
+     * @return the first message or <code>null</code> if the buffer is empty.
+     */
+    MessageEnvelope peekFirst() {
+        return _size > 0 ? _items[_head] : null;
+    }
+
+    /**
+     * Gets a message by its position counting from the head of the buffer.
+     *
+     * @param index a position of the message.
+     * @return the message at the given position.
+     */
+    MessageEnvelope get(int index) {
+        if (index < 0 || index >= _size)
+            throw new IndexOutOfBoundsException("Index " + index + " is out of range 0.." + _size);
+
+        return _items[(_head + index) & (_items.length - 1)];
+    }
+
+    /**
+     * Removes a message from the head of the buffer.
+     *
+     * @return the removed message or <code>null</code> if the buffer is empty.
+     */
+    MessageEnvelope pollFirst() {
+        if (_size == 0)
+            return null;
+
+        MessageEnvelope message = _items[_head];
+        _items[_head] = null;
+        _head = (_head + 1) & (_items.length - 1);
+        _size--;
+
+        if (_items.length > MIN_CAPACITY && _size < (_items.length >> 2))
+            resize(_items.length >> 1);
+
+        return message;
+    }
+
+    /**
+     * Removes messages that match the filter. Remaining messages keep their order.
+     * The buffer is compacted in a single pass, so it takes linear time.
+     *
+     * @param filter a filter that returns true for messages to be removed.
+     * @return the number of removed messages.
+     */
+    int removeIf(Predicate<MessageEnvelope> filter) {
+        int mask = _items.length - 1;
+        int count = 0;
+        for (int index = 0; index < _size; index++) {
+            MessageEnvelope message = _items[(_head + index) & mask];
+            if (filter.test(message))
+                count++;
+            else if (count > 0)
+                _items[(_head + index - count) & mask] = message;
+        }
+
+        for (int index = _size - count; index < _size; index++)
+            _items[(_head + index) & mask] = null;
+        _size -= count;
+
+        if (_items.length > MIN_CAPACITY && _size < (_items.length >> 2))
+            resize(Math.max(Integer.highestOneBit(Math.max(_size, 1)) << 1, MIN_CAPACITY));
+
+        return count;
+    }
+
+    /**
+     * Removes all messages and releases the allocated memory.
+     */
+    void clear() {
+        _items = new MessageEnvelope[MIN_CAPACITY];
+        _head = 0;
+        _size = 0;
+    }
+
+    private void resize(int capacity) {
+        MessageEnvelope[] items = new MessageEnvelope[capacity];
+        int firstPart = Math.min(_size, _items.length - _head);
+        System.arraycopy(_items, _head, items, 0, firstPart);
+        System.arraycopy(_items, 0, items, firstPart, _size - firstPart);
+
+        _items = items;
+        _head = 0;
+    }
+}
@@ -0,0 +1,60 @@
+package org.pipservices3.messaging.queues;
+
+import org.pipservices3.commons.errors.ConfigException;
+
+/**
+ * Helper that creates message serializers by names used in configuration.
+ *
+ * @see IMessageSerializer
+ */
+public final class MessageSerializers {
+    private static final CborMessageSerializer _cbor = new CborMessageSerializer();
+
+    private MessageSerializers() {
+    }
+
+    /**
+     * Creates a serializer by its name.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param name          a serializer name: "json", "cbor" or "none".
+     * @return a created serializer or <code>null</code> for "none" or empty name.
+     * @throws ConfigException when the name is not known.
+     */
+    public static IMessageSerializer create(String correlationId, String name) throws ConfigException {
+        if (name == null || name.isEmpty())
+            return null;
+
+        switch (name.trim().toLowerCase()) {
+            case "none":
+                return null;
+            case "json":
+                return JsonMessageSerializer.getDefault();
+            case "cbor":
+                return _cbor;
+            default:
+                throw new ConfigException(correlationId, "UNKNOWN_SERIALIZER", "Unknown message serializer " + name);
+        }
+    }
+
+    /**
+     * Finds a serializer for payloads of the given content type.
+     *
+     * @param contentType a content type like "application/json" or "application/cbor".
+     * @return a found serializer or <code>null</code> if the content type is not supported.
+     */
+    public static IMessageSerializer fromContentType(String contentType) {
+        if (contentType == null)
+            return null;
+
+        switch (contentType) {
+            case "application/json":
+                return JsonMessageSerializer.getDefault();
+            case "application/cbor":
+                return _cbor;
+            default:
+                return null;
+        }
+    }
+}
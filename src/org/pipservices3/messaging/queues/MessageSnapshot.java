@@ -0,0 +1,136 @@
+package org.pipservices3.messaging.queues;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Helper that saves messages of a {@link MemoryMessageQueue} into a binary snapshot file
+ * and loads them back, so the queue survives a planned restart.
+ * <p>
+ * The snapshot is a header followed by records <code>[length][checksum][message]</code>
+ * in the binary form of {@link MessageEnvelopeCodec}, an end marker and the number of records.
+ * Files are written and read through buffered streams one record at a time, and reading
+ * doesn't produce intermediate JSON strings. A snapshot is first written to a temporary file
+ * and then moved in place, so a failed write never replaces a good snapshot.
+ *
+ * @see MemoryMessageQueue
+ */
+final class MessageSnapshot {
+    private static final int MAGIC = 0x4D515353;
+    private static final byte VERSION = 1;
+    private static final int END_OF_RECORDS = 0;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private MessageSnapshot() {
+    }
+
+    /**
+     * Writes messages into a snapshot file replacing the previous snapshot.
+     *
+     * @param path     a path to the snapshot file.
+     * @param messages messages in the order they shall be delivered.
+     * @throws IOException when the snapshot can't be written.
+     */
+    static void write(Path path, Collection<MessageEnvelope> messages) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+        CRC32 checksum = new CRC32();
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            output.writeInt(MAGIC);
+            output.writeByte(VERSION);
+
+            ByteBuffer encoded = null;
+            for (MessageEnvelope message : messages) {
+                encoded = MessageEnvelopeCodec.encode(message, encoded);
+
+                checksum.reset();
+                checksum.update(encoded.array(), encoded.arrayOffset(), encoded.limit());
+                output.writeInt(encoded.limit());
+                output.writeInt((int) checksum.getValue());
+                output.write(encoded.array(), encoded.arrayOffset(), encoded.limit());
+            }
+
+            output.writeInt(END_OF_RECORDS);
+            output.writeLong(messages.size());
+            output.flush();
+            channel.force(false);
+        } catch (IOException ex) {
+            Files.deleteIfExists(tempPath);
+            throw ex;
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads messages from a snapshot file.
+     *
+     * @param path a path to the snapshot file.
+     * @return messages in the order they shall be delivered
+     * or an empty list if the snapshot doesn't exist.
+     * @throws IOException when the snapshot can't be read or is corrupted.
+     */
+    static List<MessageEnvelope> read(Path path) throws IOException {
+        List<MessageEnvelope> messages = new ArrayList<>();
+        if (!Files.exists(path))
+            return messages;
+
+        CRC32 checksum = new CRC32();
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+            if (input.readInt() != MAGIC)
+                throw new IOException("File " + path + " is not a message snapshot");
+            byte version = input.readByte();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot format version " + version);
+
+            // Message fields are copied when decoded, so the body array is reused for all records
+            byte[] body = new byte[BUFFER_SIZE];
+            while (true) {
+                int length = input.readInt();
+                if (length == END_OF_RECORDS)
+                    break;
+                if (length < 0)
+                    throw new IOException("Snapshot " + path + " is corrupted");
+
+                int expectedChecksum = input.readInt();
+                if (body.length < length)
+                    body = new byte[Math.max(length, body.length * 2)];
+                input.readFully(body, 0, length);
+
+                checksum.reset();
+                checksum.update(body, 0, length);
+                if ((int) checksum.getValue() != expectedChecksum)
+                    throw new IOException("Snapshot " + path + " is corrupted");
+
+                messages.add(MessageEnvelopeCodec.decode(ByteBuffer.wrap(body, 0, length)));
+            }
+
+            if (input.readLong() != messages.size())
+                throw new IOException("Snapshot " + path + " is corrupted");
+        } catch (EOFException ex) {
+            throw new IOException("Snapshot " + path + " is truncated", ex);
+        }
+
+        return messages;
+    }
+}
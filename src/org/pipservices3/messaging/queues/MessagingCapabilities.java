@@ -14,6 +14,7 @@ public class MessagingCapabilities {
 	private final boolean _abandon;
 	private final boolean _deadLetter;
 	private final boolean _clear;
+	private final boolean _schedule;
 
 	/**
 	 * Creates a new instance of the capabilities object.
@@ -32,6 +33,27 @@ public class MessagingCapabilities {
 	 */
 	public MessagingCapabilities(boolean messageCount, boolean send, boolean receive, boolean peek, boolean peekBatch,
 			boolean renewLock, boolean abandon, boolean deadLetter, boolean clear) {
+		this(messageCount, send, receive, peek, peekBatch, renewLock, abandon, deadLetter, clear, false);
+	}
+
+	/**
+	 * Creates a new instance of the capabilities object.
+	 * 
+	 * @param messageCount true if queue supports reading message count.
+	 * @param send         true if queue is able to send messages.
+	 * @param receive      true if queue is able to receive messages.
+	 * @param peek         true if queue is able to peek messages.
+	 * @param peekBatch    true if queue is able to peek multiple messages in one
+	 *                     batch.
+	 * @param renewLock    true if queue is able to renew message lock.
+	 * @param abandon      true if queue is able to abandon messages.
+	 * @param deadLetter   true if queue is able to send messages to dead letter
+	 *                     queue.
+	 * @param clear        true if queue can be cleared.
+	 * @param schedule     true if queue is able to deliver messages after a delay.
+	 */
+	public MessagingCapabilities(boolean messageCount, boolean send, boolean receive, boolean peek, boolean peekBatch,
+			boolean renewLock, boolean abandon, boolean deadLetter, boolean clear, boolean schedule) {
 		_messageCount = messageCount;
 		_send = send;
 		_receive = receive;
@@ -41,6 +63,7 @@ public class MessagingCapabilities {
 		_abandon = abandon;
 		_deadLetter = deadLetter;
 		_clear = clear;
+		_schedule = schedule;
 	}
 
 	/**
@@ -123,4 +146,13 @@ public class MessagingCapabilities {
 	public boolean canClear() {
 		return _clear;
 	}
+
+	/**
+	 * Informs if the queue is able to deliver messages after a delay.
+	 * 
+	 * @return true if queue is able to deliver delayed messages.
+	 */
+	public boolean canSchedule() {
+		return _schedule;
+	}
 }
@@ -0,0 +1,56 @@
+package org.pipservices3.messaging.queues;
+
+/**
+ * Defines what a bounded message queue does with a new message when it is full.
+ *
+ * @see MemoryMessageQueue
+ */
+public enum OverflowPolicy {
+    /**
+     * Blocks the producer until space becomes available or the send timeout expires.
+     */
+    Block,
+
+    /**
+     * Rejects the new message with an error.
+     */
+    Reject,
+
+    /**
+     * Removes the oldest messages from the queue to make space for the new message.
+     */
+    DropOldest,
+
+    /**
+     * Silently discards the new message.
+     */
+    DropNewest;
+
+    /**
+     * Converts a configuration value like "block", "reject", "drop_oldest" or "drop_newest"
+     * into an overflow policy.
+     *
+     * @param value        a value to be converted.
+     * @param defaultValue a default policy returned when the value is not recognized.
+     * @return the converted policy.
+     */
+    public static OverflowPolicy fromString(String value, OverflowPolicy defaultValue) {
+        if (value == null)
+            return defaultValue;
+
+        switch (value.trim().toLowerCase().replace("-", "_")) {
+            case "block":
+                return Block;
+            case "reject":
+                return Reject;
+            case "drop_oldest":
+            case "dropoldest":
+                return DropOldest;
+            case "drop_newest":
+            case "dropnewest":
+                return DropNewest;
+            default:
+                return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.pipservices3.messaging.queues;
+
+import java.util.function.Predicate;
+
+/**
+ * Buffer that stores pending messages in {@link MemoryMessageQueue} in a fixed number
+ * of priority lanes. Every lane is a {@link MessageRingBuffer}, so messages of the same
+ * priority keep FIFO order.
+ * <p>
+ * Messages are taken from the highest non-empty lane. Non-empty lanes are tracked by a bit mask,
+ * so adding and removing messages take constant time regardless of the number of lanes.
+ * A message with priority above the highest lane goes to the highest lane and a message
+ * with negative priority goes to the lowest one. With a single lane the buffer is strict FIFO.
+ * <p>
+ * The buffer is not thread-safe. Callers are responsible for synchronization.
+ *
+ * @see MessageEnvelope#getPriority()
+ * @see MemoryMessageQueue
+ */
+final class PriorityMessageBuffer {
+    /**
+     * The maximum number of lanes tracked by the bit mask.
+     */
+    static final int MAX_LANES = 64;
+
+    /**
+     * Lanes ordered from the highest priority to the lowest.
+     */
+    private final MessageRingBuffer[] _lanes;
+    private long _nonEmptyLanes = 0;
+    private int _size = 0;
+
+    /**
+     * Creates a new instance of the buffer.
+     *
+     * @param laneCount a number of priority lanes from 1 to {@link #MAX_LANES}.
+     */
+    PriorityMessageBuffer(int laneCount) {
+        if (laneCount < 1 || laneCount > MAX_LANES)
+            throw new IllegalArgumentException("Number of priority lanes must be between 1 and " + MAX_LANES);
+
+        _lanes = new MessageRingBuffer[laneCount];
+        for (int index = 0; index < laneCount; index++)
+            _lanes[index] = new MessageRingBuffer();
+    }
+
+    /**
+     * Gets the number of priority lanes.
+     *
+     * @return the number of lanes.
+     */
+    int laneCount() {
+        return _lanes.length;
+    }
+
+    /**
+     * Gets the number of messages in all lanes.
+     *
+     * @return the number of messages.
+     */
+    int size() {
+        return _size;
+    }
+
+    /**
+     * Checks if the buffer has no messages.
+     *
+     * @return true if the buffer is empty and false otherwise.
+     */
+    boolean isEmpty() {
+        return _size == 0;
+    }
+
+    /**
+     * Adds a message to the tail of the lane for its priority.
+     *
+     * @param message a message to be added.
+     */
+    void addLast(MessageEnvelope message) {
+        int lane = getLane(message.getPriority());
+        _lanes[lane].addLast(message);
+        _nonEmptyLanes |= 1L << lane;
+        _size++;
+    }
+
+    /**
+     * Gets the next message to deliver without removing it.
+     *
+     * @return the first message of the highest non-empty lane or <code>null</code> if the buffer is empty.
+     */
+    MessageEnvelope peekFirst() {
+        return _size > 0 ? _lanes[Long.numberOfTrailingZeros(_nonEmptyLanes)].peekFirst() : null;
+    }
+
+    /**
+     * Gets a message by its position in the delivery order.
+     *
+     * @param index a position of the message.
+     * @return the message at the given position.
+     */
+    MessageEnvelope get(int index) {
+        if (index < 0 || index >= _size)
+            throw new IndexOutOfBoundsException("Index " + index + " is out of range 0.." + _size);
+
+        for (MessageRingBuffer lane : _lanes) {
+            if (index < lane.size())
+                return lane.get(index);
+            index -= lane.size();
+        }
+        throw new IllegalStateException("Priority lanes are out of sync");
+    }
+
+    /**
+     * Removes the next message to deliver.
+     *
+     * @return the first message of the highest non-empty lane or <code>null</code> if the buffer is empty.
+     */
+    MessageEnvelope pollFirst() {
+        if (_size == 0)
+            return null;
+
+        return pollLane(Long.numberOfTrailingZeros(_nonEmptyLanes));
+    }
+
+    private MessageEnvelope pollLane(int lane) {
+        MessageEnvelope message = _lanes[lane].pollFirst();
+        if (_lanes[lane].isEmpty())
+            _nonEmptyLanes &= ~(1L << lane);
+        _size--;
+
+        return message;
+    }
+
+    /**
+     * Removes the oldest message of the lowest non-empty lane.
+     * It is used to drop messages when the queue overflows.
+     *
+     * @return the first message of the lowest non-empty lane or <code>null</code> if the buffer is empty.
+     */
+    MessageEnvelope pollLowest() {
+        if (_size == 0)
+            return null;
+
+        return pollLane(Long.SIZE - 1 - Long.numberOfLeadingZeros(_nonEmptyLanes));
+    }
+
+    /**
+     * Removes messages that match the filter from all lanes. Remaining messages keep their order.
+     *
+     * @param filter a filter that returns true for messages to be removed.
+     * @return the number of removed messages.
+     */
+    int removeIf(Predicate<MessageEnvelope> filter) {
+        int count = 0;
+        for (int lane = 0; lane < _lanes.length; lane++) {
+            if (_lanes[lane].isEmpty())
+                continue;
+
+            count += _lanes[lane].removeIf(filter);
+            if (_lanes[lane].isEmpty())
+                _nonEmptyLanes &= ~(1L << lane);
+        }
+        _size -= count;
+
+        return count;
+    }
+
+    /**
+     * Removes all messages and releases the allocated memory.
+     */
+    void clear() {
+        for (MessageRingBuffer lane : _lanes)
+            lane.clear();
+        _nonEmptyLanes = 0;
+        _size = 0;
+    }
+
+    private int getLane(int priority) {
+        int highestLane = _lanes.length - 1;
+        return highestLane - Math.max(0, Math.min(priority, highestLane));
+    }
+}
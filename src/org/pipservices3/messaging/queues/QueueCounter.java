@@ -0,0 +1,88 @@
+package org.pipservices3.messaging.queues;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pre-resolved counter of a message queue, like the number of sent or received messages.
+ * <p>
+ * Increments are accumulated in a {@link LongAdder}, so they stay cheap under contention
+ * and allocate nothing. Accumulated values are periodically passed to the queue's
+ * counters by {@link QueueCounters}.
+ *
+ * @see QueueCounters
+ */
+public final class QueueCounter {
+    private final QueueCounters _owner;
+    private final String _metric;
+    private final LongAdder _value = new LongAdder();
+    private volatile String _name;
+
+    /**
+     * Creates a new instance of the counter.
+     *
+     * @param owner     the counters collection that flushes this counter.
+     * @param metric    a name of the measured metric like "sent_messages".
+     * @param queueName a name of the queue.
+     */
+    QueueCounter(QueueCounters owner, String metric, String queueName) {
+        _owner = owner;
+        _metric = metric;
+        setQueueName(queueName);
+    }
+
+    /**
+     * Gets the name of the measured metric.
+     *
+     * @return the metric name.
+     */
+    public String getMetric() {
+        return _metric;
+    }
+
+    /**
+     * Gets the full counter name in the format <code>queue.&lt;queue name&gt;.&lt;metric&gt;</code>.
+     *
+     * @return the counter name.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    void setQueueName(String queueName) {
+        _name = "queue." + queueName + "." + _metric;
+    }
+
+    /**
+     * Increments the counter by 1.
+     */
+    public void increment() {
+        _value.increment();
+        _owner.ensureFlushing();
+    }
+
+    /**
+     * Increments the counter by the given value.
+     *
+     * @param value a value to add.
+     */
+    public void increment(long value) {
+        if (value == 0)
+            return;
+
+        _value.add(value);
+        _owner.ensureFlushing();
+    }
+
+    /**
+     * Gets the value accumulated since the last flush.
+     *
+     * @return the accumulated value.
+     */
+    public long getPending() {
+        return _value.sum();
+    }
+
+    long sumThenReset() {
+        return _value.sumThenReset();
+    }
+}
@@ -0,0 +1,201 @@
+package org.pipservices3.messaging.queues;
+
+import org.pipservices3.components.count.ICounterTimingCallback;
+import org.pipservices3.components.count.ICounters;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collection of pre-resolved counters of a message queue.
+ * <p>
+ * Counter names are built once when the queue name is set, so counting a message
+ * doesn't concatenate strings or look up counters. Accumulated values are passed to
+ * {@link ICounters} in the background with a fixed interval and when the queue is closed.
+ * Flushing starts on the first increment and runs on a thread shared by all queues.
+ * <p>
+ * For every latency histogram with new values the average of the interval is passed
+ * as a timing and its percentiles as <code>.p50</code>, <code>.p95</code>, <code>.p99</code>
+ * and <code>.max</code> last values, all in milliseconds.
+ *
+ * @see QueueCounter
+ * @see MessageQueue
+ */
+public class QueueCounters {
+    private final ICounters _counters;
+    private final List<QueueCounter> _handles = new CopyOnWriteArrayList<>();
+    private final List<LatencyHistogram> _histograms = new CopyOnWriteArrayList<>();
+    private final Map<LatencyHistogram, LatencyHistogram.Snapshot> _flushedSnapshots = new HashMap<>();
+    private volatile String _queueName;
+    private volatile long _interval = 1000;
+    private volatile boolean _flushing = false;
+    private ScheduledFuture<?> _flushTask;
+
+    /**
+     * Creates a new instance of the counters.
+     *
+     * @param counters  counters to pass accumulated values to.
+     * @param queueName a name of the queue.
+     */
+    public QueueCounters(ICounters counters, String queueName) {
+        _counters = counters;
+        _queueName = queueName;
+    }
+
+    /**
+     * Gets a counter for the given metric. The counter is created on the first call.
+     *
+     * @param metric a name of the metric like "sent_messages".
+     * @return the counter.
+     */
+    public synchronized QueueCounter getCounter(String metric) {
+        for (QueueCounter handle : _handles) {
+            if (handle.getMetric().equals(metric))
+                return handle;
+        }
+
+        QueueCounter handle = new QueueCounter(this, metric, _queueName);
+        _handles.add(handle);
+        return handle;
+    }
+
+    /**
+     * Gets a latency histogram for the given metric. The histogram is created on the first call.
+     *
+     * @param metric a name of the metric like "dwell_time".
+     * @return the histogram.
+     */
+    public synchronized LatencyHistogram getHistogram(String metric) {
+        for (LatencyHistogram histogram : _histograms) {
+            if (histogram.getMetric().equals(metric))
+                return histogram;
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram(metric);
+        _histograms.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Sets the queue name and updates names of all counters.
+     *
+     * @param queueName a name of the queue.
+     */
+    public synchronized void setQueueName(String queueName) {
+        if (queueName.equals(_queueName))
+            return;
+
+        // Report values collected under the old name
+        flush();
+
+        _queueName = queueName;
+        for (QueueCounter handle : _handles)
+            handle.setQueueName(queueName);
+    }
+
+    /**
+     * Gets the interval to flush accumulated values.
+     *
+     * @return the interval in milliseconds.
+     */
+    public long getInterval() {
+        return _interval;
+    }
+
+    /**
+     * Sets the interval to flush accumulated values. The new interval takes effect
+     * when flushing is started next time.
+     *
+     * @param interval the interval in milliseconds.
+     */
+    public void setInterval(long interval) {
+        _interval = interval;
+    }
+
+    /**
+     * Passes accumulated values of all counters and histograms to {@link ICounters}.
+     */
+    public synchronized void flush() {
+        for (QueueCounter handle : _handles) {
+            long value = handle.sumThenReset();
+            while (value > 0) {
+                int increment = (int) Math.min(value, Integer.MAX_VALUE);
+                _counters.increment(handle.getName(), increment);
+                value -= increment;
+            }
+        }
+
+        for (LatencyHistogram histogram : _histograms) {
+            LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+            LatencyHistogram.Snapshot interval = snapshot.since(_flushedSnapshots.put(histogram, snapshot));
+            if (interval.getCount() == 0)
+                continue;
+
+            String name = "queue." + _queueName + "." + histogram.getMetric();
+            if (_counters instanceof ICounterTimingCallback callback)
+                callback.endTiming(name, (float) interval.getMean());
+            else
+                _counters.stats(name, (float) interval.getMean());
+
+            _counters.last(name + ".p50", (float) interval.getPercentile(50));
+            _counters.last(name + ".p95", (float) interval.getPercentile(95));
+            _counters.last(name + ".p99", (float) interval.getPercentile(99));
+            _counters.last(name + ".max", (float) interval.getMax());
+        }
+    }
+
+    /**
+     * Passes accumulated values to {@link ICounters} and stops background flushing
+     * until the next increment.
+     */
+    public synchronized void close() {
+        if (_flushTask != null) {
+            _flushTask.cancel(false);
+            _flushTask = null;
+        }
+        _flushing = false;
+
+        flush();
+    }
+
+    void ensureFlushing() {
+        if (!_flushing)
+            startFlushing();
+    }
+
+    private synchronized void startFlushing() {
+        if (_flushing)
+            return;
+
+        long interval = Math.max(_interval, 1);
+        _flushTask = QueueThreads.getScheduler().scheduleWithFixedDelay(
+                new FlushTask(this), interval, interval, TimeUnit.MILLISECONDS);
+        _flushing = true;
+    }
+
+    /**
+     * Background task that doesn't prevent abandoned queues from being garbage collected.
+     */
+    private static class FlushTask implements Runnable {
+        private final WeakReference<QueueCounters> _counters;
+
+        FlushTask(QueueCounters counters) {
+            _counters = new WeakReference<>(counters);
+        }
+
+        @Override
+        public void run() {
+            QueueCounters counters = _counters.get();
+            // Throwing stops further executions of the periodic task
+            if (counters == null)
+                throw new IllegalStateException("Queue counters were collected");
+
+            counters.flush();
+        }
+    }
+}
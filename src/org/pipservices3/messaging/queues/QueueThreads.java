@@ -0,0 +1,154 @@
+package org.pipservices3.messaging.queues;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helper that starts threads for listening queues and their workers
+ * and runs periodic background tasks.
+ * <p>
+ * Virtual threads are used when they are requested and supported by the running JDK.
+ * The project is compiled for Java 18, so virtual threads are created through reflection.
+ * When virtual threads are not available, tasks run on a shared pool of daemon threads
+ * that is reused by all queues in the process.
+ *
+ * @see MessageQueue#beginListen(String, IMessageReceiver)
+ * @see MessageListenerPool
+ */
+final class QueueThreads {
+    private static final Method _ofVirtual;
+    private static final Method _name;
+    private static final Method _numberedName;
+    private static final Method _factory;
+    private static final ExecutorService _sharedExecutor = Executors.newCachedThreadPool(
+            createDaemonThreadFactory("queue-shared-"));
+    private static final ScheduledExecutorService _scheduler = createScheduler();
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method numberedName = null;
+        Method factory = null;
+
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builderClass.getMethod("name", String.class);
+            numberedName = builderClass.getMethod("name", String.class, long.class);
+            factory = builderClass.getMethod("factory");
+
+            // Virtual threads are a preview feature in JDK 19 and 20 and may be disabled
+            ofVirtual.invoke(null);
+        } catch (Throwable ex) {
+            ofVirtual = null;
+        }
+
+        _ofVirtual = ofVirtual;
+        _name = name;
+        _numberedName = numberedName;
+        _factory = factory;
+    }
+
+    private QueueThreads() {
+    }
+
+    private static ThreadFactory createDaemonThreadFactory(String prefix) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return (runnable) -> {
+            Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                createDaemonThreadFactory("queue-scheduler-"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Checks if the running JDK supports virtual threads.
+     *
+     * @return true if virtual threads are supported and false otherwise.
+     */
+    static boolean isVirtualSupported() {
+        return _ofVirtual != null;
+    }
+
+    /**
+     * Creates a factory of virtual threads which names end with a sequential number.
+     *
+     * @param prefix a prefix for thread names.
+     * @return a created thread factory or <code>null</code> if virtual threads are not supported.
+     */
+    static ThreadFactory createVirtualThreadFactory(String prefix) {
+        if (_ofVirtual == null)
+            return null;
+
+        try {
+            Object builder = _ofVirtual.invoke(null);
+            builder = _numberedName.invoke(builder, prefix, 1L);
+            return (ThreadFactory) _factory.invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static Thread createVirtualThread(String name, Runnable task) {
+        if (_ofVirtual == null)
+            return null;
+
+        try {
+            Object builder = _ofVirtual.invoke(null);
+            builder = _name.invoke(builder, name);
+            return ((ThreadFactory) _factory.invoke(builder)).newThread(task);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the executor shared by all queues when virtual threads are not available.
+     *
+     * @return the shared executor.
+     */
+    static ExecutorService getSharedExecutor() {
+        return _sharedExecutor;
+    }
+
+    /**
+     * Gets the scheduler shared by all queues to run short periodic tasks.
+     *
+     * @return the shared scheduler.
+     */
+    static ScheduledExecutorService getScheduler() {
+        return _scheduler;
+    }
+
+    /**
+     * Starts a task on a separate thread.
+     *
+     * @param name    a name of the thread.
+     * @param task    a task to run.
+     * @param virtual true to run the task on a virtual thread.
+     */
+    static void start(String name, Runnable task, boolean virtual) {
+        if (!virtual) {
+            new Thread(task, name).start();
+            return;
+        }
+
+        Thread thread = createVirtualThread(name, task);
+        if (thread != null)
+            thread.start();
+        else
+            _sharedExecutor.execute(task);
+    }
+}
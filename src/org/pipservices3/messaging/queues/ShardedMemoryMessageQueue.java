@@ -0,0 +1,709 @@
+package org.pipservices3.messaging.queues;
+
+import org.pipservices3.commons.config.ConfigParams;
+import org.pipservices3.commons.errors.ApplicationException;
+import org.pipservices3.commons.errors.InvalidStateException;
+import org.pipservices3.commons.refer.IReferences;
+import org.pipservices3.commons.refer.ReferenceException;
+import org.pipservices3.components.auth.CredentialParams;
+import org.pipservices3.components.connect.ConnectionParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Message queue that splits one logical in-memory queue into several shards
+ * to spread lock contention across CPU cores.
+ * <p>
+ * Every shard is a {@link MemoryMessageQueue} with its own lock and storage.
+ * Messages are spread across shards by the hash of their correlation id, so messages
+ * of the same transaction keep their order. Messages without correlation id are sent
+ * into shards in turn, so even a single producer uses all shards. Consumers receive
+ * from the shard assigned to their thread first and steal messages from other shards
+ * when it is empty. The order of messages in different shards is not preserved.
+ * <p>
+ * ### Configuration parameters ###
+ * <ul>
+ * <li>name:                        name of the message queue
+ * <li>options:
+ *   <ul>
+ *   <li>shards:                    number of shards (default: number of available processors)
+ *   <li>lock_timeout:              visibility timeout in milliseconds for received messages (default: 30000)
+ *   <li>listen_interval:           timeout in milliseconds to wait for messages in listen loop (default: 1000)
+ *   <li>max_size:                  maximum number of messages waiting in each shard, 0 for unlimited (default: 0)
+ *   <li>max_bytes:                 maximum total payload size waiting in each shard, 0 for unlimited (default: 0)
+ *   <li>overflow_policy:           block, reject, drop_oldest or drop_newest (default: block)
+ *   <li>send_timeout:              timeout in milliseconds to wait for space with the block policy (default: 10000)
+ *   </ul>
+ * </ul>
+ * <p>
+ * ### References ###
+ * <ul>
+ * <li>*:logger:*:*:1.0           (optional) <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/log/ILogger.html">ILogger</a> components to pass log messages
+ * <li>*:counters:*:*:1.0         (optional) <a href="https://pip-services3-java.github.io/pip-services3-components-java/org/pipservices3/components/count/ICounters.html">ICounters</a> components to pass collected measurements
+ * </ul>
+ * <p>
+ * ### Example ###
+ * <pre>
+ * {@code
+ * MessageQueue queue = new ShardedMemoryMessageQueue("myqueue");
+ * queue.configure(ConfigParams.fromTuples("options.shards", 8));
+ *
+ * queue.send("123", new MessageEnvelope(null, "mymessage", "ABC"));
+ *
+ * queue.receive("123", 0);
+ * }
+ * </pre>
+ *
+ * @see MessageQueue
+ * @see MemoryMessageQueue
+ */
+public class ShardedMemoryMessageQueue extends MessageQueue {
+    private MemoryMessageQueue[] _shards;
+    private ConfigParams _config;
+    private IReferences _references;
+
+    private final ReentrantLock _waitLock = new ReentrantLock();
+    private final Condition _messageAvailable = _waitLock.newCondition();
+    private final AtomicInteger _nextShard = new AtomicInteger();
+    private volatile int _waitingReceivers = 0;
+    /**
+     * Incremented on every signal, so receivers that checked shards without the wait lock
+     * can tell if messages came before they started to wait. It is guarded by the wait lock.
+     */
+    private long _signalCount = 0;
+    private volatile boolean _opened = false;
+
+    /**
+     * Used to stop the listening process.
+     */
+    private volatile boolean _cancel = false;
+    private long _listenInterval = 1000;
+
+    /**
+     * Creates a new instance of the message queue.
+     */
+    public ShardedMemoryMessageQueue() {
+        this(null);
+    }
+
+    /**
+     * Creates a new instance of the message queue.
+     *
+     * @param name (optional) a queue name.
+     * @see MessagingCapabilities
+     */
+    public ShardedMemoryMessageQueue(String name) {
+        super(name);
+
+        _capabilities = new MessagingCapabilities(true, true, true, true, true, true, true, false, true, true);
+        _deferSerialization = true;
+        createShards(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Configures component by passing configuration parameters.
+     *
+     * @param config configuration parameters to be set.
+     */
+    @Override
+    public void configure(ConfigParams config) {
+        super.configure(config);
+
+        _config = config;
+        _listenInterval = config.getAsLongWithDefault("listen_interval", _listenInterval);
+        _listenInterval = config.getAsLongWithDefault("options.listen_interval", _listenInterval);
+
+        int shardCount = config.getAsIntegerWithDefault("options.shards", _shards.length);
+        if (shardCount != _shards.length && !_opened)
+            createShards(shardCount);
+        else {
+            for (MemoryMessageQueue shard : _shards)
+                shard.configure(config);
+        }
+    }
+
+    /**
+     * Sets references to dependent components.
+     *
+     * @param references references to locate the component dependencies.
+     * @throws ReferenceException when no found references.
+     */
+    @Override
+    public void setReferences(IReferences references) throws ReferenceException {
+        super.setReferences(references);
+
+        _references = references;
+        for (MemoryMessageQueue shard : _shards)
+            shard.setReferences(references);
+
+        // Shards resolve the same dead letter queue
+        _capabilities = new MessagingCapabilities(true, true, true, true, true, true, true,
+                _shards[0].getCapabilities().canDeadLetter(), true, true);
+    }
+
+    private void createShards(int shardCount) {
+        shardCount = Math.max(shardCount, 1);
+
+        MemoryMessageQueue[] shards = new MemoryMessageQueue[shardCount];
+        for (int index = 0; index < shardCount; index++) {
+            // Shards share the queue name so counters are collected for the whole queue
+            MemoryMessageQueue shard = new MemoryMessageQueue(getName());
+            shard.setLockTokens(index, shardCount);
+            // Latencies are collected and reported for the whole queue
+            shard.getDwellTime().redirectTo(_dwellTime);
+            shard.getHandlerTime().redirectTo(_handlerTime);
+            shard.getLockHoldTime().redirectTo(_lockHoldTime);
+
+            if (_config != null)
+                shard.configure(_config);
+            if (_references != null) {
+                try {
+                    shard.setReferences(_references);
+                } catch (ReferenceException ex) {
+                    _logger.error(null, ex, "Failed to set references to shard of %s", this);
+                }
+            }
+
+            shards[index] = shard;
+        }
+
+        _shards = shards;
+    }
+
+    /**
+     * Gets the number of shards in the queue.
+     *
+     * @return the number of shards.
+     */
+    public int getShardCount() {
+        return _shards.length;
+    }
+
+    /**
+     * Gets a shard by its index. It is used by tests to check how messages are spread.
+     *
+     * @param index an index of the shard.
+     * @return the shard.
+     */
+    MemoryMessageQueue getShard(int index) {
+        return _shards[index];
+    }
+
+    private MemoryMessageQueue getSendShard(String correlationId) {
+        MemoryMessageQueue[] shards = _shards;
+        int hash = correlationId != null ? correlationId.hashCode() : _nextShard.getAndIncrement();
+        return shards[Math.floorMod(hash, shards.length)];
+    }
+
+    private int getThreadShardIndex() {
+        return (int) (Thread.currentThread().getId() % _shards.length);
+    }
+
+    private MemoryMessageQueue getMessageShard(MessageEnvelope message) {
+        if (message == null || !(message.getReference() instanceof Long lockToken))
+            return null;
+
+        // Shards issue lock tokens with the shard index as offset
+        return _shards[(int) (lockToken % _shards.length)];
+    }
+
+    /**
+     * Checks if the component is opened.
+     *
+     * @return true if the component has been opened and false otherwise.
+     */
+    @Override
+    public boolean isOpen() {
+        return _opened;
+    }
+
+    /**
+     * Opens the component with given connection and credential parameters.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param connection    connection parameters
+     * @param credential    credential parameters
+     * @throws ApplicationException when a shard can't be opened.
+     */
+    @Override
+    protected void openWithParams(String correlationId, ConnectionParams connection, CredentialParams credential)
+            throws ApplicationException {
+        for (MemoryMessageQueue shard : _shards)
+            shard.openWithParams(correlationId, connection, credential);
+
+        // Shards don't report latencies, so they are reported by the queue
+        _queueCounters.ensureFlushing();
+
+        _logger.trace(correlationId, "Opened queue %s with %d shards", this, _shards.length);
+        _opened = true;
+    }
+
+    /**
+     * Closes component and frees used resources.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void close(String correlationId) {
+        _cancel = false;
+        _opened = false;
+
+        for (MemoryMessageQueue shard : _shards)
+            shard.close(correlationId);
+
+        signalReceivers(Integer.MAX_VALUE);
+
+        _queueCounters.close();
+        _logger.trace(correlationId, "Closed queue %s", this);
+    }
+
+    /**
+     * Clears component state.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void clear(String correlationId) {
+        for (MemoryMessageQueue shard : _shards)
+            shard.clear(correlationId);
+
+        _logger.trace(correlationId, "Cleared queue %s", this);
+    }
+
+    /**
+     * Gets the current number of messages in all shards to be delivered.
+     *
+     * @return number of messages.
+     */
+    @Override
+    public int readMessageCount() {
+        int count = 0;
+        for (MemoryMessageQueue shard : _shards)
+            count += shard.readMessageCount();
+        return count;
+    }
+
+    /**
+     * Sends a message into the shard chosen by its correlation id or into the next shard in turn.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param message       a message envelop to be sent.
+     */
+    @Override
+    public void send(String correlationId, MessageEnvelope message) throws InvalidStateException {
+        if (message == null)
+            return;
+
+        getSendShard(message.getCorrelationId()).send(correlationId, message);
+        signalReceivers(1);
+    }
+
+    /**
+     * Sends a batch of messages into one shard, so they keep their order. The shard is chosen
+     * by the correlation id of the first message or taken in turn.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param messages      a list of message envelops to be sent.
+     */
+    @Override
+    public void sendBatch(String correlationId, List<MessageEnvelope> messages) throws InvalidStateException {
+        if (messages == null || messages.isEmpty())
+            return;
+
+        try {
+            getSendShard(messages.get(0) != null ? messages.get(0).getCorrelationId() : null)
+                    .sendBatch(correlationId, messages);
+        } finally {
+            // Part of the batch may be sent before the shard rejects the rest
+            signalReceivers(messages.size());
+        }
+    }
+
+    /**
+     * Wakes up threads waiting for messages, not more than one thread per added message.
+     *
+     * @param messageCount a number of added messages.
+     */
+    private void signalReceivers(int messageCount) {
+        // Skip locking when nobody waits. Receivers register themselves before
+        // checking the shards, so the message cannot be missed.
+        if (_waitingReceivers == 0)
+            return;
+
+        _waitLock.lock();
+        try {
+            _signalCount++;
+            for (int index = Math.min(messageCount, _waitingReceivers); index > 0; index--)
+                _messageAvailable.signal();
+        } finally {
+            _waitLock.unlock();
+        }
+    }
+
+    /**
+     * Peeks a single incoming message from the queue without removing it. If there
+     * are no messages available in the queue it returns null.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @return a message envelop object.
+     */
+    @Override
+    public MessageEnvelope peek(String correlationId) {
+        for (MemoryMessageQueue shard : _shards) {
+            MessageEnvelope message = shard.peek(correlationId);
+            if (message != null)
+                return message;
+        }
+        return null;
+    }
+
+    /**
+     * Peeks multiple incoming messages from all shards without removing them. If
+     * there are no messages available in the queue it returns an empty list.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param messageCount  a maximum number of messages to peek.
+     * @return a list with messages.
+     */
+    @Override
+    public List<MessageEnvelope> peekBatch(String correlationId, int messageCount) {
+        List<MessageEnvelope> messages = new ArrayList<>();
+
+        for (MemoryMessageQueue shard : _shards) {
+            if (messages.size() >= messageCount)
+                break;
+
+            messages.addAll(shard.peekBatch(correlationId, messageCount - messages.size()));
+        }
+
+        return messages;
+    }
+
+    /**
+     * Receives an incoming message and removes it from the queue.
+     * The message is taken from the shard assigned to the current thread
+     * or stolen from other shards when that shard is empty.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param waitTimeout   a timeout in milliseconds to wait for a message to come.
+     * @return a message envelop object.
+     */
+    @Override
+    public MessageEnvelope receive(String correlationId, long waitTimeout) {
+        List<MessageEnvelope> messages = receiveBatch(correlationId, 1, 1, waitTimeout, false);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * Receives a batch of incoming messages and removes them from the queue.
+     * Messages are taken from the shard assigned to the current thread first
+     * and then stolen from other shards.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param minCount      a minimum number of messages to wait for.
+     * @param maxCount      a maximum number of messages to receive.
+     * @param waitTimeout   a timeout in milliseconds to wait for messages to come.
+     * @return a list with received messages.
+     */
+    @Override
+    public List<MessageEnvelope> receiveBatch(String correlationId, int minCount, int maxCount, long waitTimeout) {
+        return receiveBatch(correlationId, minCount, maxCount, waitTimeout, false);
+    }
+
+    private List<MessageEnvelope> receiveBatch(String correlationId, int minCount, int maxCount,
+                                               long waitTimeout, boolean listening) {
+        List<MessageEnvelope> messages = new ArrayList<>();
+        if (maxCount <= 0)
+            return messages;
+
+        minCount = Math.min(minCount, maxCount);
+        pollShards(correlationId, messages, maxCount);
+        if (messages.size() >= minCount)
+            return messages;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(waitTimeout, 0));
+
+        // The wait lock only registers and parks receivers, so shards are polled without it
+        try {
+            while (messages.size() < minCount && (!listening || _cancel)) {
+                long signalCount;
+                _waitLock.lock();
+                try {
+                    _waitingReceivers++;
+                    signalCount = _signalCount;
+                } finally {
+                    _waitLock.unlock();
+                }
+
+                try {
+                    // Check shards again after registering as a waiting receiver
+                    pollShards(correlationId, messages, maxCount);
+                    if (messages.size() >= minCount)
+                        break;
+
+                    long remainingTime = deadline - System.nanoTime();
+                    if (remainingTime <= 0)
+                        break;
+
+                    // Wake up not later than the next lock expires or a scheduled message is due
+                    long nextReleaseTime = Long.MAX_VALUE;
+                    for (MemoryMessageQueue shard : _shards)
+                        nextReleaseTime = Math.min(nextReleaseTime, shard.readNextReleaseTime());
+                    if (nextReleaseTime != Long.MAX_VALUE) {
+                        long releaseTime = TimeUnit.MILLISECONDS.toNanos(
+                                Math.max(nextReleaseTime - System.currentTimeMillis(), 0) + 1);
+                        remainingTime = Math.min(remainingTime, releaseTime);
+                    }
+
+                    _waitLock.lock();
+                    try {
+                        // Messages sent while shards were polled are checked without waiting
+                        if (signalCount == _signalCount)
+                            _messageAvailable.awaitNanos(remainingTime);
+                    } finally {
+                        _waitLock.unlock();
+                    }
+                } finally {
+                    _waitLock.lock();
+                    try {
+                        _waitingReceivers--;
+                    } finally {
+                        _waitLock.unlock();
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Return already locked messages to the caller
+            Thread.currentThread().interrupt();
+        }
+
+        return messages;
+    }
+
+    private void pollShards(String correlationId, List<MessageEnvelope> messages, int maxCount) {
+        int startIndex = getThreadShardIndex();
+
+        for (int index = 0; index < _shards.length && messages.size() < maxCount; index++) {
+            MemoryMessageQueue shard = _shards[(startIndex + index) % _shards.length];
+            messages.addAll(shard.receiveBatch(correlationId, 0, maxCount - messages.size(), 0));
+        }
+    }
+
+    /**
+     * Renews a lock on a message that makes it invisible from other receivers in
+     * the queue. This method is usually used to extend the message processing time.
+     *
+     * @param message     a message to extend its lock.
+     * @param lockTimeout a locking timeout in milliseconds.
+     */
+    @Override
+    public void renewLock(MessageEnvelope message, long lockTimeout) {
+        MemoryMessageQueue shard = getMessageShard(message);
+        if (shard != null)
+            shard.renewLock(message, lockTimeout);
+    }
+
+    /**
+     * Returns message into the queue and makes it available for all subscribers to
+     * receive it again.
+     *
+     * @param message a message to return.
+     */
+    @Override
+    public void abandon(MessageEnvelope message) {
+        MemoryMessageQueue shard = getMessageShard(message);
+        if (shard != null) {
+            shard.abandon(message);
+            signalReceivers(1);
+        }
+    }
+
+    /**
+     * Permanently removes a message from the queue. This method is usually used to
+     * remove the message after successful processing.
+     *
+     * @param message a message to remove.
+     */
+    @Override
+    public void complete(MessageEnvelope message) {
+        MemoryMessageQueue shard = getMessageShard(message);
+        if (shard != null)
+            shard.complete(message);
+    }
+
+    /**
+     * Permanently removes a message from the queue and sends it to dead letter
+     * queue.
+     *
+     * @param message a message to be removed.
+     */
+    @Override
+    public void moveToDeadLetter(MessageEnvelope message) {
+        MemoryMessageQueue shard = getMessageShard(message);
+        if (shard != null)
+            shard.moveToDeadLetter(message);
+    }
+
+    /**
+     * Permanently removes a batch of messages from the queue.
+     * Messages are grouped by shards and settled with one call per shard.
+     *
+     * @param messages a list of messages to remove.
+     * @return an array of flags in the order of the messages.
+     */
+    @Override
+    public boolean[] completeBatch(List<MessageEnvelope> messages) {
+        return settleBatch(messages, MemoryMessageQueue::completeBatch);
+    }
+
+    /**
+     * Returns a batch of messages into the queue and makes them available
+     * for all subscribers to receive them again.
+     * Messages are grouped by shards and settled with one call per shard.
+     *
+     * @param messages a list of messages to return.
+     * @return an array of flags in the order of the messages.
+     */
+    @Override
+    public boolean[] abandonBatch(List<MessageEnvelope> messages) {
+        boolean[] results = settleBatch(messages, MemoryMessageQueue::abandonBatch);
+        signalReceivers(results.length);
+        return results;
+    }
+
+    /**
+     * Permanently removes a batch of messages from the queue and sends them to dead letter queue.
+     * Messages are grouped by shards and settled with one call per shard.
+     *
+     * @param messages a list of messages to be removed.
+     * @return an array of flags in the order of the messages.
+     */
+    @Override
+    public boolean[] moveToDeadLetterBatch(List<MessageEnvelope> messages) {
+        return settleBatch(messages, MemoryMessageQueue::moveToDeadLetterBatch);
+    }
+
+    @FunctionalInterface
+    private interface ShardAction {
+        boolean[] apply(MemoryMessageQueue shard, List<MessageEnvelope> messages);
+    }
+
+    private boolean[] settleBatch(List<MessageEnvelope> messages, ShardAction action) {
+        if (messages == null)
+            return new boolean[0];
+
+        boolean[] results = new boolean[messages.size()];
+
+        // Group messages and their positions by shards
+        List<List<MessageEnvelope>> shardMessages = new ArrayList<>(_shards.length);
+        List<List<Integer>> shardPositions = new ArrayList<>(_shards.length);
+        for (int index = 0; index < _shards.length; index++) {
+            shardMessages.add(new ArrayList<>());
+            shardPositions.add(new ArrayList<>());
+        }
+
+        int position = 0;
+        for (MessageEnvelope message : messages) {
+            if (message != null && message.getReference() instanceof Long lockToken) {
+                int shardIndex = (int) (lockToken % _shards.length);
+                shardMessages.get(shardIndex).add(message);
+                shardPositions.get(shardIndex).add(position);
+            }
+            position++;
+        }
+
+        for (int index = 0; index < _shards.length; index++) {
+            if (shardMessages.get(index).isEmpty())
+                continue;
+
+            boolean[] shardResults = action.apply(_shards[index], shardMessages.get(index));
+            List<Integer> positions = shardPositions.get(index);
+            for (int result = 0; result < shardResults.length; result++)
+                results[positions.get(result)] = shardResults[result];
+        }
+
+        return results;
+    }
+
+    /**
+     * Listens for incoming messages and blocks the current thread until queue is
+     * closed.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     * @param receiver      a receiver to receive incoming messages.
+     * @see IMessageReceiver
+     * @see #receive(String, long)
+     */
+    @Override
+    public void listen(String correlationId, IMessageReceiver receiver) {
+        if (_cancel) {
+            _logger.error(correlationId, "Already listening queue %s", this);
+            return;
+        }
+
+        _logger.trace(correlationId, "Started listening messages at %s", this);
+
+        _cancel = true;
+
+        MessageListenerPool pool = createListenerPool(receiver);
+        try {
+            while (_cancel) {
+                // Wait for a free worker before taking a message from the queue
+                if (!pool.acquire(_listenInterval))
+                    continue;
+
+                List<MessageEnvelope> messages = receiveBatch(correlationId, 1, 1, _listenInterval, true);
+                MessageEnvelope message = messages.isEmpty() ? null : messages.get(0);
+
+                if (_cancel && message != null)
+                    pool.dispatch(correlationId, message);
+                else
+                    pool.release();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.close(_listenShutdownTimeout);
+        }
+
+        _logger.trace(correlationId, "Stopped listening messages at %s", this);
+    }
+
+    /**
+     * Ends listening for incoming messages. When this method is call listen()
+     * unblocks the thread and execution continues.
+     *
+     * @param correlationId (optional) transaction id to trace execution through
+     *                      call chain.
+     */
+    @Override
+    public void endListen(String correlationId) {
+        _cancel = false;
+        signalReceivers(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Override toString() method, string representation of queue.
+     *
+     * @return queue name
+     */
+    @Override
+    public String toString() {
+        return "[" + getName() + "]";
+    }
+}
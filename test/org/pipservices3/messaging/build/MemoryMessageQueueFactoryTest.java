@@ -2,9 +2,13 @@ package org.pipservices3.messaging.build;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
+import org.pipservices3.commons.config.ConfigParams;
 import org.pipservices3.commons.refer.Descriptor;
 import org.pipservices3.components.build.CreateException;
 import org.pipservices3.messaging.queues.IMessageQueue;
+import org.pipservices3.messaging.queues.LockFreeMemoryMessageQueue;
+import org.pipservices3.messaging.queues.MemoryMessageQueue;
+import org.pipservices3.messaging.queues.ShardedMemoryMessageQueue;
 
 public class MemoryMessageQueueFactoryTest {
     @Test
@@ -19,4 +23,31 @@ public class MemoryMessageQueueFactoryTest {
         assertNotNull(queue);
         assertEquals("test", queue.getName());
     }
+
+    @Test
+    public void testCreateLockFreeMessageQueue() throws CreateException {
+        var factory = new MemoryMessageQueueFactory();
+        var descriptor = new Descriptor("pip-services", "message-queue", "memory-lockfree", "test", "1.0");
+
+        IMessageQueue queue = (IMessageQueue) factory.create(descriptor);
+        assertTrue(queue instanceof LockFreeMemoryMessageQueue);
+        assertEquals("test", queue.getName());
+    }
+
+    @Test
+    public void testCreateQueueByType() throws Exception {
+        var factory = new MemoryMessageQueueFactory();
+
+        IMessageQueue queue = factory.createQueue("test");
+        assertTrue(queue instanceof MemoryMessageQueue);
+
+        factory.configure(ConfigParams.fromTuples("options.type", "memory-sharded"));
+        queue = factory.createQueue("test");
+        assertTrue(queue instanceof ShardedMemoryMessageQueue);
+        assertEquals("test", queue.getName());
+
+        factory.configure(ConfigParams.fromTuples("options.type", "memory-lockfree"));
+        queue = factory.createQueue("test");
+        assertTrue(queue instanceof LockFreeMemoryMessageQueue);
+    }
 }
@@ -0,0 +1,205 @@
+package org.pipservices3.messaging.queues;
+
+import org.junit.*;
+import org.pipservices3.commons.config.ConfigParams;
+import org.pipservices3.commons.errors.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class FileMessageQueueTest {
+    private final Path directory;
+    private final FileMessageQueue queue;
+    private final MessageQueueFixture fixture;
+
+    public FileMessageQueueTest() throws ApplicationException, IOException {
+        directory = Files.createTempDirectory("queue-test");
+        queue = createQueue();
+        fixture = new MessageQueueFixture(queue);
+    }
+
+    private FileMessageQueue createQueue() {
+        var queue = new FileMessageQueue("test");
+        queue.configure(ConfigParams.fromTuples(
+                "path", directory.toString(),
+                "options.segment_size", 4096
+        ));
+        return queue;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        queue.clear(null);
+        queue.open(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.close(null);
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach((path) -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testSendReceiveMessage() throws Exception {
+        fixture.testSendReceiveMessage();
+    }
+
+    @Test
+    public void testReceiveSendMessage() throws Exception {
+        fixture.testReceiveSendMessage();
+    }
+
+    @Test
+    public void testSendBatch() throws Exception {
+        fixture.testSendBatch();
+    }
+
+    @Test
+    public void testReceiveBatch() throws Exception {
+        fixture.testReceiveBatch();
+    }
+
+    @Test
+    public void testSettleBatch() throws Exception {
+        fixture.testSettleBatch();
+    }
+
+    @Test
+    public void testMoveToDeadMessage() throws Exception {
+        fixture.testMoveToDeadMessage();
+    }
+
+    @Test
+    public void testReceiveAndCompleteMessage() throws Exception {
+        fixture.testReceiveAndCompleteMessage();
+    }
+
+    @Test
+    public void testReceiveAndAbandonMessage() throws Exception {
+        fixture.testReceiveAndAbandonMessage();
+    }
+
+    @Test
+    public void testSendPeekMessage() throws Exception {
+        fixture.testSendPeekMessage();
+    }
+
+    @Test
+    public void testPeekNoMessage() throws Exception {
+        fixture.testPeekNoMessage();
+    }
+
+    @Test
+    public void testOnMessage() throws Exception {
+        fixture.testOnMessage();
+    }
+
+    @Test
+    public void testListen() throws Exception {
+        fixture.testListen();
+    }
+
+    @Test
+    public void testRecoverMessages() throws Exception {
+        for (int index = 0; index < 100; index++)
+            queue.send(null, new MessageEnvelope("123", "Test", "Test message " + index));
+
+        // Complete the first message and leave the second one unacknowledged
+        var envelope = queue.receive(null, 0);
+        assertEquals("Test message 0", envelope.getMessageAsString());
+        queue.complete(envelope);
+        envelope = queue.receive(null, 0);
+        assertEquals("Test message 1", envelope.getMessageAsString());
+
+        queue.close(null);
+
+        var queue2 = createQueue();
+        queue2.open(null);
+        try {
+            assertEquals(99, queue2.readMessageCount());
+
+            envelope = queue2.receive(null, 0);
+            assertEquals("Test message 1", envelope.getMessageAsString());
+            assertEquals("123", envelope.getCorrelationId());
+            assertTrue(envelope.getSentTimeMillis() > 0);
+        } finally {
+            queue2.close(null);
+        }
+    }
+
+    @Test
+    public void testDeleteAcknowledgedSegments() throws Exception {
+        var message = "A".repeat(1000);
+        for (int index = 0; index < 20; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", message));
+
+        long segmentCount;
+        try (Stream<Path> files = Files.list(directory)) {
+            segmentCount = files.filter((path) -> path.toString().endsWith(".log")).count();
+        }
+        assertTrue(segmentCount > 1);
+
+        for (int index = 0; index < 20; index++)
+            queue.complete(queue.receive(null, 0));
+        assertNull(queue.receive(null, 0));
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.filter((path) -> path.toString().endsWith(".log")).count());
+        }
+    }
+
+    @Test
+    public void testDeleteSegmentsBehindLockedMessage() throws Exception {
+        var message = "A".repeat(1000);
+        for (int index = 0; index < 20; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", message + index));
+
+        // The first message stays locked while all others are completed
+        var lockedEnvelope = queue.receive(null, 0);
+        for (int index = 1; index < 20; index++)
+            queue.complete(queue.receive(null, 0));
+
+        // Only the segment with the locked message and the segment at the read position are kept
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(2, files.filter((path) -> path.toString().endsWith(".log")).count());
+        }
+        queue.close(null);
+
+        var queue2 = createQueue();
+        queue2.open(null);
+        try {
+            // Messages in deleted segments are not delivered again
+            int count = queue2.readMessageCount();
+            assertTrue(count < 20);
+
+            var envelope = queue2.receive(null, 0);
+            assertEquals(lockedEnvelope.getMessageAsString(), envelope.getMessageAsString());
+            for (int index = 1; index < count; index++)
+                envelope = queue2.receive(null, 0);
+            assertEquals(message + 19, envelope.getMessageAsString());
+            assertNull(queue2.receive(null, 0));
+        } finally {
+            queue2.close(null);
+        }
+    }
+
+    @Test
+    public void testOpenWithoutPath() {
+        var queue2 = new FileMessageQueue("test");
+        try {
+            queue2.open(null);
+            fail("Expected missing path error");
+        } catch (ApplicationException ex) {
+            assertEquals("NO_PATH", ex.getCode());
+        }
+    }
+
+}
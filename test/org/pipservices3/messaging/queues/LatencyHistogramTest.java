@@ -0,0 +1,57 @@
+package org.pipservices3.messaging.queues;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testPercentiles() {
+        var histogram = new LatencyHistogram("test_time");
+        assertEquals(0, histogram.getSnapshot().getCount());
+        assertEquals(0, histogram.getSnapshot().getPercentile(99), 0);
+
+        // 1 to 1000 milliseconds
+        for (int value = 1; value <= 1000; value++)
+            histogram.record(value * 1000L);
+
+        var snapshot = histogram.getSnapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertEquals(500, snapshot.getPercentile(50), 500 * 0.125);
+        assertEquals(990, snapshot.getPercentile(99), 990 * 0.125);
+        assertEquals(1000, snapshot.getMax(), 1000 * 0.125);
+        assertTrue(snapshot.getMax() >= 1000);
+    }
+
+    @Test
+    public void testSmallAndLargeValues() {
+        var histogram = new LatencyHistogram("test_time");
+        histogram.record(-5);
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE);
+
+        var snapshot = histogram.getSnapshot();
+        assertEquals(3, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(0), 0);
+        assertEquals(0.003, snapshot.getPercentile(50), 0);
+        assertTrue(snapshot.getMax() > 1_000_000_000);
+        // The last bucket ends at 2^40 microseconds
+        assertEquals((1L << 40) / 1000.0, snapshot.getMax(), 1);
+    }
+
+    @Test
+    public void testSnapshotSince() {
+        var histogram = new LatencyHistogram("test_time");
+        histogram.record(1000);
+        var previous = histogram.getSnapshot();
+
+        histogram.record(100_000);
+        histogram.record(100_000);
+        var interval = histogram.getSnapshot().since(previous);
+
+        assertEquals(2, interval.getCount());
+        assertEquals(100, interval.getMean(), 0.001);
+        assertEquals(100, interval.getPercentile(0), 100 * 0.125);
+    }
+}
@@ -0,0 +1,171 @@
+package org.pipservices3.messaging.queues;
+
+import org.junit.*;
+import org.pipservices3.commons.config.ConfigParams;
+import org.pipservices3.commons.errors.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LockFreeMemoryMessageQueueTest {
+    private final LockFreeMemoryMessageQueue queue;
+    private final MessageQueueFixture fixture;
+
+    public LockFreeMemoryMessageQueueTest() throws ApplicationException {
+        queue = new LockFreeMemoryMessageQueue("test");
+        fixture = new MessageQueueFixture(queue);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        queue.clear(null);
+        queue.open(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.close(null);
+    }
+
+    @Test
+    public void testSendReceiveMessage() throws Exception {
+        fixture.testSendReceiveMessage();
+    }
+
+    @Test
+    public void testReceiveSendMessage() throws Exception {
+        fixture.testReceiveSendMessage();
+    }
+
+    @Test
+    public void testSendBatch() throws Exception {
+        fixture.testSendBatch();
+    }
+
+    @Test
+    public void testReceiveBatch() throws Exception {
+        fixture.testReceiveBatch();
+    }
+
+    @Test
+    public void testSettleBatch() throws Exception {
+        fixture.testSettleBatch();
+    }
+
+    @Test
+    public void testMoveToDeadMessage() throws Exception {
+        fixture.testMoveToDeadMessage();
+    }
+
+    @Test
+    public void testReceiveAndCompleteMessage() throws Exception {
+        fixture.testReceiveAndCompleteMessage();
+    }
+
+    @Test
+    public void testReceiveAndAbandonMessage() throws Exception {
+        fixture.testReceiveAndAbandonMessage();
+    }
+
+    @Test
+    public void testSendPeekMessage() throws Exception {
+        fixture.testSendPeekMessage();
+    }
+
+    @Test
+    public void testPeekNoMessage() throws Exception {
+        fixture.testPeekNoMessage();
+    }
+
+    @Test
+    public void testOnMessage() throws Exception {
+        fixture.testOnMessage();
+    }
+
+    @Test
+    public void testListen() throws Exception {
+        fixture.testListen();
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        int threadCount = 4;
+        int messageCount = 10000;
+        var received = ConcurrentHashMap.<String>newKeySet();
+        var receivedCount = new AtomicInteger();
+        var threads = new Thread[threadCount * 2];
+
+        for (int thread = 0; thread < threadCount; thread++) {
+            int producer = thread;
+            threads[thread] = new Thread(() -> {
+                for (int index = 0; index < messageCount; index++)
+                    queue.send(null, new MessageEnvelope(null, "Test", producer + ":" + index));
+            });
+            threads[threadCount + thread] = new Thread(() -> {
+                while (receivedCount.get() < threadCount * messageCount) {
+                    var envelope = queue.receive(null, 100);
+                    if (envelope != null) {
+                        received.add(envelope.getMessageAsString());
+                        receivedCount.incrementAndGet();
+                        queue.complete(envelope);
+                    }
+                }
+            });
+        }
+
+        for (var thread : threads)
+            thread.start();
+        for (var thread : threads)
+            thread.join(60000);
+
+        assertEquals(threadCount * messageCount, receivedCount.get());
+        assertEquals(threadCount * messageCount, received.size());
+        assertEquals(0, queue.readMessageCount());
+    }
+
+    @Test
+    public void testRenewAndExpireLock() throws Exception {
+        var queue = new LockFreeMemoryMessageQueue("test");
+        queue.configure(ConfigParams.fromTuples("options.lock_timeout", 100));
+        queue.open(null);
+
+        try {
+            queue.send(null, new MessageEnvelope("123", "Test", "Test message"));
+            var envelope = queue.receive(null, 0);
+            queue.renewLock(envelope, 300);
+
+            // The renewed lock doesn't expire at the original deadline
+            Thread.sleep(150);
+            assertNull(queue.receive(null, 0));
+
+            // The expired lock returns the message back to the queue
+            var redelivered = queue.receive(null, 1000);
+            assertNotNull(redelivered);
+            assertEquals("Test message", redelivered.getMessageAsString());
+
+            queue.complete(redelivered);
+            queue.complete(redelivered);
+            assertEquals(0, queue.readMessageCount());
+        } finally {
+            queue.close(null);
+        }
+    }
+
+    @Test
+    public void testDelayedDeliveryNotSupported() throws Exception {
+        assertFalse(queue.getCapabilities().canSchedule());
+        try {
+            queue.send(null, new MessageEnvelope("123", "Test", "Delayed message"), 1000);
+            fail("Expected delayed delivery error");
+        } catch (UnsupportedException ex) {
+            assertEquals("NOT_SUPPORTED", ex.getCode());
+        }
+        assertEquals(0, queue.readMessageCount());
+
+        // Messages without delay are sent as usual
+        queue.send(null, new MessageEnvelope("123", "Test", "Test message"), 0);
+        assertEquals(1, queue.readMessageCount());
+    }
+}
@@ -1,9 +1,26 @@
 package org.pipservices3.messaging.queues;
 
 import org.junit.*;
+import org.pipservices3.commons.config.ConfigParams;
 import org.pipservices3.commons.errors.*;
+import org.pipservices3.commons.refer.Descriptor;
+import org.pipservices3.commons.refer.References;
+import org.pipservices3.components.count.CounterType;
+import org.pipservices3.components.count.LogCounters;
 import org.pipservices3.messaging.queues.MemoryMessageQueue;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
 public class MemoryMessageQueueTest {
     private final MemoryMessageQueue queue;
     private final MessageQueueFixture fixture;
@@ -34,6 +51,39 @@ public class MemoryMessageQueueTest {
         fixture.testReceiveSendMessage();
     }
 
+    @Test
+    public void testSendBatch() throws Exception {
+        fixture.testSendBatch();
+    }
+
+    @Test
+    public void testReceiveBatch() throws Exception {
+        fixture.testReceiveBatch();
+    }
+
+    @Test
+    public void testReceiveBatchWithMinCount() throws Exception {
+        queue.send(null, new MessageEnvelope("123", "Test", "Test message 1"));
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                queue.send(null, new MessageEnvelope("123", "Test", "Test message 2"));
+            } catch (Exception ex) {
+                // Ignore...
+            }
+        }).start();
+
+        var envelopes = queue.receiveBatch(null, 2, 10, 10000);
+        assertEquals(2, envelopes.size());
+        assertEquals("Test message 2", envelopes.get(1).getMessageAsString());
+    }
+
+    @Test
+    public void testSettleBatch() throws Exception {
+        fixture.testSettleBatch();
+    }
+
     @Test
     public void testMoveToDeadMessage() throws Exception {
         fixture.testMoveToDeadMessage();
@@ -69,4 +119,990 @@ public class MemoryMessageQueueTest {
         fixture.testListen();
     }
 
+    @Test
+    public void testReceiveTimeout() throws Exception {
+        long startTime = System.currentTimeMillis();
+        var envelope = queue.receive(null, 300);
+        long elapsedTime = System.currentTimeMillis() - startTime;
+
+        assertNull(envelope);
+        assertTrue(elapsedTime >= 300);
+        assertTrue(elapsedTime < 2000);
+    }
+
+    @Test
+    public void testLockExpiration() throws Exception {
+        var queue = new MemoryMessageQueue("test");
+        queue.configure(ConfigParams.fromTuples("options.lock_timeout", 100));
+        queue.open(null);
+
+        var envelope1 = new MessageEnvelope("123", "Test", "Test message");
+        queue.send(null, envelope1);
+
+        var envelope2 = queue.receive(null, 0);
+        assertNotNull(envelope2);
+        assertNull(queue.receive(null, 0));
+
+        // Extended lock keeps the message invisible
+        queue.renewLock(envelope2, 300);
+        Thread.sleep(200);
+        assertNull(queue.receive(null, 0));
+
+        // Expired lock returns the message back to the queue
+        Thread.sleep(200);
+        assertEquals(1, queue.readMessageCount());
+
+        var envelope3 = queue.receive(null, 0);
+        assertNotNull(envelope3);
+        assertEquals(envelope1.getMessageId(), envelope3.getMessageId());
+
+        queue.complete(envelope3);
+        Thread.sleep(200);
+        assertEquals(0, queue.readMessageCount());
+
+        queue.close(null);
+    }
+
+    @Test
+    public void testDrainLargeBacklog() throws Exception {
+        int count = 1_000_000;
+
+        for (int index = 0; index < count; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+
+        assertEquals(count, queue.readMessageCount());
+
+        for (int index = 0; index < count; index++) {
+            var envelope = queue.receive(null, 0);
+            assertEquals(Integer.toString(index), envelope.getMessageAsString());
+            queue.complete(envelope);
+        }
+
+        assertEquals(0, queue.readMessageCount());
+    }
+
+    @Test
+    public void testConcurrentListen() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.listen_threads", 4,
+                "options.listen_interval", 100
+        ));
+        queue.open(null);
+
+        var processed = new CountDownLatch(8);
+        var inflight = new AtomicInteger();
+        var maxInflight = new AtomicInteger();
+
+        queue.beginListen(null, (envelope, q) -> {
+            int current = inflight.incrementAndGet();
+            maxInflight.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(200);
+                q.complete(envelope);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ApplicationException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                inflight.decrementAndGet();
+                processed.countDown();
+            }
+        });
+
+        for (int index = 0; index < 8; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+
+        // 8 messages by 200 ms take 1600 ms when processed one by one
+        assertTrue(processed.await(1200, TimeUnit.MILLISECONDS));
+        assertTrue(maxInflight.get() > 1);
+        assertTrue(maxInflight.get() <= 4);
+
+        queue.endListen(null);
+        queue.close(null);
+    }
+
+    @Test
+    public void testListenErrorIsolation() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.listen_threads", 2,
+                "options.listen_interval", 100
+        ));
+        queue.open(null);
+
+        var processed = new CountDownLatch(4);
+
+        queue.beginListen(null, (envelope, q) -> {
+            processed.countDown();
+            if (envelope.getMessageAsString().equals("0"))
+                throw new RuntimeException("Test error");
+            try {
+                q.complete(envelope);
+            } catch (ApplicationException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+
+        for (int index = 0; index < 4; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+
+        assertTrue(processed.await(2000, TimeUnit.MILLISECONDS));
+
+        queue.endListen(null);
+        queue.close(null);
+    }
+
+    @Test
+    public void testVirtualThreadListen() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.virtual_threads", true,
+                "options.listen_threads", 4,
+                "options.listen_interval", 100
+        ));
+        queue.open(null);
+
+        var processed = new CountDownLatch(8);
+        var virtual = new AtomicInteger();
+
+        queue.beginListen(null, (envelope, q) -> {
+            if (Thread.currentThread().getName().startsWith("queue-TestQueue-worker-"))
+                virtual.incrementAndGet();
+            try {
+                q.complete(envelope);
+            } catch (ApplicationException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                processed.countDown();
+            }
+        });
+
+        for (int index = 0; index < 8; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+
+        assertTrue(processed.await(2000, TimeUnit.MILLISECONDS));
+        // Without virtual threads messages are processed on the shared executor
+        if (QueueThreads.isVirtualSupported())
+            assertEquals(8, virtual.get());
+
+        queue.endListen(null);
+        queue.close(null);
+    }
+
+    @Test
+    public void testOverflowReject() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.max_size", 2,
+                "options.overflow_policy", "reject"
+        ));
+        var counters = new LogCounters();
+        queue.setReferences(References.fromTuples(
+                new Descriptor("pip-services", "counters", "log", "default", "1.0"), counters
+        ));
+        queue.open(null);
+
+        queue.send(null, new MessageEnvelope(null, "Test", "1"));
+        queue.send(null, new MessageEnvelope(null, "Test", "2"));
+
+        try {
+            queue.send(null, new MessageEnvelope(null, "Test", "3"));
+            fail("Expected the message to be rejected");
+        } catch (InvalidStateException ex) {
+            assertEquals("QUEUE_FULL", ex.getCode());
+        }
+
+        assertEquals(2, queue.readMessageCount());
+
+        // Received messages don't take space in the queue
+        var envelope = queue.receive(null, 0);
+        queue.send(null, new MessageEnvelope(null, "Test", "3"));
+        queue.complete(envelope);
+        assertEquals(2, queue.readMessageCount());
+
+        // Closing the queue flushes collected counters
+        queue.close(null);
+        assertEquals(1, (int) counters.get("queue.TestQueue.rejected_messages", CounterType.Increment).getCount());
+    }
+
+    @Test
+    public void testOverflowDrop() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.max_size", 2,
+                "options.overflow_policy", "drop_oldest"
+        ));
+        queue.open(null);
+
+        for (int index = 1; index <= 4; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+
+        assertEquals(2, queue.readMessageCount());
+        assertEquals("3", queue.receive(null, 0).getMessageAsString());
+        assertEquals("4", queue.receive(null, 0).getMessageAsString());
+
+        queue.configure(ConfigParams.fromTuples("options.overflow_policy", "drop_newest"));
+
+        for (int index = 1; index <= 4; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+
+        assertEquals(2, queue.readMessageCount());
+        assertEquals("1", queue.receive(null, 0).getMessageAsString());
+        assertEquals("2", queue.receive(null, 0).getMessageAsString());
+
+        queue.close(null);
+    }
+
+    @Test
+    public void testOverflowBlock() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.max_bytes", 10,
+                "options.send_timeout", 100
+        ));
+        queue.open(null);
+
+        queue.send(null, new MessageEnvelope(null, "Test", "0123456789"));
+
+        // Blocked producer gives up when timeout expires
+        long start = System.currentTimeMillis();
+        try {
+            queue.send(null, new MessageEnvelope(null, "Test", "A"));
+            fail("Expected the message to be rejected");
+        } catch (InvalidStateException ex) {
+            assertEquals("QUEUE_FULL", ex.getCode());
+        }
+        assertTrue(System.currentTimeMillis() - start >= 100);
+
+        // Blocked producer continues when a consumer frees space
+        queue.configure(ConfigParams.fromTuples("options.send_timeout", 5000));
+        var consumer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                queue.complete(queue.receive(null, 0));
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        consumer.start();
+
+        queue.send(null, new MessageEnvelope(null, "Test", "A"));
+        consumer.join();
+
+        assertEquals(1, queue.readMessageCount());
+        assertEquals("A", queue.receive(null, 0).getMessageAsString());
+
+        queue.close(null);
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples("options.counters_interval", 50));
+        var counters = new LogCounters();
+        queue.setReferences(References.fromTuples(
+                new Descriptor("pip-services", "counters", "log", "default", "1.0"), counters
+        ));
+        queue.open(null);
+
+        for (int index = 0; index < 3; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+        queue.receiveBatch(null, 2, 0);
+
+        // Counters are passed in the background
+        Thread.sleep(300);
+        assertEquals(3, (int) counters.get("queue.TestQueue.sent_messages", CounterType.Increment).getCount());
+        assertEquals(2, (int) counters.get("queue.TestQueue.received_messages", CounterType.Increment).getCount());
+
+        // Counter names follow the configured queue name
+        queue.configure(ConfigParams.fromTuples("name", "OtherQueue"));
+        queue.send(null, new MessageEnvelope(null, "Test", "3"));
+        queue.close(null);
+        assertEquals(1, (int) counters.get("queue.OtherQueue.sent_messages", CounterType.Increment).getCount());
+        assertEquals(3, (int) counters.get("queue.TestQueue.sent_messages", CounterType.Increment).getCount());
+    }
+
+    @Test
+    public void testLatencyHistograms() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        var counters = new LogCounters();
+        queue.setReferences(References.fromTuples(
+                new Descriptor("pip-services", "counters", "log", "default", "1.0"), counters
+        ));
+        queue.open(null);
+
+        queue.send(null, new MessageEnvelope(null, "Test", "1"));
+        Thread.sleep(100);
+        var envelope = queue.receive(null, 0);
+        Thread.sleep(50);
+        queue.complete(envelope);
+
+        assertEquals(1, queue.getDwellTime().getSnapshot().getCount());
+        assertTrue(queue.getDwellTime().getSnapshot().getMean() >= 90);
+        assertEquals(1, queue.getLockHoldTime().getSnapshot().getCount());
+        assertTrue(queue.getLockHoldTime().getSnapshot().getMean() >= 45);
+
+        var processed = new CountDownLatch(1);
+        queue.beginListen(null, (message, q) -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            processed.countDown();
+        });
+        queue.send(null, new MessageEnvelope(null, "Test", "2"));
+        assertTrue(processed.await(1000, TimeUnit.MILLISECONDS));
+        queue.endListen(null);
+        Thread.sleep(50);
+
+        assertEquals(1, queue.getHandlerTime().getSnapshot().getCount());
+        assertTrue(queue.getHandlerTime().getSnapshot().getMean() >= 15);
+
+        // Closing the queue passes histograms as timings
+        queue.close(null);
+        var timing = counters.get("queue.TestQueue.dwell_time", CounterType.Interval);
+        // One timing per flush with the average of the interval
+        assertEquals(1, (int) timing.getCount());
+        assertTrue(timing.getAverage() >= 45);
+        assertNotNull(counters.get("queue.TestQueue.lock_hold_time.p99", CounterType.LastValue).getLast());
+    }
+
+    @Test
+    public void testSendAsObjectWithSerializer() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples("options.serializer", "cbor"));
+        queue.open(null);
+
+        var message = new MessageSerializerTest.TestMessage();
+        message.name = "Test";
+        message.value = 123;
+        queue.sendAsObject(null, "Test", message);
+
+        var envelope = queue.receive(null, 0);
+        assertEquals("application/cbor", envelope.getContentType());
+        // Objects are passed through the memory queue without serialization
+        assertSame(message, envelope.getMessageAs(MessageSerializerTest.TestMessage.class));
+        assertTrue(envelope.isBinary());
+
+        queue.close(null);
+
+        // Unknown serializers fail when the queue is opened
+        var queue2 = new MemoryMessageQueue("TestQueue");
+        queue2.configure(ConfigParams.fromTuples("options.serializer", "xml"));
+        try {
+            queue2.open(null);
+            fail("Expected unknown serializer error");
+        } catch (ConfigException ex) {
+            assertEquals("UNKNOWN_SERIALIZER", ex.getCode());
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.compression_threshold", 1024,
+                "options.max_bytes", 10000,
+                "options.overflow_policy", "reject"
+        ));
+        queue.open(null);
+
+        // Compressed payloads fit into the queue limits
+        var text = "{\"name\":\"Test\",\"value\":123}".repeat(5000);
+        queue.send(null, new MessageEnvelope(null, "Test", text));
+        queue.send(null, new MessageEnvelope(null, "Test", "Short message"));
+
+        var envelope = queue.receive(null, 0);
+        assertTrue(envelope.isCompressed());
+        assertEquals(text, envelope.getMessageAsString());
+
+        envelope = queue.receive(null, 0);
+        assertFalse(envelope.isCompressed());
+        assertEquals("Short message", envelope.getMessageAsString());
+
+        queue.close(null);
+    }
+
+    @Test
+    public void testCompressedMessageSize() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.compression_threshold", 1024,
+                "options.max_bytes", 1000,
+                "options.overflow_policy", "reject"
+        ));
+        queue.open(null);
+
+        try {
+            // Reading a peeked message doesn't change the size charged to the queue
+            var text = "{\"name\":\"Test\",\"value\":123}".repeat(5000);
+            queue.send(null, new MessageEnvelope(null, "Test", text));
+            var envelope = queue.peek(null);
+            assertTrue(envelope.isCompressed());
+            assertEquals(text, envelope.getMessageAsString());
+            assertEquals(text.length(), envelope.getMessageAsBytes().length);
+            queue.complete(queue.receive(null, 0));
+
+            // The byte limit still holds after the message has left the queue
+            var message = "A".repeat(100);
+            for (int index = 0; index < 10; index++)
+                queue.send(null, new MessageEnvelope(null, "Test", message));
+
+            try {
+                queue.send(null, new MessageEnvelope(null, "Test", message));
+                fail("Expected the message to be rejected");
+            } catch (InvalidStateException ex) {
+                assertEquals("QUEUE_FULL", ex.getCode());
+            }
+            assertEquals(10, queue.readMessageCount());
+        } finally {
+            queue.close(null);
+        }
+    }
+
+    @Test
+    public void testJournalRecovery() throws Exception {
+        var directory = Files.createTempDirectory("journal-test");
+        var config = ConfigParams.fromTuples(
+                "options.journal_path", directory.toString(),
+                "options.journal_sync_interval", 0
+        );
+
+        try {
+            var queue = new MemoryMessageQueue("TestQueue");
+            queue.configure(config);
+            queue.open(null);
+
+            for (int index = 0; index < 5; index++)
+                queue.send(null, new MessageEnvelope("123", "Test", "Test message " + index));
+
+            // Complete the first message, abandon the second and leave the third one locked
+            queue.complete(queue.receive(null, 0));
+            queue.abandon(queue.receive(null, 0));
+            var envelope = queue.receive(null, 0);
+            assertEquals("Test message 2", envelope.getMessageAsString());
+            queue.close(null);
+
+            var queue2 = new MemoryMessageQueue("TestQueue");
+            queue2.configure(config);
+            queue2.open(null);
+            try {
+                assertEquals(4, queue2.readMessageCount());
+
+                // Locked messages are delivered first as they were the first to be taken
+                envelope = queue2.receive(null, 0);
+                assertEquals("Test message 2", envelope.getMessageAsString());
+                assertEquals("123", envelope.getCorrelationId());
+                assertEquals("Test message 3", queue2.receive(null, 0).getMessageAsString());
+                assertEquals("Test message 4", queue2.receive(null, 0).getMessageAsString());
+                assertEquals("Test message 1", queue2.receive(null, 0).getMessageAsString());
+            } finally {
+                queue2.close(null);
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testJournalDeliveryCount() throws Exception {
+        var directory = Files.createTempDirectory("journal-test");
+        var config = ConfigParams.fromTuples(
+                "options.journal_path", directory.toString(),
+                "options.journal_sync_interval", 0,
+                "options.max_deliveries", 2
+        );
+
+        try {
+            var queue = new MemoryMessageQueue("TestQueue");
+            queue.configure(config);
+            queue.open(null);
+
+            queue.send(null, new MessageEnvelope("123", "Test", "Poison message"));
+            queue.abandon(queue.receive(null, 0));
+            queue.close(null);
+
+            var queue2 = new MemoryMessageQueue("TestQueue");
+            queue2.configure(config);
+            queue2.open(null);
+            try {
+                // The delivery count survives the restart, so the delivery limit is still reached
+                var envelope = queue2.receive(null, 0);
+                assertEquals(2, envelope.getDeliveryCount());
+                queue2.abandon(envelope);
+                assertNull(queue2.receive(null, 0));
+            } finally {
+                queue2.close(null);
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testJournalCheckpoint() throws Exception {
+        var directory = Files.createTempDirectory("journal-test");
+        var config = ConfigParams.fromTuples(
+                "options.journal_path", directory.toString(),
+                "options.journal_checkpoint_size", 4096
+        );
+
+        try {
+            var queue = new MemoryMessageQueue("TestQueue");
+            queue.configure(config);
+            queue.open(null);
+
+            var message = "A".repeat(100);
+            for (int index = 0; index < 200; index++) {
+                queue.send(null, new MessageEnvelope(null, "Test", message + index));
+                if (index % 2 == 0)
+                    queue.complete(queue.receive(null, 0));
+            }
+            queue.close(null);
+
+            // Checkpoints keep the journal much smaller than the records of all sent messages
+            var journal = directory.resolve("TestQueue.journal");
+            assertTrue(Files.size(journal) < 250 * message.length());
+
+            var queue2 = new MemoryMessageQueue("TestQueue");
+            queue2.configure(config);
+            queue2.open(null);
+            try {
+                assertEquals(100, queue2.readMessageCount());
+                assertEquals(message + 100, queue2.receive(null, 0).getMessageAsString());
+            } finally {
+                queue2.close(null);
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testJournalCheckpointFailure() throws Exception {
+        var directory = Files.createTempDirectory("journal-test");
+        var config = ConfigParams.fromTuples(
+                "options.journal_path", directory.toString(),
+                "options.journal_checkpoint_size", 4096
+        );
+
+        try {
+            var queue = new MemoryMessageQueue("TestQueue");
+            queue.configure(config);
+            queue.open(null);
+
+            // The checkpoint file can't be created in place of a directory
+            var checkpoint = directory.resolve("TestQueue.journal.checkpoint");
+            Files.createDirectory(checkpoint);
+            Files.createFile(checkpoint.resolve("file"));
+
+            // Sends are rejected once the checkpoint fails instead of reporting them durable
+            var message = "A".repeat(100);
+            int sent = 0;
+            try {
+                for (; sent < 1000; sent++) {
+                    queue.send(null, new MessageEnvelope(null, "Test", message + sent));
+                    Thread.sleep(1);
+                }
+                fail("Failed checkpoint shall be reported");
+            } catch (InvalidStateException ex) {
+                assertEquals("JOURNAL_FAILED", ex.getCode());
+            }
+            queue.close(null);
+            deleteDirectory(checkpoint);
+
+            // The old journal keeps all messages that were sent successfully
+            var queue2 = new MemoryMessageQueue("TestQueue");
+            queue2.configure(config);
+            queue2.open(null);
+            try {
+                assertTrue(queue2.readMessageCount() >= sent);
+                assertEquals(message + 0, queue2.receive(null, 0).getMessageAsString());
+            } finally {
+                queue2.close(null);
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testSnapshotRestore() throws Exception {
+        var directory = Files.createTempDirectory("snapshot-test");
+        var config = ConfigParams.fromTuples(
+                "options.snapshot_path", directory.toString()
+        );
+
+        try {
+            var queue = new MemoryMessageQueue("TestQueue");
+            queue.configure(config);
+            queue.open(null);
+
+            queue.send(null, new MessageEnvelope("123", "Test", "Test message 1"));
+            queue.send(null, new MessageEnvelope("123", "Test", new byte[]{1, 2, 3}));
+            queue.send(null, new MessageEnvelope("123", "Test", "Test message 3"));
+
+            // Received messages return to the queue
+            var envelope = queue.receive(null, 0);
+            assertEquals("Test message 1", envelope.getMessageAsString());
+            queue.close(null);
+
+            var snapshot = directory.resolve("TestQueue.snapshot");
+            assertTrue(Files.exists(snapshot));
+
+            var queue2 = new MemoryMessageQueue("TestQueue");
+            queue2.configure(config);
+            queue2.open(null);
+            try {
+                assertFalse(Files.exists(snapshot));
+                assertEquals(3, queue2.readMessageCount());
+
+                envelope = queue2.receive(null, 0);
+                assertEquals("Test message 1", envelope.getMessageAsString());
+                assertEquals("123", envelope.getCorrelationId());
+                assertArrayEquals(new byte[]{1, 2, 3}, queue2.receive(null, 0).getMessageAsBytes());
+                assertEquals("Test message 3", queue2.receive(null, 0).getMessageAsString());
+            } finally {
+                queue2.close(null);
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testPriorityLanes() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.priority_lanes", 3
+        ));
+        queue.open(null);
+
+        var priorities = new int[]{0, 2, 1, 2, 5, -1};
+        for (int index = 0; index < priorities.length; index++) {
+            var envelope = new MessageEnvelope(null, "Test", "Test message " + index);
+            envelope.setPriority(priorities[index]);
+            queue.send(null, envelope);
+        }
+
+        // Priorities above the highest lane go to the highest lane, negative ones go to the lowest
+        var expected = new String[]{"Test message 1", "Test message 3", "Test message 4",
+                "Test message 2", "Test message 0", "Test message 5"};
+
+        var peeked = queue.peekBatch(null, 10);
+        assertEquals(expected.length, peeked.size());
+        for (int index = 0; index < expected.length; index++)
+            assertEquals(expected[index], peeked.get(index).getMessageAsString());
+
+        assertEquals(expected[0], queue.peek(null).getMessageAsString());
+        for (var message : expected)
+            assertEquals(message, queue.receive(null, 0).getMessageAsString());
+
+        queue.close(null);
+    }
+
+    @Test
+    public void testDelayedDelivery() throws Exception {
+        assertTrue(queue.getCapabilities().canSchedule());
+        queue.send(null, new MessageEnvelope("123", "Test", "Delayed message"), 300);
+        queue.send(null, new MessageEnvelope("123", "Test", "Test message"));
+
+        // Delayed messages are hidden until they are due
+        assertEquals(1, queue.readMessageCount());
+        assertEquals(1, queue.peekBatch(null, 10).size());
+        assertEquals("Test message", queue.peek(null).getMessageAsString());
+        queue.complete(queue.receive(null, 0));
+        assertNull(queue.receive(null, 0));
+
+        // A waiting receiver wakes up when the message is due
+        long startTime = System.currentTimeMillis();
+        var envelope = queue.receive(null, 5000);
+        assertNotNull(envelope);
+        assertEquals("Delayed message", envelope.getMessageAsString());
+        assertTrue(System.currentTimeMillis() - startTime >= 200);
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+        queue.complete(envelope);
+    }
+
+    @Test
+    public void testDelayedDeliveryLimits() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.max_size", 2,
+                "options.overflow_policy", "reject"
+        ));
+        queue.open(null);
+
+        try {
+            // Scheduled messages take space in the queue before they are due
+            queue.send(null, new MessageEnvelope("123", "Test", "Delayed message 1"), 60000);
+            var delayed = new MessageEnvelope("123", "Test", "Delayed message 2");
+            delayed.setDeliveryTimeMillis(System.currentTimeMillis() + 60000);
+            queue.sendBatch(null, List.of(delayed));
+            try {
+                queue.send(null, new MessageEnvelope("123", "Test", "Delayed message 3"), 60000);
+                fail("Expected the message to be rejected");
+            } catch (InvalidStateException ex) {
+                assertEquals("QUEUE_FULL", ex.getCode());
+            }
+            try {
+                queue.send(null, new MessageEnvelope("123", "Test", "Test message"));
+                fail("Expected the message to be rejected");
+            } catch (InvalidStateException ex) {
+                assertEquals("QUEUE_FULL", ex.getCode());
+            }
+            assertEquals(0, queue.readMessageCount());
+        } finally {
+            queue.close(null);
+        }
+
+        // Scheduled messages are not dropped to make space
+        queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.max_size", 1,
+                "options.overflow_policy", "drop_oldest"
+        ));
+        queue.open(null);
+
+        try {
+            queue.send(null, new MessageEnvelope("123", "Test", "Delayed message"), 200);
+            queue.send(null, new MessageEnvelope("123", "Test", "Test message"));
+            assertNull(queue.receive(null, 0));
+
+            var envelope = queue.receive(null, 1000);
+            assertEquals("Delayed message", envelope.getMessageAsString());
+        } finally {
+            queue.close(null);
+        }
+    }
+
+    @Test
+    public void testMessageExpiration() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.message_ttl", 100,
+                "options.counters_interval", 50
+        ));
+        var counters = new LogCounters();
+        queue.setReferences(References.fromTuples(
+                new Descriptor("pip-services", "counters", "log", "default", "1.0"), counters
+        ));
+        queue.open(null);
+
+        var envelope = new MessageEnvelope(null, "Test", "Long living message");
+        envelope.setExpirationTimeMillis(System.currentTimeMillis() + 60000);
+        queue.send(null, new MessageEnvelope(null, "Test", "Test message 1"));
+        queue.send(null, envelope);
+        queue.send(null, new MessageEnvelope(null, "Test", "Test message 2"));
+        assertEquals(3, queue.peekBatch(null, 10).size());
+
+        // Expired messages are skipped and discarded
+        Thread.sleep(300);
+        var messages = queue.peekBatch(null, 10);
+        assertEquals(1, messages.size());
+        assertEquals("Long living message", messages.get(0).getMessageAsString());
+        assertEquals("Long living message", queue.receive(null, 0).getMessageAsString());
+        assertNull(queue.receive(null, 0));
+
+        queue.close(null);
+        assertEquals(2, (int) counters.get("queue.TestQueue.expired_messages", CounterType.Increment).getCount());
+    }
+
+    @Test
+    public void testBackgroundExpiration() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.message_ttl", 50,
+                "options.expiration_interval", 50,
+                "options.counters_interval", 50
+        ));
+        var counters = new LogCounters();
+        queue.setReferences(References.fromTuples(
+                new Descriptor("pip-services", "counters", "log", "default", "1.0"), counters
+        ));
+        queue.open(null);
+
+        for (int index = 0; index < 10; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", "Test message " + index));
+
+        // Expired messages are removed without receivers
+        Thread.sleep(400);
+        assertEquals(10, (int) counters.get("queue.TestQueue.expired_messages", CounterType.Increment).getCount());
+        assertEquals(0, queue.readMessageCount());
+
+        queue.close(null);
+    }
+
+    @Test
+    public void testHeadExpiration() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.message_ttl", 50,
+                "options.expiration_interval", 0,
+                "options.max_size", 10,
+                "options.overflow_policy", "reject"
+        ));
+        queue.open(null);
+
+        for (int index = 0; index < 10; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", "Test message " + index));
+        Thread.sleep(100);
+
+        // Without the background sweep expired messages are dropped from the head of the queue
+        queue.send(null, new MessageEnvelope(null, "Test", "Live message"));
+        assertEquals(1, queue.readMessageCount());
+        assertEquals("Live message", queue.receive(null, 0).getMessageAsString());
+
+        queue.close(null);
+    }
+
+    @Test
+    public void testDeadLetterQueue() throws Exception {
+        var queue = new MemoryMessageQueue("TestQueue");
+        var deadLetterQueue = new MemoryMessageQueue("DeadQueue");
+        deadLetterQueue.configure(ConfigParams.fromTuples("options.max_deliveries", 2));
+        queue.configure(ConfigParams.fromTuples(
+                "options.max_deliveries", 2,
+                "dependencies.dead_letter_queue", "pip-services:message-queue:memory:dead:1.0"
+        ));
+        assertFalse(queue.getCapabilities().canDeadLetter());
+        queue.setReferences(References.fromTuples(
+                new Descriptor("pip-services", "message-queue", "memory", "test", "1.0"), queue,
+                new Descriptor("pip-services", "message-queue", "memory", "dead", "1.0"), deadLetterQueue
+        ));
+        assertTrue(queue.getCapabilities().canDeadLetter());
+        queue.open(null);
+        deadLetterQueue.open(null);
+
+        try {
+            // Poison messages are moved to dead letter after the maximum number of deliveries
+            queue.send(null, new MessageEnvelope("123", "Test", "Poison message"));
+            var envelope = queue.receive(null, 0);
+            assertEquals(1, envelope.getDeliveryCount());
+            queue.abandon(envelope);
+            envelope = queue.receive(null, 0);
+            assertEquals(2, envelope.getDeliveryCount());
+            queue.abandon(envelope);
+            assertNull(queue.receive(null, 0));
+
+            // The dead letter queue delivers the message from scratch
+            envelope = deadLetterQueue.receive(null, 0);
+            assertNotNull(envelope);
+            assertEquals("Poison message", envelope.getMessageAsString());
+            assertEquals("123", envelope.getCorrelationId());
+            assertEquals(1, envelope.getDeliveryCount());
+            deadLetterQueue.abandon(envelope);
+            envelope = deadLetterQueue.receive(null, 0);
+            assertNotNull(envelope);
+            deadLetterQueue.complete(envelope);
+
+            // Dead messages are sent to the dead letter queue
+            queue.send(null, new MessageEnvelope("123", "Test", "Dead message"));
+            queue.moveToDeadLetter(queue.receive(null, 0));
+            assertEquals("Dead message", deadLetterQueue.receive(null, 0).getMessageAsString());
+        } finally {
+            queue.close(null);
+            deadLetterQueue.close(null);
+        }
+    }
+
+    @Test
+    public void testDeadLetterQueueJournal() throws Exception {
+        var directory = Files.createTempDirectory("journal-test");
+        var journalConfig = ConfigParams.fromTuples("options.journal_path", directory.toString());
+        var queueConfig = ConfigParams.fromTuples(
+                "options.journal_path", directory.toString(),
+                "options.max_deliveries", 1,
+                "dependencies.dead_letter_queue", "pip-services:message-queue:memory:dead:1.0"
+        );
+
+        try {
+            var queue = new MemoryMessageQueue("TestQueue");
+            var deadLetterQueue = new MemoryMessageQueue("DeadQueue");
+            queue.configure(queueConfig);
+            deadLetterQueue.configure(journalConfig);
+            queue.setReferences(References.fromTuples(
+                    new Descriptor("pip-services", "message-queue", "memory", "dead", "1.0"), deadLetterQueue
+            ));
+            queue.open(null);
+            deadLetterQueue.open(null);
+
+            queue.send(null, new MessageEnvelope("123", "Test", "Other message"));
+            queue.send(null, new MessageEnvelope("123", "Test", "Poison message"));
+            queue.send(null, new MessageEnvelope("123", "Test", "Last message"));
+            queue.complete(queue.receive(null, 0));
+            queue.abandon(queue.receive(null, 0));
+            queue.close(null);
+            deadLetterQueue.close(null);
+
+            // After restart the dead message is only in the dead letter queue
+            var queue2 = new MemoryMessageQueue("TestQueue");
+            var deadLetterQueue2 = new MemoryMessageQueue("DeadQueue");
+            queue2.configure(journalConfig);
+            deadLetterQueue2.configure(journalConfig);
+            queue2.open(null);
+            deadLetterQueue2.open(null);
+            try {
+                assertEquals(1, queue2.readMessageCount());
+                assertEquals("Last message", queue2.receive(null, 0).getMessageAsString());
+                assertEquals(1, deadLetterQueue2.readMessageCount());
+                assertEquals("Poison message", deadLetterQueue2.receive(null, 0).getMessageAsString());
+            } finally {
+                queue2.close(null);
+                deadLetterQueue2.close(null);
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testDeadLetterQueueFailure() throws Exception {
+        var failing = new AtomicBoolean(true);
+        var deadLetterQueue = new MemoryMessageQueue("DeadQueue") {
+            @Override
+            public void send(String correlationId, MessageEnvelope message) throws InvalidStateException {
+                if (failing.get())
+                    throw new InvalidStateException(correlationId, "QUEUE_FULL", "Queue DeadQueue is full");
+                super.send(correlationId, message);
+            }
+        };
+        var queue = new MemoryMessageQueue("TestQueue");
+        queue.configure(ConfigParams.fromTuples(
+                "options.max_deliveries", 1,
+                "dependencies.dead_letter_queue", "pip-services:message-queue:memory:dead:1.0"
+        ));
+        queue.setReferences(References.fromTuples(
+                new Descriptor("pip-services", "message-queue", "memory", "dead", "1.0"), deadLetterQueue
+        ));
+        queue.open(null);
+        deadLetterQueue.open(null);
+
+        try {
+            // Dead messages that the dead letter queue rejects are not lost
+            queue.send(null, new MessageEnvelope("123", "Test", "Poison message"));
+            queue.abandon(queue.receive(null, 0));
+            assertEquals(1, queue.readMessageCount());
+            assertEquals(0, deadLetterQueue.readMessageCount());
+
+            failing.set(false);
+            var envelope = queue.receive(null, 0);
+            assertEquals(2, envelope.getDeliveryCount());
+            queue.abandon(envelope);
+            assertEquals(0, queue.readMessageCount());
+            assertEquals("Poison message", deadLetterQueue.receive(null, 0).getMessageAsString());
+        } finally {
+            queue.close(null);
+            deadLetterQueue.close(null);
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach((path) -> path.toFile().delete());
+        }
+    }
+
 }
@@ -6,6 +6,13 @@ import org.junit.Test;
 import org.pipservices3.commons.convert.JsonConverter;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 
 public class MessageEnvelopTest {
     @Test
@@ -19,4 +26,177 @@ public class MessageEnvelopTest {
         assertEquals(message.getMessageType(), message2.getMessageType());
         assertEquals(message.getMessage().toString(), message2.getMessage().toString());
     }
+
+    @Test
+    public void testDefaultJsonFormat() throws IOException {
+        // Optional fields are omitted at defaults, so the format stays compatible with other ports
+        var message = new MessageEnvelope("123", "Test", "Test message");
+        message.setMessageId("1");
+        message.setSentTime(ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        assertEquals(JsonConverter.toMap("{\"messageAsString\":\"Test message\",\"message\":\"Test message\",\"message_id\":\"1\","
+                        + "\"sent_time\":\"2020-01-01T00:00:00Z\",\"correlation_id\":\"123\",\"message_type\":\"Test\"}"),
+                JsonConverter.toMap(JsonConverter.toJson(message)));
+        assertEquals(JsonConverter.toMap("{\"messageAsString\":null,\"message\":null,\"message_id\":null,\"sent_time\":null,"
+                        + "\"correlation_id\":null,\"message_type\":null}"),
+                JsonConverter.toMap(JsonConverter.toJson(new MessageEnvelope())));
+
+        message.setPriority(5);
+        message.setContentType("text/plain");
+        var json = JsonConverter.toJson(message);
+        assertTrue(json.contains("\"priority\":5"));
+        assertTrue(json.contains("\"content_type\":\"text/plain\""));
+    }
+
+    @Test
+    public void testCompactEnvelope() throws IOException {
+        var message1 = MessageEnvelope.createCompact("123", new String("Test"), "Message 1");
+        var message2 = MessageEnvelope.createCompact("123", new String("Test"), "Message 2");
+
+        assertSame(message1.getMessageType(), message2.getMessageType());
+        assertNotNull(message1.getMessageId());
+        assertNotEquals(message1.getMessageId(), message2.getMessageId());
+        assertTrue(Long.parseLong(message1.getMessageId(), 16) < Long.parseLong(message2.getMessageId(), 16));
+        assertNull(message1.getSentTime());
+
+        message1.setSentTimeMillis(1_600_000_000_000L);
+        assertEquals(1_600_000_000_000L, message1.getSentTime().toInstant().toEpochMilli());
+
+        var json = JsonConverter.toJson(message1);
+        var message3 = MessageEnvelope.fromJSON(json);
+        assertEquals(message1.getMessageId(), message3.getMessageId());
+        assertEquals(message1.getSentTimeMillis(), message3.getSentTimeMillis());
+        assertEquals("Message 1", message3.getMessageAsString());
+    }
+
+    @Test
+    public void testBinaryPayload() throws IOException {
+        var bytes = "ABC".getBytes(StandardCharsets.UTF_8);
+        var message = new MessageEnvelope("123", "Test", (Object) null);
+        message.setMessageAsBytes(bytes, "application/octet-stream");
+
+        assertTrue(message.isBinary());
+        assertSame(bytes, message.getMessageAsBytes());
+        assertEquals("ABC", message.getMessageAsString());
+        assertEquals("application/octet-stream", message.getContentType());
+
+        var buffer = message.getMessageAsBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(3, buffer.remaining());
+
+        // Buffers are stored without copying and every reader gets its own view
+        var source = ByteBuffer.wrap("Hello".getBytes(StandardCharsets.UTF_8));
+        message.setMessageAsBuffer(source);
+        message.getMessageAsBuffer().get();
+        assertEquals(5, message.getMessageAsBuffer().remaining());
+        source.put(0, (byte) 'J');
+        assertEquals("Jello", message.getMessageAsString());
+
+        var json = JsonConverter.toJson(message);
+        var message2 = MessageEnvelope.fromJSON(json);
+        assertEquals("application/octet-stream", message2.getContentType());
+    }
+
+    @Test
+    public void testMemoizedPayload() throws IOException {
+        var message = new MessageEnvelope("123", "Test", "{\"name\":\"Test\",\"value\":123}");
+
+        // Decoded payloads are reused until the message is changed
+        var value1 = message.getMessageAs(MessageSerializerTest.TestMessage.class);
+        var value2 = message.getMessageAs(MessageSerializerTest.TestMessage.class);
+        assertEquals(123, value1.value);
+        assertSame(value1, value2);
+
+        message.setMessage("{\"name\":\"Test\",\"value\":456}");
+        assertEquals(456, message.getMessageAs(MessageSerializerTest.TestMessage.class).value);
+
+        // Deferred objects are returned as is and serialized only on demand
+        var original = new MessageSerializerTest.TestMessage();
+        original.name = "Test";
+        original.value = 789;
+        message.setSerializer(new JsonMessageSerializer());
+        message.setMessageAsObjectDeferred(original);
+        assertSame(original, message.getMessageAs(MessageSerializerTest.TestMessage.class));
+        assertTrue(message.getMessageAsString().contains("789"));
+        assertSame(original, message.getMessageAs(MessageSerializerTest.TestMessage.class));
+    }
+
+    @Test
+    public void testEncodeDeferredObject() throws IOException {
+        var original = new MessageSerializerTest.TestMessage();
+        original.name = "Test";
+        original.value = 123;
+
+        // Objects without a serializer are stored as JSON
+        var message = new MessageEnvelope("123", "Test", (String) null);
+        message.setContentType("application/cbor");
+        message.setMessageAsObjectDeferred(original);
+        var message2 = MessageEnvelopeCodec.decode(MessageEnvelopeCodec.encode(message, null));
+        assertEquals("application/json", message2.getContentType());
+        assertEquals(123, message2.getMessageAs(MessageSerializerTest.TestMessage.class).value);
+
+        // Objects with a serializer set later are stored by that serializer
+        message.setSerializer(new CborMessageSerializer());
+        message2 = MessageEnvelopeCodec.decode(MessageEnvelopeCodec.encode(message, null));
+        assertEquals(message.getSerializer().getContentType(), message2.getContentType());
+        assertEquals(123, message2.getMessageAs(MessageSerializerTest.TestMessage.class).value);
+    }
+
+    @Test
+    public void testCompressedPayload() throws IOException {
+        var text = "{\"name\":\"Test\",\"value\":123}".repeat(1000);
+        var message = new MessageEnvelope("123", "Test", text);
+
+        // Small payloads are not compressed
+        assertFalse(message.compressMessage(text.length() + 1, 1));
+
+        assertTrue(message.compressMessage(1024, 1));
+        assertTrue(message.isCompressed());
+        assertEquals("deflate", message.getContentEncoding());
+        assertTrue(message.toString().contains("compressed bytes"));
+
+        // Readers get a decompressed copy and the stored payload stays compressed
+        assertEquals(text, message.getMessage());
+        assertSame(message.getMessage(), message.getMessage());
+        assertTrue(message.isCompressed());
+
+        var bytes = text.getBytes(StandardCharsets.UTF_8);
+        message.setMessageAsBytes(bytes, "application/json");
+        assertTrue(message.compressMessage(1024, 9));
+        assertArrayEquals(bytes, message.getMessageAsBytes());
+        assertEquals("application/json", message.getContentType());
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        var text = "{\"name\":\"Test\",\"value\":123}".repeat(1000);
+        var message = new MessageEnvelope("123", "Test", text);
+        assertTrue(message.compressMessage(1024, 1));
+        var stored = message.peekMessage();
+
+        var original = new MessageSerializerTest.TestMessage();
+        original.value = 789;
+        var deferred = new MessageEnvelope("123", "Test", (Object) null);
+        deferred.setSerializer(new JsonMessageSerializer());
+        deferred.setMessageAsObjectDeferred(original);
+
+        // Shared envelopes are read by several threads at once like after a peek
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var tasks = new ArrayList<Callable<Boolean>>();
+            for (int index = 0; index < 64; index++) {
+                tasks.add(() -> text.equals(message.getMessageAsString())
+                        && deferred.getMessageAsString().contains("789")
+                        && deferred.getMessageAs(MessageSerializerTest.TestMessage.class) == original);
+            }
+            for (var result : executor.invokeAll(tasks))
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+
+        // Getters don't change the stored payload
+        assertSame(stored, message.peekMessage());
+        assertTrue(message.isCompressed());
+        assertNull(deferred.peekMessage());
+    }
 }
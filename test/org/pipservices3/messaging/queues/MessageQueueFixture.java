@@ -4,6 +4,8 @@ import org.junit.Test;
 import org.pipservices3.commons.errors.ApplicationException;
 import org.pipservices3.messaging.test.TestMessageReceiver;
 
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class MessageQueueFixture {
@@ -49,6 +51,63 @@ public class MessageQueueFixture {
         assertEquals(envelop1.getCorrelationId(), envelop2.getCorrelationId());
     }
 
+    public void testReceiveBatch() throws Exception {
+        MessageEnvelope envelop1 = new MessageEnvelope("123", "Test", "Test message 1");
+        MessageEnvelope envelop2 = new MessageEnvelope("123", "Test", "Test message 2");
+        MessageEnvelope envelop3 = new MessageEnvelope("123", "Test", "Test message 3");
+        _queue.send(null, envelop1);
+        _queue.send(null, envelop2);
+        _queue.send(null, envelop3);
+
+        List<MessageEnvelope> envelopes = _queue.receiveBatch(null, 2, 10000);
+        assertEquals(2, envelopes.size());
+        assertEquals(envelop1.getMessage(), envelopes.get(0).getMessage());
+        assertEquals(envelop2.getMessage(), envelopes.get(1).getMessage());
+
+        envelopes = _queue.receiveBatch(null, 10, 10000);
+        assertEquals(1, envelopes.size());
+        assertEquals(envelop3.getMessage(), envelopes.get(0).getMessage());
+
+        envelopes = _queue.receiveBatch(null, 10, 100);
+        assertEquals(0, envelopes.size());
+    }
+
+    public void testSendBatch() throws Exception {
+        MessageEnvelope envelop1 = new MessageEnvelope("123", "Test", "Test message 1");
+        MessageEnvelope envelop2 = new MessageEnvelope("123", "Test", "Test message 2");
+        _queue.sendBatch(null, List.of(envelop1, envelop2));
+
+        MessageEnvelope envelop3 = _queue.receive(null, 10000);
+        assertNotNull(envelop3);
+        assertEquals(envelop1.getMessage(), envelop3.getMessage());
+
+        MessageEnvelope envelop4 = _queue.receive(null, 10000);
+        assertNotNull(envelop4);
+        assertEquals(envelop2.getMessage(), envelop4.getMessage());
+    }
+
+    public void testSettleBatch() throws Exception {
+        for (int index = 0; index < 4; index++)
+            _queue.send(null, new MessageEnvelope("123", "Test", "Test message " + index));
+
+        List<MessageEnvelope> envelopes = _queue.receiveBatch(null, 4, 10000);
+        assertEquals(4, envelopes.size());
+
+        boolean[] results = _queue.completeBatch(List.of(envelopes.get(0)));
+        assertArrayEquals(new boolean[]{true}, results);
+
+        results = _queue.moveToDeadLetterBatch(List.of(envelopes.get(1), envelopes.get(0)));
+        assertArrayEquals(new boolean[]{true, false}, results);
+
+        results = _queue.abandonBatch(List.of(envelopes.get(2), envelopes.get(3)));
+        assertArrayEquals(new boolean[]{true, true}, results);
+
+        envelopes = _queue.receiveBatch(null, 4, 10000);
+        assertEquals(2, envelopes.size());
+        assertEquals("Test message 2", envelopes.get(0).getMessage());
+        assertEquals("Test message 3", envelopes.get(1).getMessage());
+    }
+
     public void testMoveToDeadMessage() throws Exception {
         MessageEnvelope envelop1 = new MessageEnvelope("123", "Test", "Test message");
         _queue.send(null, envelop1);
@@ -0,0 +1,76 @@
+package org.pipservices3.messaging.queues;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageRingBufferTest {
+    @Test
+    public void testAddAndPoll() {
+        var buffer = new MessageRingBuffer();
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.peekFirst());
+        assertNull(buffer.pollFirst());
+
+        var envelope1 = new MessageEnvelope("123", "Test", "Message 1");
+        var envelope2 = new MessageEnvelope("123", "Test", "Message 2");
+        buffer.addLast(envelope1);
+        buffer.addLast(envelope2);
+
+        assertEquals(2, buffer.size());
+        assertSame(envelope1, buffer.peekFirst());
+        assertSame(envelope2, buffer.get(1));
+
+        assertSame(envelope1, buffer.pollFirst());
+        assertSame(envelope2, buffer.pollFirst());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testWrapAroundGrowAndShrink() {
+        var buffer = new MessageRingBuffer();
+        int initialCapacity = buffer.capacity();
+
+        // Move the head into the middle so the next growth happens on wrapped content
+        for (int index = 0; index < initialCapacity / 2; index++)
+            buffer.addLast(new MessageEnvelope(null, "Test", "Skip"));
+        for (int index = 0; index < initialCapacity / 2; index++)
+            buffer.pollFirst();
+
+        int count = initialCapacity * 64;
+        for (int index = 0; index < count; index++)
+            buffer.addLast(new MessageEnvelope(null, "Test", Integer.toString(index)));
+
+        assertEquals(count, buffer.size());
+        assertTrue(buffer.capacity() >= count);
+        assertEquals("10", buffer.get(10).getMessageAsString());
+
+        for (int index = 0; index < count; index++)
+            assertEquals(Integer.toString(index), buffer.pollFirst().getMessageAsString());
+
+        assertTrue(buffer.isEmpty());
+        assertEquals(initialCapacity, buffer.capacity());
+    }
+
+    @Test
+    public void testRemoveIf() {
+        var buffer = new MessageRingBuffer();
+
+        // Wrap the content around the end of the array
+        for (int index = 0; index < 10; index++)
+            buffer.addLast(new MessageEnvelope(null, "Test", "Skip"));
+        for (int index = 0; index < 10; index++)
+            buffer.pollFirst();
+        for (int index = 0; index < 12; index++)
+            buffer.addLast(new MessageEnvelope(null, "Test", "Message " + index));
+
+        assertEquals(6, buffer.removeIf((message) -> message.getMessageAsString().matches("Message \\d*[13579]")));
+        assertEquals(6, buffer.size());
+        for (int index = 0; index < 6; index++)
+            assertEquals("Message " + (index * 2), buffer.get(index).getMessageAsString());
+
+        assertEquals(6, buffer.removeIf((message) -> true));
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.peekFirst());
+    }
+}
@@ -0,0 +1,88 @@
+package org.pipservices3.messaging.queues;
+
+import org.junit.Test;
+import org.pipservices3.commons.errors.ConfigException;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.Assert.*;
+
+public class MessageSerializerTest {
+    public static class TestMessage {
+        public String name;
+        public int value;
+        public ZonedDateTime time;
+    }
+
+    private static TestMessage createMessage() {
+        var message = new TestMessage();
+        message.name = "Test";
+        message.value = 123;
+        message.time = ZonedDateTime.of(2022, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        return message;
+    }
+
+    private static void testRoundTrip(IMessageSerializer serializer) throws Exception {
+        var data = serializer.serialize(createMessage());
+        var message = serializer.deserialize(TestMessage.class, data);
+
+        assertEquals("Test", message.name);
+        assertEquals(123, message.value);
+        assertEquals(createMessage().time.toInstant(), message.time.toInstant());
+        assertNull(serializer.serialize(null));
+    }
+
+    @Test
+    public void testJsonSerializer() throws Exception {
+        var serializer = new JsonMessageSerializer();
+        assertEquals("application/json", serializer.getContentType());
+        testRoundTrip(serializer);
+
+        var json = serializer.toJson(createMessage());
+        assertTrue(json.contains("\"name\":\"Test\""));
+        assertEquals(123, serializer.fromJson(TestMessage.class, json).value);
+    }
+
+    @Test
+    public void testCborSerializer() throws Exception {
+        var serializer = new CborMessageSerializer();
+        assertEquals("application/cbor", serializer.getContentType());
+        testRoundTrip(serializer);
+
+        // CBOR is more compact than JSON
+        var message = createMessage();
+        assertTrue(serializer.serialize(message).length < new JsonMessageSerializer().serialize(message).length);
+    }
+
+    @Test
+    public void testCreateByName() throws Exception {
+        assertNull(MessageSerializers.create(null, "none"));
+        assertTrue(MessageSerializers.create(null, "json") instanceof JsonMessageSerializer);
+        assertTrue(MessageSerializers.create(null, "cbor") instanceof CborMessageSerializer);
+        assertTrue(MessageSerializers.fromContentType("application/cbor") instanceof CborMessageSerializer);
+
+        try {
+            MessageSerializers.create(null, "xml");
+            fail("Expected unknown serializer error");
+        } catch (ConfigException ex) {
+            assertEquals("UNKNOWN_SERIALIZER", ex.getCode());
+        }
+    }
+
+    @Test
+    public void testEnvelopeWithSerializer() throws Exception {
+        var envelope = new MessageEnvelope("123", "Test", (Object) null);
+        envelope.setSerializer(new CborMessageSerializer());
+        envelope.setMessageAsObject(createMessage());
+
+        assertTrue(envelope.isBinary());
+        assertEquals("application/cbor", envelope.getContentType());
+        assertEquals("Test", envelope.getMessageAs(TestMessage.class).name);
+
+        // Known content types are decoded without serializer
+        var envelope2 = new MessageEnvelope("123", "Test", (Object) null);
+        envelope2.setMessageAsBytes(envelope.getMessageAsBytes(), envelope.getContentType());
+        assertEquals(123, envelope2.getMessageAs(TestMessage.class).value);
+    }
+}
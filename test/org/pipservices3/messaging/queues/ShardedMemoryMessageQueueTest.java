@@ -0,0 +1,211 @@
+package org.pipservices3.messaging.queues;
+
+import org.junit.*;
+import org.pipservices3.commons.config.ConfigParams;
+import org.pipservices3.commons.errors.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ShardedMemoryMessageQueueTest {
+    private final ShardedMemoryMessageQueue queue;
+    private final MessageQueueFixture fixture;
+
+    public ShardedMemoryMessageQueueTest() throws ApplicationException {
+        queue = new ShardedMemoryMessageQueue("test");
+        queue.configure(ConfigParams.fromTuples("options.shards", 4));
+        fixture = new MessageQueueFixture(queue);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        queue.clear(null);
+        queue.open(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.close(null);
+    }
+
+    @Test
+    public void testSendReceiveMessage() throws Exception {
+        fixture.testSendReceiveMessage();
+    }
+
+    @Test
+    public void testReceiveSendMessage() throws Exception {
+        fixture.testReceiveSendMessage();
+    }
+
+    @Test
+    public void testSendBatch() throws Exception {
+        fixture.testSendBatch();
+    }
+
+    @Test
+    public void testReceiveBatch() throws Exception {
+        fixture.testReceiveBatch();
+    }
+
+    @Test
+    public void testSettleBatch() throws Exception {
+        fixture.testSettleBatch();
+    }
+
+    @Test
+    public void testMoveToDeadMessage() throws Exception {
+        fixture.testMoveToDeadMessage();
+    }
+
+    @Test
+    public void testReceiveAndCompleteMessage() throws Exception {
+        fixture.testReceiveAndCompleteMessage();
+    }
+
+    @Test
+    public void testReceiveAndAbandonMessage() throws Exception {
+        fixture.testReceiveAndAbandonMessage();
+    }
+
+    @Test
+    public void testSendPeekMessage() throws Exception {
+        fixture.testSendPeekMessage();
+    }
+
+    @Test
+    public void testPeekNoMessage() throws Exception {
+        fixture.testPeekNoMessage();
+    }
+
+    @Test
+    public void testOnMessage() throws Exception {
+        fixture.testOnMessage();
+    }
+
+    @Test
+    public void testListen() throws Exception {
+        fixture.testListen();
+    }
+
+    @Test
+    public void testStealMessagesFromOtherShards() throws Exception {
+        var producer = new Thread(() -> {
+            try {
+                for (int index = 0; index < 10; index++)
+                    queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+            } catch (InvalidStateException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        producer.start();
+        producer.join();
+
+        assertEquals(4, queue.getShardCount());
+        assertEquals(10, queue.readMessageCount());
+        assertEquals(10, queue.peekBatch(null, 100).size());
+
+        var envelopes = queue.receiveBatch(null, 100, 0);
+        assertEquals(10, envelopes.size());
+
+        assertEquals(10, queue.completeBatch(envelopes).length);
+        assertEquals(0, queue.readMessageCount());
+    }
+
+    @Test
+    public void testSpreadMessagesAcrossShards() throws Exception {
+        // A single producer sends messages into all shards
+        for (int index = 0; index < 8; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+
+        for (int index = 0; index < queue.getShardCount(); index++)
+            assertEquals(2, queue.getShard(index).readMessageCount());
+        assertEquals(8, queue.completeBatch(queue.receiveBatch(null, 100, 0)).length);
+
+        // Messages of the same transaction go to the same shard and keep their order
+        for (int index = 0; index < 8; index++)
+            queue.send(null, new MessageEnvelope("123", "Test", Integer.toString(index)));
+        var envelopes = queue.receiveBatch(null, 100, 0);
+        for (int index = 0; index < 8; index++)
+            assertEquals(Integer.toString(index), envelopes.get(index).getMessageAsString());
+        queue.completeBatch(envelopes);
+    }
+
+    @Test
+    public void testLatencyHistograms() throws Exception {
+        long dwellCount = queue.getDwellTime().getSnapshot().getCount();
+        long lockHoldCount = queue.getLockHoldTime().getSnapshot().getCount();
+
+        // Latencies recorded by shards are collected by the queue
+        for (int index = 0; index < 10; index++)
+            queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+        var envelopes = queue.receiveBatch(null, 100, 0);
+        assertEquals(10, envelopes.size());
+        queue.completeBatch(envelopes);
+
+        assertEquals(dwellCount + 10, queue.getDwellTime().getSnapshot().getCount());
+        assertEquals(lockHoldCount + 10, queue.getLockHoldTime().getSnapshot().getCount());
+    }
+
+    @Test
+    public void testWaitForMessages() throws Exception {
+        var producer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                for (int index = 0; index < 3; index++)
+                    queue.send(null, new MessageEnvelope(null, "Test", Integer.toString(index)));
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        producer.start();
+
+        // Receivers park until enough messages come to any shard
+        var envelopes = queue.receiveBatch(null, 3, 10, 5000);
+        producer.join();
+        assertEquals(3, envelopes.size());
+        queue.completeBatch(envelopes);
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        int threadCount = 4;
+        int messageCount = 10000;
+        var received = ConcurrentHashMap.<String>newKeySet();
+        var receivedCount = new AtomicInteger();
+        var threads = new Thread[threadCount * 2];
+
+        for (int thread = 0; thread < threadCount; thread++) {
+            int producer = thread;
+            threads[thread] = new Thread(() -> {
+                try {
+                    for (int index = 0; index < messageCount; index++)
+                        queue.send(null, new MessageEnvelope(null, "Test", producer + ":" + index));
+                } catch (InvalidStateException ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            threads[threadCount + thread] = new Thread(() -> {
+                while (receivedCount.get() < threadCount * messageCount) {
+                    var envelope = queue.receive(null, 100);
+                    if (envelope != null) {
+                        received.add(envelope.getMessageAsString());
+                        receivedCount.incrementAndGet();
+                        queue.complete(envelope);
+                    }
+                }
+            });
+        }
+
+        for (var thread : threads)
+            thread.start();
+        for (var thread : threads)
+            thread.join(60000);
+
+        assertEquals(threadCount * messageCount, receivedCount.get());
+        assertEquals(threadCount * messageCount, received.size());
+        assertEquals(0, queue.readMessageCount());
+    }
+}